@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.api;
+
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Authenticates clients of the HTTP API by a key sent as {@code Authorization: Bearer <key>}. The
+ * keys are read from the file configured by {@code api.keysFile}, one key per line; blank lines and
+ * lines starting with {@code #} are ignored. Without keys the API rejects all requests.
+ */
+public class ApiAuthenticator
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ApiAuthenticator.class);
+	private static final String BEARER_PREFIX = "Bearer ";
+
+	private final List<byte[]> keys;
+
+	/**
+	 * Construct with the configured keys file.
+	 */
+	public ApiAuthenticator()
+	{
+		this(getDefaultConfiguration().getString("api.keysFile", null));
+	}
+
+	/**
+	 * Construct.
+	 *
+	 * @param keysFile
+	 *            path of the keys file, may be blank
+	 */
+	public ApiAuthenticator(String keysFile)
+	{
+		keys = readKeys(keysFile);
+		if (keys.isEmpty())
+		{
+			LOG.warn("No API keys configured in '{}', the HTTP API rejects all requests", keysFile);
+		}
+	}
+
+	/**
+	 * Checks the key of a request.
+	 *
+	 * @param request
+	 *            the request
+	 * @return ID of the client derived from its key, null if the key is missing or unknown
+	 */
+	public String authenticate(HttpServletRequest request)
+	{
+		var header = request.getHeader("Authorization");
+		if (header == null || !header.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length()))
+		{
+			return null;
+		}
+		var presented = header.substring(BEARER_PREFIX.length()).trim().getBytes(StandardCharsets.UTF_8);
+		for (var key : keys)
+		{
+			// constant time, so that the key cannot be guessed byte by byte
+			if (MessageDigest.isEqual(key, presented))
+			{
+				return "api-" + DigestUtils.sha256Hex(presented).substring(0, 12);
+			}
+		}
+		LOG.warn("Rejected API request with an unknown key from {}", request.getRemoteAddr());
+		return null;
+	}
+
+	private static List<byte[]> readKeys(String keysFile)
+	{
+		if (StringUtils.isBlank(keysFile))
+		{
+			return List.of();
+		}
+		try
+		{
+			return Files.readAllLines(Path.of(keysFile))
+				.stream()
+				.map(String::trim)
+				.filter(line -> !line.isEmpty() && !line.startsWith("#"))
+				.map(line -> line.getBytes(StandardCharsets.UTF_8))
+				.toList();
+		}
+		catch (IOException e)
+		{
+			LOG.error("Cannot read API keys file {}", keysFile, e);
+			return List.of();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.api;
+
+import java.util.Map;
+
+import org.apache.wicket.request.resource.AbstractResource.ResourceResponse;
+import org.apache.wicket.request.resource.AbstractResource.WriteCallback;
+import org.apache.wicket.request.resource.IResource.Attributes;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * JSON responses of the HTTP API resources. Errors are returned as {@code {"error": "message"}}.
+ */
+final class ApiResponses
+{
+	private static final ObjectMapper JSON = new ObjectMapper();
+
+	private ApiResponses()
+	{
+	}
+
+	/**
+	 * @return response to a request without a valid API key
+	 */
+	static ResourceResponse unauthorized()
+	{
+		var response = error(401, "Chybí nebo je neplatný API klíč");
+		response.getHeaders().addHeader("WWW-Authenticate", "Bearer");
+		return response;
+	}
+
+	/**
+	 * @param allowed
+	 *            the allowed method
+	 * @return response to a request with a method the address does not support
+	 */
+	static ResourceResponse methodNotAllowed(String allowed)
+	{
+		var response = error(405, "Metoda není povolena");
+		response.getHeaders().addHeader("Allow", allowed);
+		return response;
+	}
+
+	/**
+	 * @param status
+	 *            HTTP status
+	 * @param message
+	 *            message for the client
+	 * @return error response
+	 */
+	static ResourceResponse error(int status, String message)
+	{
+		return json(status, Map.of("error", message));
+	}
+
+	/**
+	 * @param status
+	 *            HTTP status
+	 * @param body
+	 *            object serialized to the response body
+	 * @return JSON response
+	 */
+	static ResourceResponse json(int status, Object body)
+	{
+		byte[] content;
+		try
+		{
+			content = JSON.writeValueAsBytes(body);
+		}
+		catch (JsonProcessingException e)
+		{
+			throw new RuntimeException("Cannot serialize API response", e);
+		}
+
+		var response = new ResourceResponse();
+		response.setStatusCode(status);
+		response.setContentType("application/json");
+		response.setTextEncoding("UTF-8");
+		response.setContentLength(content.length);
+		response.disableCaching();
+		response.setWriteCallback(new WriteCallback()
+		{
+			@Override
+			public void writeData(Attributes attributes)
+			{
+				attributes.getResponse().write(content);
+			}
+		});
+		return response;
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.api;
+
+import static cz.solight.generator.xmltopdf.api.ApiResponses.error;
+import static cz.solight.generator.xmltopdf.api.ApiResponses.json;
+import static cz.solight.generator.xmltopdf.api.ApiResponses.methodNotAllowed;
+import static cz.solight.generator.xmltopdf.api.ApiResponses.unauthorized;
+import static name.berries.app.guice.GuiceStaticHolder.getInstance;
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Pattern;
+
+import org.apache.wicket.request.resource.AbstractResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.solight.generator.xmltopdf.api.SizeLimitedInputStream.RequestTooLargeException;
+import cz.solight.generator.xmltopdf.scheduler.ProductSheetJobCoordinator;
+import cz.solight.generator.xmltopdf.wicket.components.UploadProgress;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Lets the ERP push a product sheet catalogue (produktove_listy.xml) to the application, so that
+ * changed products are generated and uploaded right away instead of after the next SFTP poll.
+ * Requests are authenticated by {@link ApiAuthenticator}. Mounted at {@code /api/v1/catalogues}:
+ * <ul>
+ * <li>{@code POST} with the catalogue XML as the body stores it under the name given by the
+ * {@code fileName} parameter (produktove_listy.xml by default) and starts the incremental product
+ * sheet job for it, see {@link ProductSheetJobCoordinator#ingest}. The products share the change
+ * detection with the catalogue of the same name on SFTP, so only changed products are generated.
+ * Answers 202 Accepted as soon as the catalogue is stored.</li>
+ * <li>{@code GET} returns the progress of the product sheet job.</li>
+ * </ul>
+ *
+ * <p>
+ * The body is written to disk while it arrives and limited to {@code api.maxCatalogueMegabytes}; a
+ * catalogue replaces the previously pushed one only when it was received completely.
+ * </p>
+ */
+public class CatalogueIngestResource extends AbstractResource
+{
+	private static final long serialVersionUID = 1L;
+	private static final Logger LOG = LoggerFactory.getLogger(CatalogueIngestResource.class);
+	private static final long MAX_CATALOGUE_BYTES = getDefaultConfiguration().getLong("api.maxCatalogueMegabytes", 100)
+		* 1024 * 1024;
+	private static final String INGEST_DIRECTORY = getDefaultConfiguration().getString("api.ingestDirectory",
+		"/data/tmp/ingest");
+	private static final String DEFAULT_FILE_NAME = "produktove_listy.xml";
+	private static final Pattern FILE_NAME = Pattern.compile("[A-Za-z0-9_.-]+\\.xml");
+
+	@Override
+	protected ResourceResponse newResourceResponse(Attributes attributes)
+	{
+		var request = (HttpServletRequest)attributes.getRequest().getContainerRequest();
+		var clientId = getInstance(ApiAuthenticator.class).authenticate(request);
+		if (clientId == null)
+		{
+			return unauthorized();
+		}
+		if (attributes.getParameters().getIndexedCount() > 0)
+		{
+			return error(404, "Neznámá adresa API");
+		}
+
+		return switch (request.getMethod())
+		{
+			case "POST" -> ingest(attributes, request, clientId);
+			case "GET" -> jobStatus();
+			default -> methodNotAllowed("GET, POST");
+		};
+	}
+
+	private ResourceResponse ingest(Attributes attributes, HttpServletRequest request, String clientId)
+	{
+		var fileName = attributes.getParameters().get("fileName").toString(DEFAULT_FILE_NAME);
+		if (!FILE_NAME.matcher(fileName).matches())
+		{
+			return error(400, "Neplatný název souboru " + fileName);
+		}
+		if (request.getContentLengthLong() > MAX_CATALOGUE_BYTES)
+		{
+			return error(413, "Požadavek je větší než " + MAX_CATALOGUE_BYTES + " bajtů");
+		}
+
+		Path catalogue;
+		long size;
+		try
+		{
+			var directory = Files.createDirectories(Path.of(INGEST_DIRECTORY));
+			catalogue = directory.resolve(fileName);
+			var tempFile = Files.createTempFile(directory, "ingest-", ".part");
+			try (var body = new SizeLimitedInputStream(request.getInputStream(), MAX_CATALOGUE_BYTES))
+			{
+				size = Files.copy(body, tempFile, StandardCopyOption.REPLACE_EXISTING);
+				if (size == 0)
+				{
+					Files.delete(tempFile);
+					return error(400, "Chybí XML katalogu");
+				}
+				// a catalogue being processed keeps reading the replaced file
+				Files.move(tempFile, catalogue, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				Files.deleteIfExists(tempFile);
+				throw e;
+			}
+		}
+		catch (RequestTooLargeException e)
+		{
+			return error(413, "Požadavek je větší než " + MAX_CATALOGUE_BYTES + " bajtů");
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Cannot store catalogue {} pushed by API client {}", fileName, clientId, e);
+			return error(500, "Katalog se nepodařilo uložit");
+		}
+
+		LOG.info("API client {} pushed catalogue {} ({} bytes)", clientId, fileName, size);
+		boolean started = getInstance(ProductSheetJobCoordinator.class).ingest(catalogue.toFile(), "API " + clientId);
+		return json(202, new IngestResult(fileName, size, started));
+	}
+
+	private ResourceResponse jobStatus()
+	{
+		var coordinator = getInstance(ProductSheetJobCoordinator.class);
+		return json(200, new JobStatus(coordinator.isRunning(), coordinator.getCurrentTrigger(), coordinator.getProgress()));
+	}
+
+	/**
+	 * Result of a pushed catalogue.
+	 *
+	 * @param fileName
+	 *            name under which the catalogue is stored
+	 * @param size
+	 *            size of the catalogue in bytes
+	 * @param started
+	 *            true if the job started for it, false if it waits for the running job
+	 */
+	record IngestResult(String fileName, long size, boolean started)
+	{
+	}
+
+	/**
+	 * State of the product sheet job.
+	 *
+	 * @param running
+	 *            true if the job is running
+	 * @param trigger
+	 *            what triggered the running job
+	 * @param progress
+	 *            progress of the running job, or the final progress of the last run
+	 */
+	record JobStatus(boolean running, String trigger, UploadProgress progress)
+	{
+	}
+}
@@ -16,10 +16,88 @@
  */
 package cz.solight.generator.xmltopdf.api;
 
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.BiConsumer;
+
 import com.google.inject.ImplementedBy;
 
+import cz.solight.generator.xmltopdf.pojo.OfferGenerationProgress;
+import cz.solight.generator.xmltopdf.pojo.PdfDisplayOptions;
+import cz.solight.generator.xmltopdf.pojo.ProductSheetFormat;
+import cz.solight.generator.xmltopdf.service.OfferGenerationService.GenerationRejectedException;
+
+/**
+ * Headless PDF generation for integrating systems, used by {@link PdfApiResource}. Offers are
+ * generated by the same background workers as offers uploaded in the UI, product sheets are
+ * rendered while the catalogue is being read.
+ */
 @ImplementedBy(PdfGenerator.class)
 public interface IPdfGenerator
 {
+	/**
+	 * Submits generation of an offer PDF.
+	 *
+	 * @param clientId
+	 *            ID of the API client, owner of the job and for the per-client limit of unfinished
+	 *            jobs
+	 * @param xml
+	 *            content of the offer XML
+	 * @param options
+	 *            the display options
+	 * @return ID of the job
+	 * @throws GenerationRejectedException
+	 *             if the client has too many unfinished jobs or the queue is full
+	 */
+	String submitOffer(String clientId, byte[] xml, PdfDisplayOptions options);
+
+	/**
+	 * Returns the state of an offer job submitted by the client.
+	 *
+	 * @param clientId
+	 *            ID of the API client asking
+	 * @param jobId
+	 *            ID of the job
+	 * @return the state, null if the job is unknown, was submitted by another client or its state
+	 *         was already discarded
+	 */
+	OfferGenerationProgress getOfferProgress(String clientId, String jobId);
+
+	/**
+	 * Waits until an offer job submitted by the client finishes.
+	 *
+	 * @param clientId
+	 *            ID of the API client asking
+	 * @param jobId
+	 *            ID of the job
+	 * @param timeout
+	 *            how long to wait at most
+	 * @return the state, unfinished if the timeout elapsed; null if the job is unknown or was
+	 *         submitted by another client
+	 * @throws InterruptedException
+	 *             if the waiting thread is interrupted
+	 */
+	OfferGenerationProgress awaitOffer(String clientId, String jobId, Duration timeout) throws InterruptedException;
+
+	/**
+	 * @return directory of the offer PDFs, see {@link OfferGenerationProgress#pdfFileName()}
+	 */
+	Path getOfferDirectory();
 
+	/**
+	 * Renders product sheets of a catalogue while it is being read, every product is passed on as
+	 * soon as its PDFs are rendered. Products whose PDFs fail are skipped.
+	 *
+	 * @param xml
+	 *            the catalogue XML (produktove_listy.xml format)
+	 * @param formats
+	 *            formats to render for every product
+	 * @param pdfConsumer
+	 *            consumer receiving the file name and content of each PDF
+	 * @return codes of products whose PDFs failed to render
+	 */
+	List<String> renderProductSheets(InputStream xml, List<ProductSheetFormat> formats,
+		BiConsumer<String, byte[]> pdfConsumer);
 }
@@ -0,0 +1,375 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.api;
+
+import static cz.solight.generator.xmltopdf.api.ApiResponses.error;
+import static cz.solight.generator.xmltopdf.api.ApiResponses.json;
+import static cz.solight.generator.xmltopdf.api.ApiResponses.methodNotAllowed;
+import static cz.solight.generator.xmltopdf.api.ApiResponses.unauthorized;
+import static name.berries.app.guice.GuiceStaticHolder.getInstance;
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.wicket.request.resource.AbstractResource;
+import org.apache.wicket.request.resource.ContentDisposition;
+import org.apache.wicket.util.string.StringValueConversionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.solight.generator.xmltopdf.api.SizeLimitedInputStream.RequestTooLargeException;
+import cz.solight.generator.xmltopdf.pojo.OfferGenerationProgress;
+import cz.solight.generator.xmltopdf.pojo.OfferGenerationProgress.Phase;
+import cz.solight.generator.xmltopdf.pojo.PdfDisplayOptions;
+import cz.solight.generator.xmltopdf.pojo.PdfLocale;
+import cz.solight.generator.xmltopdf.pojo.ProductSheetFormat;
+import cz.solight.generator.xmltopdf.service.OfferGenerationService.GenerationRejectedException;
+import cz.solight.generator.xmltopdf.service.ProductSheetPdfGenerator;
+import cz.solight.generator.xmltopdf.wicket.components.PdfFileResource;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * HTTP API for generating PDFs without the UI, for integrating systems such as the ERP or the B2B
+ * shop. Requests are authenticated by {@link ApiAuthenticator}. Mounted at {@code /api/v1}:
+ * <ul>
+ * <li>{@code POST offers} with the offer XML as the body generates the offer PDF. Query parameters
+ * {@code locale}, {@code showPriceMy}, {@code showPriceVOC} and {@code showPriceMOC} set the display
+ * options. The PDF is returned when it is ready within {@code api.syncWaitSeconds}, otherwise (or
+ * with {@code async=true}) 202 Accepted with the job ID is returned.</li>
+ * <li>{@code GET offers/{jobId}} returns the state of the job as JSON.</li>
+ * <li>{@code GET offers/{jobId}/pdf} returns the generated PDF.</li>
+ * <li>{@code POST product-sheets} with a catalogue XML (produktove_listy.xml format) as the body
+ * returns a ZIP archive of the product sheets, optionally of a single {@code format} only. The
+ * archive is streamed while the catalogue is being read; products that failed and errors that occur
+ * after the response started are listed in {@code chyby.txt} at the end of the archive.</li>
+ * </ul>
+ *
+ * <p>
+ * Request bodies are limited to {@code api.maxRequestMegabytes}. Offers share the queue and workers
+ * with the UI, a full queue is answered with 503 and a client with too many unfinished offers with
+ * 429. Concurrent catalogue requests are limited by {@code api.maxConcurrentProductSheetRequests}.
+ * An offer job is visible only to the client that submitted it, other clients get 404.
+ * </p>
+ */
+public class PdfApiResource extends AbstractResource
+{
+	private static final long serialVersionUID = 1L;
+	private static final Logger LOG = LoggerFactory.getLogger(PdfApiResource.class);
+	private static final long MAX_REQUEST_BYTES = getDefaultConfiguration().getLong("api.maxRequestMegabytes", 20) * 1024
+		* 1024;
+	private static final Duration SYNC_WAIT = Duration
+		.ofSeconds(getDefaultConfiguration().getLong("api.syncWaitSeconds", 120));
+	private static final int MAX_CONCURRENT_PRODUCT_SHEET_REQUESTS = getDefaultConfiguration()
+		.getInt("api.maxConcurrentProductSheetRequests", 1);
+	private static final String RETRY_AFTER_SECONDS = "30";
+	private static final String OFFERS = "offers";
+	private static final String PRODUCT_SHEETS = "product-sheets";
+	private static final String ERRORS_ENTRY = "chyby.txt";
+
+	private final Semaphore productSheetPermits = new Semaphore(MAX_CONCURRENT_PRODUCT_SHEET_REQUESTS);
+	private final PdfFileResource offerPdfResource;
+
+	/**
+	 * Construct.
+	 */
+	public PdfApiResource()
+	{
+		offerPdfResource = new PdfFileResource(getInstance(IPdfGenerator.class).getOfferDirectory().toString(),
+			Duration.ZERO);
+	}
+
+	@Override
+	protected ResourceResponse newResourceResponse(Attributes attributes)
+	{
+		var request = (HttpServletRequest)attributes.getRequest().getContainerRequest();
+		var clientId = getInstance(ApiAuthenticator.class).authenticate(request);
+		if (clientId == null)
+		{
+			return unauthorized();
+		}
+
+		var parameters = attributes.getParameters();
+		var method = request.getMethod();
+		var resource = parameters.get(0).toString("");
+		int segments = parameters.getIndexedCount();
+		if (OFFERS.equals(resource) && segments == 1)
+		{
+			return "POST".equals(method) ? submitOffer(attributes, request, clientId) : methodNotAllowed("POST");
+		}
+		if (OFFERS.equals(resource) && segments == 2)
+		{
+			return "GET".equals(method) ? offerStatus(parameters.get(1).toString(), clientId) : methodNotAllowed("GET");
+		}
+		if (OFFERS.equals(resource) && segments == 3 && "pdf".equals(parameters.get(2).toString()))
+		{
+			return "GET".equals(method) ? offerPdf(attributes, parameters.get(1).toString(), clientId)
+				: methodNotAllowed("GET");
+		}
+		if (PRODUCT_SHEETS.equals(resource) && segments == 1)
+		{
+			return "POST".equals(method) ? renderProductSheets(attributes, request, clientId) : methodNotAllowed("POST");
+		}
+		return error(404, "Neznámá adresa API");
+	}
+
+	private ResourceResponse submitOffer(Attributes attributes, HttpServletRequest request, String clientId)
+	{
+		var parameters = attributes.getParameters();
+		PdfDisplayOptions options;
+		boolean async;
+		try
+		{
+			options = new PdfDisplayOptions(parameters.get("showPriceMy").toBoolean(true),
+				parameters.get("showPriceVOC").toBoolean(true), parameters.get("showPriceMOC").toBoolean(true));
+			options.setLocale(PdfLocale.valueOf(parameters.get("locale").toString(PdfLocale.CZ.name()).toUpperCase()));
+			async = parameters.get("async").toBoolean(false);
+		}
+		catch (StringValueConversionException | IllegalArgumentException e)
+		{
+			return error(400, "Neplatné parametry: " + e.getMessage());
+		}
+
+		byte[] xml;
+		try
+		{
+			xml = readBody(request);
+		}
+		catch (RequestTooLargeException e)
+		{
+			return error(413, "Požadavek je větší než " + MAX_REQUEST_BYTES + " bajtů");
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Cannot read offer XML of API client {}", clientId, e);
+			return error(400, "Nelze přečíst tělo požadavku");
+		}
+		if (xml.length == 0)
+		{
+			return error(400, "Chybí XML nabídky");
+		}
+
+		String jobId;
+		var generator = getInstance(IPdfGenerator.class);
+		try
+		{
+			jobId = generator.submitOffer(clientId, xml, options);
+		}
+		catch (GenerationRejectedException e)
+		{
+			LOG.info("Offer generation of API client {} rejected: {}", clientId, e.getMessage());
+			var response = error(e.isQueueFull() ? 503 : 429, e.getMessage());
+			response.getHeaders().addHeader("Retry-After", RETRY_AFTER_SECONDS);
+			return response;
+		}
+		LOG.info("API client {} submitted offer job {}", clientId, jobId);
+
+		var progress = generator.getOfferProgress(clientId, jobId);
+		if (!async)
+		{
+			try
+			{
+				progress = generator.awaitOffer(clientId, jobId, SYNC_WAIT);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (!async && progress != null && progress.phase() == Phase.DONE)
+		{
+			return offerPdfResource.newFileResponse(attributes, progress.pdfFileName());
+		}
+		var response = json(progress != null && progress.phase() == Phase.FAILED ? 422 : 202, JobStatus.of(jobId, progress));
+		response.getHeaders().addHeader("Location", OFFERS + "/" + jobId);
+		return response;
+	}
+
+	private ResourceResponse offerStatus(String jobId, String clientId)
+	{
+		var progress = getInstance(IPdfGenerator.class).getOfferProgress(clientId, jobId);
+		if (progress == null)
+		{
+			return error(404, "Neznámá úloha " + jobId);
+		}
+		return json(200, JobStatus.of(jobId, progress));
+	}
+
+	private ResourceResponse offerPdf(Attributes attributes, String jobId, String clientId)
+	{
+		var progress = getInstance(IPdfGenerator.class).getOfferProgress(clientId, jobId);
+		if (progress == null)
+		{
+			return error(404, "Neznámá úloha " + jobId);
+		}
+		if (progress.phase() != Phase.DONE)
+		{
+			return json(409, JobStatus.of(jobId, progress));
+		}
+		return offerPdfResource.newFileResponse(attributes, progress.pdfFileName());
+	}
+
+	private ResourceResponse renderProductSheets(Attributes attributes, HttpServletRequest request, String clientId)
+	{
+		List<ProductSheetFormat> formats;
+		try
+		{
+			var format = attributes.getParameters().get("format").toOptionalString();
+			formats = format != null ? List.of(ProductSheetFormat.valueOf(format.toUpperCase()))
+				: ProductSheetPdfGenerator.PRODUCT_FORMATS;
+		}
+		catch (IllegalArgumentException e)
+		{
+			return error(400, "Neplatný formát produktového listu");
+		}
+		if (request.getContentLengthLong() > MAX_REQUEST_BYTES)
+		{
+			return error(413, "Požadavek je větší než " + MAX_REQUEST_BYTES + " bajtů");
+		}
+		if (!productSheetPermits.tryAcquire())
+		{
+			LOG.info("Product sheet request of API client {} rejected, too many running", clientId);
+			var response = error(503, "Server právě generuje jiné produktové listy, zkuste to prosím za chvíli");
+			response.getHeaders().addHeader("Retry-After", RETRY_AFTER_SECONDS);
+			return response;
+		}
+
+		LOG.info("API client {} requested product sheets", clientId);
+		var response = new ResourceResponse();
+		response.disableCaching();
+		response.setFileName("produktove-listy.zip");
+		response.setContentDisposition(ContentDisposition.ATTACHMENT);
+		response.setContentType("application/zip");
+		response.setWriteCallback(new WriteCallback()
+		{
+			@Override
+			public void writeData(Attributes attributes) throws IOException
+			{
+				try
+				{
+					writeProductSheets(request, formats, attributes);
+				}
+				finally
+				{
+					productSheetPermits.release();
+				}
+			}
+		});
+		return response;
+	}
+
+	private void writeProductSheets(HttpServletRequest request, List<ProductSheetFormat> formats, Attributes attributes)
+		throws IOException
+	{
+		// the response stream is not closed, it belongs to the container
+		var zip = new ZipOutputStream(attributes.getResponse().getOutputStream());
+		zip.setLevel(Deflater.BEST_SPEED);
+		var errors = new StringBuilder();
+		try (var body = new SizeLimitedInputStream(request.getInputStream(), MAX_REQUEST_BYTES))
+		{
+			var failedCodes = getInstance(IPdfGenerator.class).renderProductSheets(body, formats, (filename, pdf) -> {
+				try
+				{
+					zip.putNextEntry(new ZipEntry(filename));
+					zip.write(pdf);
+					zip.closeEntry();
+					// send the finished product now rather than when the buffers fill up
+					zip.flush();
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+			});
+			failedCodes.forEach(code -> errors.append(code).append(": PDF se nepodařilo vygenerovat\n"));
+		}
+		catch (RuntimeException e)
+		{
+			var clientGone = ExceptionUtils.throwableOfType(e, UncheckedIOException.class);
+			if (clientGone != null)
+			{
+				throw clientGone.getCause();
+			}
+			LOG.warn("Product sheet request failed", e);
+			errors.append(ExceptionUtils.throwableOfType(e, RequestTooLargeException.class) != null
+				? "Požadavek je větší než " + MAX_REQUEST_BYTES + " bajtů"
+				: "Chyba při zpracování XML: " + e.getMessage()).append('\n');
+		}
+
+		if (!errors.isEmpty())
+		{
+			zip.putNextEntry(new ZipEntry(ERRORS_ENTRY));
+			zip.write(errors.toString().getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+		zip.finish();
+	}
+
+	/**
+	 * Reads the whole request body, at most {@link #MAX_REQUEST_BYTES}.
+	 */
+	private static byte[] readBody(HttpServletRequest request) throws IOException
+	{
+		if (request.getContentLengthLong() > MAX_REQUEST_BYTES)
+		{
+			throw new RequestTooLargeException(MAX_REQUEST_BYTES);
+		}
+		try (var body = new SizeLimitedInputStream(request.getInputStream(), MAX_REQUEST_BYTES))
+		{
+			return body.readAllBytes();
+		}
+	}
+
+	/**
+	 * State of an offer job as returned by the API.
+	 *
+	 * @param jobId
+	 *            ID of the job
+	 * @param phase
+	 *            current phase, null if the state was already discarded
+	 * @param queuePosition
+	 *            number of jobs waiting before this one
+	 * @param docNumber
+	 *            number of the parsed offer, null until the XML is parsed
+	 * @param productCount
+	 *            number of products in the offer
+	 * @param error
+	 *            error message if the generation failed
+	 */
+	record JobStatus(String jobId, Phase phase, int queuePosition, String docNumber, int productCount,
+		String error)
+	{
+		static JobStatus of(String jobId, OfferGenerationProgress progress)
+		{
+			if (progress == null)
+			{
+				return new JobStatus(jobId, null, 0, null, 0, null);
+			}
+			return new JobStatus(jobId, progress.phase(), progress.queuePosition(), progress.docNumber(),
+				progress.productCount(), progress.error());
+		}
+	}
+}
@@ -16,10 +16,135 @@
  */
 package cz.solight.generator.xmltopdf.api;
 
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.solight.generator.xmltopdf.pojo.OfferGenerationProgress;
+import cz.solight.generator.xmltopdf.pojo.PdfDisplayOptions;
+import cz.solight.generator.xmltopdf.pojo.ProductSheetFormat;
+import cz.solight.generator.xmltopdf.service.OfferGenerationService;
+import cz.solight.generator.xmltopdf.service.ProductSheetPdfGenerator;
+import cz.solight.generator.xmltopdf.service.ProductSheetXmlParser;
+import cz.solight.generator.xmltopdf.util.CancellationToken;
+
+import jakarta.inject.Inject;
+
 /**
+ * Default {@link IPdfGenerator}, offers are submitted to {@link OfferGenerationService} and their
+ * PDFs are written to a directory of the API.
+ *
  * @author vit
  */
 public class PdfGenerator implements IPdfGenerator
 {
+	private static final Logger LOG = LoggerFactory.getLogger(PdfGenerator.class);
+	private static final Path OUTPUT_DIRECTORY = Path
+		.of(getDefaultConfiguration().getString("api.outputDirectory", "/data/tmp/api"));
+	private static final int MAX_JOBS_PER_CLIENT = getDefaultConfiguration().getInt("api.maxJobsPerClient", 4);
+	/** Prefix of the job owner of API clients, so they cannot collide with user session IDs. */
+	private static final String OWNER_PREFIX = "api:";
+
+	@Inject
+	private OfferGenerationService offerGenerationService;
+
+	@Inject
+	private ProductSheetXmlParser productSheetXmlParser;
+
+	@Inject
+	private ProductSheetPdfGenerator productSheetPdfGenerator;
+
+	@Override
+	public String submitOffer(String clientId, byte[] xml, PdfDisplayOptions options)
+	{
+		var outputPath = OUTPUT_DIRECTORY.resolve("nabidka-" + UUID.randomUUID() + ".pdf");
+		return offerGenerationService.submit(owner(clientId), MAX_JOBS_PER_CLIENT, xml, options, outputPath);
+	}
+
+	@Override
+	public OfferGenerationProgress getOfferProgress(String clientId, String jobId)
+	{
+		return offerGenerationService.getProgress(jobId, owner(clientId));
+	}
+
+	@Override
+	public OfferGenerationProgress awaitOffer(String clientId, String jobId, Duration timeout) throws InterruptedException
+	{
+		var result = offerGenerationService.getResult(jobId, owner(clientId));
+		if (result == null)
+		{
+			return null;
+		}
+		try
+		{
+			return result.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			return offerGenerationService.getProgress(jobId, owner(clientId));
+		}
+		catch (ExecutionException e)
+		{
+			// the result is never completed exceptionally
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static String owner(String clientId)
+	{
+		return OWNER_PREFIX + clientId;
+	}
+
+	@Override
+	public Path getOfferDirectory()
+	{
+		return OUTPUT_DIRECTORY;
+	}
 
+	@Override
+	public List<String> renderProductSheets(InputStream xml, List<ProductSheetFormat> formats,
+		BiConsumer<String, byte[]> pdfConsumer)
+	{
+		var failedCodes = new ArrayList<String>();
+		int count = productSheetXmlParser.parse(xml, product -> {
+			CancellationToken.current().throwIfCancelled();
+			var pdfs = new LinkedHashMap<String, byte[]>();
+			try
+			{
+				for (var format : formats)
+				{
+					var filename = format.buildFilename(product.getCode());
+					pdfs.put(filename, productSheetPdfGenerator.renderPdf(product, format, filename));
+				}
+			}
+			catch (CancellationException e)
+			{
+				throw e;
+			}
+			catch (Exception e)
+			{
+				LOG.error("Failed to render product sheet of {} for API: {}", product.getCode(), e.getMessage(), e);
+				failedCodes.add(product.getCode());
+				return;
+			}
+			// failures of the consumer (e.g. the client went away) end the rendering
+			pdfs.forEach(pdfConsumer);
+		});
+		LOG.info("Rendered product sheets of {} products for API, {} failed", count, failedCodes.size());
+		return failedCodes;
+	}
 }
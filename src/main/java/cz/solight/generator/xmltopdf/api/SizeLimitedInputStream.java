@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.api;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream failing with {@link RequestTooLargeException} once more than a given number of bytes
+ * is read, so that a request body can be processed while it arrives without trusting its declared
+ * length.
+ */
+class SizeLimitedInputStream extends FilterInputStream
+{
+	private final long maxBytes;
+	private long count;
+
+	/**
+	 * Construct.
+	 *
+	 * @param in
+	 *            the request body
+	 * @param maxBytes
+	 *            maximum number of bytes which may be read
+	 */
+	SizeLimitedInputStream(InputStream in, long maxBytes)
+	{
+		super(in);
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		int b = super.read();
+		if (b >= 0)
+		{
+			count(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		int read = super.read(b, off, len);
+		if (read > 0)
+		{
+			count(read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException
+	{
+		long skipped = super.skip(n);
+		count(skipped);
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	private void count(long read) throws RequestTooLargeException
+	{
+		count += read;
+		if (count > maxBytes)
+		{
+			throw new RequestTooLargeException(maxBytes);
+		}
+	}
+
+	/**
+	 * Thrown when the request body is longer than allowed.
+	 */
+	static class RequestTooLargeException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Construct.
+		 *
+		 * @param maxBytes
+		 *            maximum number of bytes of the request body
+		 */
+		RequestTooLargeException(long maxBytes)
+		{
+			super("Request body is larger than " + maxBytes + " bytes");
+		}
+	}
+}
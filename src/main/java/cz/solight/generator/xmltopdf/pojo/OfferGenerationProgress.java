@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.pojo;
+
+import java.io.Serializable;
+
+/**
+ * Immutable state of an offer PDF generation running in the background.
+ *
+ * @param phase
+ *            current phase of the generation
+ * @param queuePosition
+ *            number of jobs waiting before this one, only meaningful in {@link Phase#QUEUED}
+ * @param docNumber
+ *            number of the parsed offer, null until the XML is parsed
+ * @param productCount
+ *            number of products in the offer, 0 until the XML is parsed
+ * @param pdfFileName
+ *            name of the generated PDF file in the output directory
+ * @param uploadHash
+ *            SHA-256 hash of the uploaded XML, identifies the upload for regeneration
+ * @param error
+ *            error message if the generation failed, null otherwise
+ */
+public record OfferGenerationProgress(
+	Phase phase,
+	int queuePosition,
+	String docNumber,
+	int productCount,
+	String pdfFileName,
+	String uploadHash,
+	String error) implements Serializable
+{
+	/**
+	 * Phases of the offer generation.
+	 */
+	public enum Phase
+	{
+		/** Waiting for a free worker. */
+		QUEUED,
+		/** Parsing the uploaded XML. */
+		PARSING,
+		/** Rendering the PDF (images, templates and Gotenberg). */
+		RENDERING,
+		/** PDF is ready. */
+		DONE,
+		/** Generation failed. */
+		FAILED
+	}
+
+	/**
+	 * Creates the state of a job waiting for a worker.
+	 *
+	 * @param pdfFileName
+	 *            name of the PDF file that will be generated
+	 * @param uploadHash
+	 *            SHA-256 hash of the uploaded XML
+	 * @param queuePosition
+	 *            number of jobs waiting before this one
+	 * @return queued state
+	 */
+	public static OfferGenerationProgress queued(String pdfFileName, String uploadHash, int queuePosition)
+	{
+		return new OfferGenerationProgress(Phase.QUEUED, queuePosition, null, 0, pdfFileName, uploadHash, null);
+	}
+
+	/**
+	 * @return copy of this state in the parsing phase
+	 */
+	public OfferGenerationProgress parsing()
+	{
+		return new OfferGenerationProgress(Phase.PARSING, 0, null, 0, pdfFileName, uploadHash, null);
+	}
+
+	/**
+	 * Creates a copy of this state in the rendering phase.
+	 *
+	 * @param docNumber
+	 *            number of the parsed offer
+	 * @param productCount
+	 *            number of products in the offer
+	 * @return rendering state
+	 */
+	public OfferGenerationProgress rendering(String docNumber, int productCount)
+	{
+		return new OfferGenerationProgress(Phase.RENDERING, 0, docNumber, productCount, pdfFileName, uploadHash, null);
+	}
+
+	/**
+	 * @return copy of this state in the done phase
+	 */
+	public OfferGenerationProgress done()
+	{
+		return new OfferGenerationProgress(Phase.DONE, 0, docNumber, productCount, pdfFileName, uploadHash, null);
+	}
+
+	/**
+	 * Creates a copy of this state in the failed phase.
+	 *
+	 * @param errorMessage
+	 *            the error message describing what went wrong
+	 * @return failed state
+	 */
+	public OfferGenerationProgress failed(String errorMessage)
+	{
+		return new OfferGenerationProgress(Phase.FAILED, 0, docNumber, productCount, pdfFileName, uploadHash, errorMessage);
+	}
+
+	/**
+	 * @return true if the generation finished, successfully or not
+	 */
+	public boolean isFinished()
+	{
+		return phase == Phase.DONE || phase == Phase.FAILED;
+	}
+}
@@ -80,4 +80,23 @@ public enum ProductSheetFormat
 	{
 		return productCode + fileSuffix;
 	}
+
+	/**
+	 * Extracts the product code from an output filename built by {@link #buildFilename(String)}.
+	 *
+	 * @param filename
+	 *            the filename
+	 * @return the product code, or null if the filename does not belong to any format
+	 */
+	public static String parseProductCode(String filename)
+	{
+		for (var format : values())
+		{
+			if (filename.endsWith(format.fileSuffix))
+			{
+				return filename.substring(0, filename.length() - format.fileSuffix.length());
+			}
+		}
+		return null;
+	}
 }
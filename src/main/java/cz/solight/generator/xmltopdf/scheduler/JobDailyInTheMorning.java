@@ -16,6 +16,8 @@
  */
 package cz.solight.generator.xmltopdf.scheduler;
 
+import static name.berries.app.guice.GuiceStaticHolder.getInstance;
+
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 import org.slf4j.Logger;
@@ -43,8 +45,7 @@ public class JobDailyInTheMorning extends WicketAppBoundJob<PdfGeneratorApplicat
 	public void executeWithAppBoundInContext(JobExecutionContext context, PdfGeneratorApplication application)
 		throws JobExecutionException
 	{
-		JobAction action = new JobAction();
-		JobOneTime.uploadConvertedProductSheets(action);
+		getInstance(ProductSheetJobCoordinator.class).runAndWait(false, "daily schedule");
 	}
 
 }
@@ -18,18 +18,30 @@ package cz.solight.generator.xmltopdf.scheduler;
 
 import static name.berries.app.guice.GuiceStaticHolder.getInstance;
 
-import java.io.FileInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import cz.solight.generator.xmltopdf.pojo.ProductSheetFormat;
 import cz.solight.generator.xmltopdf.service.FtpSyncService;
+import cz.solight.generator.xmltopdf.service.ProductSheetChangeDetector;
+import cz.solight.generator.xmltopdf.service.ProductSheetDelta;
 import cz.solight.generator.xmltopdf.service.ProductSheetPdfGenerator;
 import cz.solight.generator.xmltopdf.service.ProductSheetXmlParser;
 import cz.solight.generator.xmltopdf.service.SftpConfig;
+import cz.solight.generator.xmltopdf.service.SftpUploadQueue;
+import cz.solight.generator.xmltopdf.util.CancellationToken;
 import cz.solight.generator.xmltopdf.wicket.app.PdfGeneratorApplication;
 import cz.solight.generator.xmltopdf.wicket.components.UploadProgress;
 
@@ -54,15 +66,14 @@ public class JobOneTime extends WicketAppBoundJob<PdfGeneratorApplication>
 	public void executeWithAppBoundInContext(JobExecutionContext context, PdfGeneratorApplication application)
 		throws JobExecutionException
 	{
-		JobAction action = new JobAction();
-
 		if (!WicketAppUtil.localMode())
-			uploadConvertedProductSheets(action);
+			getInstance(ProductSheetJobCoordinator.class).runAndWait(false, "startup");
 	}
 
 	/**
 	 * Executes the product sheet upload job: downloads XMLs from FTP, converts them to PDF, and
-	 * uploads back.
+	 * uploads back. Triggers should go through {@link ProductSheetJobCoordinator}, so that runs do
+	 * not overlap.
 	 *
 	 * @param action
 	 *            the job action for error handling and logging
@@ -83,59 +94,277 @@ public class JobOneTime extends WicketAppBoundJob<PdfGeneratorApplication>
 	 */
 	public static void uploadConvertedProductSheets(JobAction action, Consumer<UploadProgress> progressConsumer)
 	{
+		uploadConvertedProductSheets(action, progressConsumer, false);
+	}
+
+	/**
+	 * Executes the product sheet upload job with progress reporting: downloads XMLs from FTP,
+	 * converts the products that changed since the previous run to PDF, and uploads them back.
+	 *
+	 * @param action
+	 *            the job action for error handling and logging
+	 * @param progressConsumer
+	 *            consumer for progress updates, may be null
+	 * @param forceFullRebuild
+	 *            if true, PDFs of all products are regenerated regardless of changes (e.g. after a
+	 *            template change)
+	 */
+	public static void uploadConvertedProductSheets(JobAction action, Consumer<UploadProgress> progressConsumer,
+		boolean forceFullRebuild)
+	{
+		Consumer<UploadProgress> progress = progressConsumer != null ? progressConsumer : p -> {
+		};
+
 		action.accept("Download XMLs from FTP, convert to PDF, upload back", () -> {
 
 			try
 			{
 				var ftp = getInstance(FtpSyncService.class);
-				ftp.syncXmlFiles(new SftpConfig(), (file, consumer) -> {
-					try
-					{
-						ProductSheetXmlParser sheetXmlParser = getInstance(ProductSheetXmlParser.class);
-						ProductSheetPdfGenerator sheetPdfGenerator = getInstance(ProductSheetPdfGenerator.class);
-
-						var products = sheetXmlParser.parse(new FileInputStream(file));
-						int total = products.size();
-
-						// Report initial progress with total count
-						if (progressConsumer != null)
-						{
-							progressConsumer.accept(UploadProgress.running(total, 0, null));
-						}
-
-						sheetPdfGenerator.generateAllPdfs(products, consumer, (current, productCode) -> {
-							if (progressConsumer != null)
-							{
-								progressConsumer.accept(UploadProgress.running(total, current, productCode));
-							}
-						});
-
-						// Report completion
-						if (progressConsumer != null)
-						{
-							progressConsumer.accept(UploadProgress.completed(total));
-						}
-					}
-					catch (Exception e)
-					{
-						if (progressConsumer != null)
-						{
-							progressConsumer.accept(UploadProgress.failed(e.getMessage()));
-						}
-						throw new RuntimeException(e);
-					}
-				});
+				var config = new SftpConfig();
+				// a full rebuild has to process the XML even if it did not change on the server
+				config.setSkipUnchangedFiles(!forceFullRebuild);
+
+				int processed;
+				if (config.isStreamDownloads())
+				{
+					processed = ftp.syncXmlStreams(config, (filename, inputStream, uploadQueue) -> processCatalogueStream(
+						filename, inputStream, uploadQueue, progress, forceFullRebuild));
+				}
+				else
+				{
+					processed = ftp.syncXmlFiles(config,
+						(file, uploadQueue) -> processCatalogueFile(file, uploadQueue, progress, forceFullRebuild));
+				}
+
+				if (processed == 0)
+				{
+					progress.accept(UploadProgress.completed(0));
+				}
 			}
 			catch (Exception e)
 			{
 				// Report SFTP connection errors and other top-level failures
-				if (progressConsumer != null)
-				{
-					progressConsumer.accept(UploadProgress.failed(e.getMessage()));
-				}
+				progress.accept(UploadProgress.failed(failureMessage(e)));
+				throw e;
+			}
+
+		});
+	}
+
+	/**
+	 * Executes the product sheet upload job for a catalogue pushed to the application instead of
+	 * downloaded from FTP: converts the products that changed since the previous run to PDF and
+	 * uploads them to FTP. The catalogue shares the change detection state with the downloaded
+	 * catalogue of the same file name.
+	 *
+	 * @param action
+	 *            the job action for error handling and logging
+	 * @param progressConsumer
+	 *            consumer for progress updates, may be null
+	 * @param catalogue
+	 *            the pushed catalogue XML
+	 */
+	public static void uploadConvertedProductSheets(JobAction action, Consumer<UploadProgress> progressConsumer,
+		File catalogue)
+	{
+		Consumer<UploadProgress> progress = progressConsumer != null ? progressConsumer : p -> {
+		};
+
+		action.accept("Convert pushed XML " + catalogue.getName() + " to PDF, upload to FTP", () -> {
+
+			try
+			{
+				getInstance(FtpSyncService.class).processLocalXmlFile(new SftpConfig(), catalogue,
+					(file, uploadQueue) -> processCatalogueFile(file, uploadQueue, progress, false));
+			}
+			catch (Exception e)
+			{
+				// Report SFTP connection errors and other top-level failures
+				progress.accept(UploadProgress.failed(failureMessage(e)));
 				throw e;
 			}
 
 		});
 	}
+
+	/**
+	 * Parses a downloaded catalogue and generates the PDFs of added and changed products.
+	 */
+	private static void processCatalogueFile(File file, SftpUploadQueue uploadQueue, Consumer<UploadProgress> progress,
+		boolean forceFullRebuild)
+	{
+		try
+		{
+			ProductSheetXmlParser sheetXmlParser = getInstance(ProductSheetXmlParser.class);
+			ProductSheetPdfGenerator sheetPdfGenerator = getInstance(ProductSheetPdfGenerator.class);
+			ProductSheetChangeDetector changeDetector = getInstance(ProductSheetChangeDetector.class);
+
+			var products = sheetXmlParser.parse(file);
+			var delta = changeDetector.detectChanges(file.getName(), products, forceFullRebuild);
+			var productsToGenerate = delta.getProductsToGenerate();
+			int total = productsToGenerate.size();
+
+			// Report initial progress with total count
+			progress.accept(withChangeCounts(UploadProgress.running(total, 0, null), delta));
+
+			Set<String> renderFailures;
+			uploadQueue.setUploadListener(delta::uploaded);
+			try
+			{
+				// PDFs are streamed from Gotenberg to the upload queue without temp files
+				var failedCodes = new HashSet<>(sheetPdfGenerator.renderAllPdfs(productsToGenerate, uploadQueue::accept,
+					(current, productCode) -> progress
+						.accept(withChangeCounts(UploadProgress.running(total, current, productCode), delta))));
+				renderFailures = Set.copyOf(failedCodes);
+
+				finishCatalogue(delta, failedCodes, uploadQueue, changeDetector);
+			}
+			finally
+			{
+				closeJournal(delta, uploadQueue);
+			}
+			failIfNotRendered(renderFailures);
+			progress.accept(withChangeCounts(UploadProgress.completed(total), delta));
+		}
+		catch (Exception e)
+		{
+			progress.accept(UploadProgress.failed(failureMessage(e)));
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Parses a catalogue while it is downloaded and generates the PDFs of added and changed
+	 * products as soon as they are read. The catalogue size is not known in advance, progress is
+	 * estimated from the number of products of the previous run.
+	 */
+	private static void processCatalogueStream(String filename, InputStream inputStream, SftpUploadQueue uploadQueue,
+		Consumer<UploadProgress> progress, boolean forceFullRebuild)
+	{
+		try
+		{
+			ProductSheetChangeDetector changeDetector = getInstance(ProductSheetChangeDetector.class);
+
+			var delta = changeDetector.startDetection(filename, forceFullRebuild);
+			var failedCodes = new HashSet<String>();
+			var parsed = new AtomicInteger();
+			progress.accept(UploadProgress.running(delta.getPreviousCount(), 0, null));
+
+			Set<String> renderFailures;
+			uploadQueue.setUploadListener(delta::uploaded);
+			try
+			{
+				processStreamedProducts(inputStream, uploadQueue, progress, delta, failedCodes, parsed);
+				changeDetector.finishDetection(delta);
+				renderFailures = Set.copyOf(failedCodes);
+
+				finishCatalogue(delta, failedCodes, uploadQueue, changeDetector);
+			}
+			finally
+			{
+				closeJournal(delta, uploadQueue);
+			}
+			failIfNotRendered(renderFailures);
+			progress.accept(withChangeCounts(UploadProgress.completed(parsed.get()), delta));
+		}
+		catch (Exception e)
+		{
+			progress.accept(UploadProgress.failed(failureMessage(e)));
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Parses the streamed catalogue and generates the PDFs of each added or changed product as soon
+	 * as it is read.
+	 */
+	private static void processStreamedProducts(InputStream inputStream, SftpUploadQueue uploadQueue,
+		Consumer<UploadProgress> progress, ProductSheetDelta delta, Set<String> failedCodes, AtomicInteger parsed)
+		throws Exception
+	{
+		ProductSheetXmlParser sheetXmlParser = getInstance(ProductSheetXmlParser.class);
+		ProductSheetPdfGenerator sheetPdfGenerator = getInstance(ProductSheetPdfGenerator.class);
+
+		sheetXmlParser.parse(inputStream, product -> {
+			CancellationToken.current().throwIfCancelled();
+			if (delta.classify(product))
+			{
+				try
+				{
+					sheetPdfGenerator.renderProductPdfs(product, uploadQueue::accept);
+				}
+				catch (CancellationException e)
+				{
+					throw e;
+				}
+				catch (Exception e)
+				{
+					log.error("Failed to generate PDFs for product {}: {}", product.getCode(), e.getMessage(), e);
+					failedCodes.add(product.getCode());
+				}
+			}
+			int current = parsed.incrementAndGet();
+			int estimatedTotal = Math.max(delta.getPreviousCount(), current);
+			progress.accept(withChangeCounts(UploadProgress.running(estimatedTotal, current, product.getCode()), delta));
+		});
+	}
+
+	/**
+	 * Waits for the pending uploads of a catalogue, so that they are still checkpointed, and
+	 * closes its journal. The journal is already deleted if the fingerprints were stored.
+	 */
+	private static void closeJournal(ProductSheetDelta delta, SftpUploadQueue uploadQueue)
+	{
+		uploadQueue.awaitCompletion();
+		uploadQueue.setUploadListener(null);
+		delta.getJournal().close();
+	}
+
+	/**
+	 * Waits for the uploads of a catalogue and stores the fingerprints of the products. Products
+	 * whose PDFs did not reach the server keep their previous fingerprint, so they are generated
+	 * again next time.
+	 */
+	private static void finishCatalogue(ProductSheetDelta delta, Set<String> failedCodes, SftpUploadQueue uploadQueue,
+		ProductSheetChangeDetector changeDetector)
+	{
+		for (var failedUpload : uploadQueue.awaitCompletion())
+		{
+			var code = ProductSheetFormat.parseProductCode(failedUpload);
+			if (code != null)
+			{
+				failedCodes.add(code);
+			}
+		}
+		changeDetector.saveFingerprints(delta, failedCodes);
+	}
+
+	/**
+	 * Fails the catalogue if the PDFs of some products could not be rendered. The fingerprints of
+	 * the other products are already stored; the failure keeps the XML from being recorded as
+	 * processed, so the failed products are retried by the next sync even if the XML is unchanged.
+	 */
+	private static void failIfNotRendered(Set<String> renderFailures)
+	{
+		if (!renderFailures.isEmpty())
+		{
+			throw new IllegalStateException("PDF se nepodařilo vygenerovat pro " + renderFailures.size() + " produktů: "
+				+ StringUtils.abbreviate(String.join(", ", renderFailures), 200));
+		}
+	}
+
+	/**
+	 * @return message of the failure, or the reason if the job was cancelled
+	 */
+	private static String failureMessage(Exception e)
+	{
+		var cancellation = ExceptionUtils.throwableOfType(e, CancellationException.class);
+		return cancellation != null ? cancellation.getMessage() : e.getMessage();
+	}
+
+	private static UploadProgress withChangeCounts(UploadProgress progress, ProductSheetDelta delta)
+	{
+		return progress.withChangeCounts(delta.getAddedCount(), delta.getChangedCount(), delta.getUnchangedCount(),
+			delta.getRemovedCount());
+	}
 }
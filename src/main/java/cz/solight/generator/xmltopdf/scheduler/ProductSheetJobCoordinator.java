@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.scheduler;
+
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.solight.generator.xmltopdf.util.CancellationToken;
+import cz.solight.generator.xmltopdf.wicket.components.UploadProgress;
+import cz.solight.generator.xmltopdf.wicket.components.UploadProgressBroadcaster;
+
+import jakarta.inject.Inject;
+
+/**
+ * Lets only one run of the product sheet job execute at a time. The job is triggered at startup,
+ * every morning and from the UI; a trigger arriving while the job runs does not start another run
+ * but attaches to the running one. The progress of the current (or last) run is kept here for all
+ * viewers.
+ *
+ * <p>
+ * A catalogue pushed to the application by {@link #ingest(File, String)} is processed by its own
+ * run. If the job is running, the catalogue waits and is processed right after the running job.
+ * </p>
+ *
+ * <p>
+ * Each run gets a {@link CancellationToken} with the configured deadline, bound to the job thread;
+ * {@link #cancel()} stops the run.
+ * </p>
+ *
+ * <p>
+ * Progress changes are pushed to connected pages by {@link UploadProgressBroadcaster}.
+ * </p>
+ */
+public class ProductSheetJobCoordinator
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ProductSheetJobCoordinator.class);
+	private static final Duration JOB_TIMEOUT = Duration
+		.ofMinutes(getDefaultConfiguration().getLong("productSheets.jobTimeoutMinutes", 240));
+
+	@Inject
+	private UploadProgressBroadcaster progressBroadcaster;
+
+	private final AtomicReference<UploadProgress> progress = new AtomicReference<>(UploadProgress.initial());
+	private CompletableFuture<UploadProgress> currentRun;
+	private String currentTrigger;
+	private CancellationToken currentCancellation;
+	private final Map<File, String> pendingCatalogues = new LinkedHashMap<>();
+
+	/**
+	 * Construct.
+	 */
+	public ProductSheetJobCoordinator()
+	{
+		super();
+	}
+
+	/**
+	 * Runs the job in the calling thread and waits for it. If the job is already running, waits for
+	 * the running job instead.
+	 *
+	 * @param forceFullRebuild
+	 *            if true, PDFs of all products are regenerated; ignored when attaching to a running
+	 *            job
+	 * @param trigger
+	 *            what triggered the job, for logging
+	 * @return the final progress of the run
+	 */
+	public UploadProgress runAndWait(boolean forceFullRebuild, String trigger)
+	{
+		return submit(forceFullRebuild, trigger, false, null).join();
+	}
+
+	/**
+	 * Starts the job in a background thread, unless it is already running.
+	 *
+	 * @param forceFullRebuild
+	 *            if true, PDFs of all products are regenerated; ignored when attaching to a running
+	 *            job
+	 * @param trigger
+	 *            what triggered the job, for logging
+	 * @return true if a new run was started, false if the trigger attached to the running job
+	 */
+	public synchronized boolean start(boolean forceFullRebuild, String trigger)
+	{
+		boolean wasRunning = isRunning();
+		submit(forceFullRebuild, trigger, true, null);
+		return !wasRunning;
+	}
+
+	/**
+	 * Starts the job for a catalogue pushed to the application, instead of downloading catalogues
+	 * from FTP. Only products that changed since the previous run are generated. If the job is
+	 * running, the catalogue is processed by another run right after it; a catalogue pushed again
+	 * before it is processed is processed once.
+	 *
+	 * @param catalogue
+	 *            the catalogue XML, it has to stay in place until it is processed
+	 * @param trigger
+	 *            what triggered the job, for logging
+	 * @return true if a new run was started, false if the catalogue waits for the running job
+	 */
+	public synchronized boolean ingest(File catalogue, String trigger)
+	{
+		if (isRunning())
+		{
+			LOG.info("Product sheet job triggered by {} is running, catalogue {} pushed by {} waits for it", currentTrigger,
+				catalogue.getName(), trigger);
+			pendingCatalogues.put(catalogue, trigger);
+			return false;
+		}
+		submit(false, trigger, true, catalogue);
+		return true;
+	}
+
+	/**
+	 * Cancels the running job. Rendering and uploads stop promptly, products finished so far are
+	 * kept in the journal for the next run.
+	 *
+	 * @return true if a running job was cancelled
+	 */
+	public synchronized boolean cancel()
+	{
+		if (currentCancellation == null)
+		{
+			return false;
+		}
+		LOG.info("Cancelling product sheet job triggered by {}", currentTrigger);
+		currentCancellation.cancel("Úloha byla zrušena");
+		return true;
+	}
+
+	/**
+	 * @return true if the job is running
+	 */
+	public synchronized boolean isRunning()
+	{
+		return currentRun != null;
+	}
+
+	/**
+	 * @return progress of the running job, or the final progress of the last run
+	 */
+	public UploadProgress getProgress()
+	{
+		return progress.get();
+	}
+
+	/**
+	 * @return what triggered the running job, null if it is not running
+	 */
+	public synchronized String getCurrentTrigger()
+	{
+		return currentTrigger;
+	}
+
+	private CompletableFuture<UploadProgress> submit(boolean forceFullRebuild, String trigger, boolean background,
+		File catalogue)
+	{
+		var application = Application.exists() ? Application.get() : null;
+		CompletableFuture<UploadProgress> run;
+		CancellationToken cancellation;
+		synchronized (this)
+		{
+			if (currentRun != null)
+			{
+				LOG.info("Product sheet job triggered by {} is already running, {} attaches to it", currentTrigger, trigger);
+				return currentRun;
+			}
+			LOG.info("Starting product sheet job triggered by {} (full rebuild: {})", trigger, forceFullRebuild);
+			run = new CompletableFuture<>();
+			currentRun = run;
+			currentTrigger = trigger;
+			cancellation = CancellationToken.withTimeout(JOB_TIMEOUT);
+			currentCancellation = cancellation;
+			progress.set(UploadProgress.initial());
+		}
+		progressBroadcaster.publish(application, progress.get());
+
+		Runnable job = () -> {
+			try (var scope = cancellation.bind())
+			{
+				execute(run, forceFullRebuild, catalogue, application);
+			}
+		};
+		if (background)
+		{
+			var thread = new Thread(() -> {
+				if (application != null)
+				{
+					ThreadContext.setApplication(application);
+				}
+				try
+				{
+					job.run();
+				}
+				finally
+				{
+					ThreadContext.detach();
+				}
+			}, "ProductSheetUpload-" + trigger);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		else
+		{
+			job.run();
+		}
+		return run;
+	}
+
+	private void execute(CompletableFuture<UploadProgress> run, boolean forceFullRebuild, File catalogue,
+		Application application)
+	{
+		try
+		{
+			if (catalogue != null)
+			{
+				JobOneTime.uploadConvertedProductSheets(new JobAction(), update -> updateProgress(application, update),
+					catalogue);
+			}
+			else
+			{
+				JobOneTime.uploadConvertedProductSheets(new JobAction(), update -> updateProgress(application, update),
+					forceFullRebuild);
+			}
+		}
+		catch (Exception e)
+		{
+			LOG.error("Error executing product sheet upload job", e);
+			updateProgress(application, UploadProgress.failed(e.getMessage()));
+		}
+		finally
+		{
+			// a run that ended without reporting its outcome must not look like it is still running
+			var last = progress.get();
+			if (!last.completed() && last.error() == null)
+			{
+				updateProgress(application, UploadProgress.failed("Úloha skončila bez výsledku"));
+			}
+			synchronized (this)
+			{
+				currentRun = null;
+				currentTrigger = null;
+				currentCancellation = null;
+			}
+			run.complete(progress.get());
+			startPendingCatalogue();
+		}
+	}
+
+	/**
+	 * Starts a run for the first catalogue pushed while the job was running, the following ones wait
+	 * for that run.
+	 */
+	private synchronized void startPendingCatalogue()
+	{
+		var pending = pendingCatalogues.entrySet().iterator();
+		if (!isRunning() && pending.hasNext())
+		{
+			var next = pending.next();
+			pending.remove();
+			ingest(next.getKey(), next.getValue());
+		}
+	}
+
+	private void updateProgress(Application application, UploadProgress update)
+	{
+		progress.set(update);
+		progressBroadcaster.publish(application, update);
+	}
+}
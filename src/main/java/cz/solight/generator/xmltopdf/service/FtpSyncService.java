@@ -16,25 +16,43 @@
  */
 package cz.solight.generator.xmltopdf.service;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.function.IOSupplier;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import cz.solight.generator.xmltopdf.util.CancellationToken;
+import cz.solight.generator.xmltopdf.util.PdfContentHash;
+
 import com.jcraft.jsch.ChannelSftp;
-import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
 import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import jakarta.inject.Inject;
 
 /**
  * Service for synchronizing XML files via SFTP. Downloads XML files from a remote directory,
@@ -45,8 +63,15 @@ public class FtpSyncService
 {
 	private static final Logger LOG = LoggerFactory.getLogger(FtpSyncService.class);
 	private static final String XML_EXTENSION = ".xml";
+	/** Suffix of files being uploaded, they are renamed to the final name once complete. */
+	static final String PART_EXTENSION = ".part";
+	/** Partial upload of a file, {@code .<name>.<16 hex digits of the content hash>.part}. */
+	private static final Pattern PART_FILE = Pattern.compile("\\.(.+)\\.[0-9a-f]{16}" + Pattern.quote(PART_EXTENSION));
 	private static final int SFTP_TIMEOUT_MS = 30_000;
 
+	@Inject
+	private SftpSessionPool sessionPool;
+
 	/**
 	 * Construct.
 	 */
@@ -64,18 +89,179 @@ public class FtpSyncService
 	 * @param config
 	 *            SFTP connection configuration
 	 * @param fileProcessor
-	 *            processor that receives the XML file and a callback to register output files. The
-	 *            callback should be called for each generated output file that needs to be
-	 *            uploaded.
+	 *            processor that receives the XML file and the upload queue. The queue should be
+	 *            called for each generated output file that needs to be uploaded; uploads run in the
+	 *            background and {@link SftpUploadQueue#awaitCompletion()} reports files that failed
+	 *            to upload.
+	 * @return number of XML files that were downloaded and processed, 0 if none changed since the
+	 *         last sync
+	 */
+	public int syncXmlFiles(SftpConfig config, BiConsumer<File, SftpUploadQueue> fileProcessor)
+	{
+		return sync(config, (sftpChannel, xmlFile, tempDir, uploadQueue) -> {
+			var localFile = tempDir.resolve(xmlFile.filename()).toFile();
+			LOG.debug("Downloading: {} -> {}", xmlFile.remotePath(), localFile);
+			long started = System.nanoTime();
+			sftpChannel.get(xmlFile.remotePath(), localFile.getAbsolutePath(), new CancellingMonitor());
+			double seconds = Math.max(1, System.nanoTime() - started) / 1e9;
+			LOG.info("Downloaded {}: {} bytes in {} s ({} MB/s)", xmlFile.filename(), localFile.length(),
+				String.format("%.1f", seconds), String.format("%.2f", localFile.length() / seconds / 1e6));
+
+			fileProcessor.accept(localFile, uploadQueue);
+		});
+	}
+
+	/**
+	 * Synchronizes XML files from SFTP server like {@link #syncXmlFiles(SftpConfig, BiConsumer)},
+	 * but hands each XML to the processor as a stream while it is being downloaded, without a temp
+	 * file. A local copy is written only if {@link SftpConfig#getDownloadCopyDirectory()} is set.
+	 *
+	 * @param config
+	 *            SFTP connection configuration
+	 * @param streamProcessor
+	 *            processor that receives the XML stream and the upload queue
+	 * @return number of XML files that were downloaded and processed, 0 if none changed since the
+	 *         last sync
+	 */
+	public int syncXmlStreams(SftpConfig config, XmlStreamProcessor streamProcessor)
+	{
+		return sync(config, (sftpChannel, xmlFile, tempDir, uploadQueue) -> {
+			LOG.debug("Streaming: {}", xmlFile.remotePath());
+			long started = System.nanoTime();
+			try (var inputStream = sftpChannel.get(xmlFile.remotePath()))
+			{
+				if (StringUtils.isBlank(config.getDownloadCopyDirectory()))
+				{
+					streamProcessor.process(xmlFile.filename(), inputStream, uploadQueue);
+					logStreamed(xmlFile, started);
+					return;
+				}
+
+				// tee the download into a local copy, published only once the whole file was read
+				var copyDirectory = Path.of(config.getDownloadCopyDirectory());
+				Files.createDirectories(copyDirectory);
+				var tempCopy = Files.createTempFile(copyDirectory, "download-", ".tmp");
+				try (var teeStream = new TeeInputStream(inputStream, Files.newOutputStream(tempCopy), true))
+				{
+					streamProcessor.process(xmlFile.filename(), teeStream, uploadQueue);
+					IOUtils.consume(teeStream);
+				}
+				catch (Exception e)
+				{
+					Files.deleteIfExists(tempCopy);
+					throw e;
+				}
+				Files.move(tempCopy, copyDirectory.resolve(xmlFile.filename()), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+				logStreamed(xmlFile, started);
+			}
+		});
+	}
+
+	/**
+	 * Logs the throughput of a streamed XML file; the time includes parsing and rendering, which
+	 * the download waits for.
+	 */
+	private void logStreamed(RemoteXmlFile xmlFile, long startedNanos)
+	{
+		double seconds = Math.max(1, System.nanoTime() - startedNanos) / 1e9;
+		LOG.info("Streamed and processed {}: {} bytes in {} s ({} MB/s)", xmlFile.filename(), xmlFile.attrs().getSize(),
+			String.format("%.1f", seconds), String.format("%.2f", xmlFile.attrs().getSize() / seconds / 1e6));
+	}
+
+	/**
+	 * Processes an XML file that did not come from the SFTP download directory (e.g. one pushed to
+	 * the application over HTTP) like {@link #syncXmlFiles(SftpConfig, BiConsumer)}: the processor
+	 * receives the file and the upload queue, and the generated files are uploaded to the configured
+	 * upload directory. The download manifest is not changed.
+	 *
+	 * @param config
+	 *            SFTP connection configuration
+	 * @param file
+	 *            the local XML file
+	 * @param fileProcessor
+	 *            processor that receives the XML file and the upload queue
+	 * @return true if the file was processed and all output files were uploaded
 	 */
-	public void syncXmlFiles(SftpConfig config, BiConsumer<File, Consumer<File>> fileProcessor)
+	public boolean processLocalXmlFile(SftpConfig config, File file, BiConsumer<File, SftpUploadQueue> fileProcessor)
+	{
+		int processed = connected(config, "Upload of files generated from " + file.getName(),
+			(sftpChannel, tempDir, uploads) -> {
+				var uploaded = new boolean[1];
+				uploads.run(uploadQueue -> uploaded[0] = processXml(file.getName(),
+					() -> fileProcessor.accept(file, uploadQueue), uploadQueue));
+				return uploaded[0] ? 1 : 0;
+			});
+		return processed == 1;
+	}
+
+	/**
+	 * Connects to the server, lists the XML files that changed since the last sync and hands each
+	 * of them to the handler, together with a shared upload queue.
+	 *
+	 * @param config
+	 *            SFTP connection configuration
+	 * @param handler
+	 *            downloads and processes a single XML file
+	 * @return number of XML files that were processed
+	 */
+	private int sync(SftpConfig config, XmlFileHandler handler)
+	{
+		return connected(config, "SFTP sync", (sftpChannel, tempDir, uploads) -> {
+			// List XML files that changed since the last sync
+			var manifest = loadManifest(config);
+			var xmlFiles = listXmlFiles(sftpChannel, config.getDownloadDirectory(),
+				config.isSkipUnchangedFiles() ? manifest : null);
+			LOG.info("Found {} XML files to process", xmlFiles.size());
+
+			if (xmlFiles.isEmpty())
+			{
+				LOG.info("No XML file changed since the last sync, nothing to process");
+				return 0;
+			}
+
+			// Process each XML file, only successfully processed files are recorded in the manifest
+			uploads.run(uploadQueue -> {
+				for (var xmlFile : xmlFiles)
+				{
+					CancellationToken.current().throwIfCancelled();
+					if (processXmlFile(xmlFile, handler, sftpChannel, tempDir, uploadQueue) && manifest != null)
+					{
+						manifest.markProcessed(xmlFile.remotePath(), xmlFile.attrs());
+					}
+				}
+			});
+			if (manifest != null)
+			{
+				manifest.save();
+			}
+			return xmlFiles.size();
+		});
+	}
+
+	/**
+	 * Connects to the server and runs the work with the connection. Uploads opened by the work share
+	 * the upload manifest; sessions go back to the pool afterwards, unless the work failed.
+	 *
+	 * @param config
+	 *            SFTP connection configuration
+	 * @param description
+	 *            what the work does, for logging
+	 * @param work
+	 *            the work
+	 * @return the result of the work
+	 */
+	private int connected(SftpConfig config, String description, ConnectedWork work)
 	{
 		config.validate();
-		LOG.info("Starting SFTP sync with config: {}", config);
+		LOG.info("Starting {} with config: {}", description, config);
+		long started = System.nanoTime();
 
 		Path tempDir = null;
 		Session session = null;
 		ChannelSftp sftpChannel = null;
+		var uploadSessions = new ArrayList<Session>();
+		boolean failed = true;
 
 		try
 		{
@@ -86,31 +272,69 @@ public class FtpSyncService
 			tempDir = Files.createTempDirectory("sftp-sync-");
 			LOG.debug("Created temp directory: {}", tempDir);
 
-			// Connect to SFTP
-			session = connect(config, credentials);
+			// Connect to SFTP, reusing a warm pooled session when there is one
+			session = sessionPool.lease(config, credentials);
 			sftpChannel = openSftpChannel(session);
 
-			// Download XML files
-			var xmlFiles = downloadXmlFiles(sftpChannel, config.getDownloadDirectory(), tempDir);
-			LOG.info("Downloaded {} XML files", xmlFiles.size());
+			var channel = sftpChannel;
+			var downloadSession = session;
+			int result = work.run(sftpChannel, tempDir, uploadWork -> {
+				// Upload channels are spread over the download session and additional sessions
+				uploadSessions.add(downloadSession);
+				for (int i = 1; i < config.getUploadSessions(); i++)
+				{
+					uploadSessions.add(sessionPool.lease(config, credentials));
+				}
 
-			// Process each XML file
-			for (File xmlFile : xmlFiles)
-			{
-				processXmlFile(xmlFile, fileProcessor, sftpChannel, config.getUploadDirectory());
-			}
+				var uploadManifest = loadUploadManifest(channel, config);
+				var archivePrefix = config.isArchiveUploads() ? config.getArchivePrefix() : null;
+				try (var uploadQueue = new SftpUploadQueue(this, uploadSessions, config.getUploadChannels(),
+					config.getUploadDirectory(), config.getMaxInFlightBytes(), config.getUploadAttempts(), uploadManifest,
+					archivePrefix))
+				{
+					uploadWork.accept(uploadQueue);
+				}
+				if (uploadManifest != null)
+				{
+					saveUploadManifest(channel, config, uploadManifest);
+				}
+			});
 
-			LOG.info("SFTP sync completed successfully");
+			LOG.info("{} completed successfully in {} s", description,
+				String.format("%.1f", (System.nanoTime() - started) / 1e9));
+			failed = false;
+			return result;
+		}
+		catch (CancellationException e)
+		{
+			LOG.warn("{} cancelled: {}", description, e.getMessage());
+			throw e;
 		}
 		catch (Exception e)
 		{
-			LOG.error("SFTP sync failed", e);
-			throw new RuntimeException("SFTP sync failed: " + e.getMessage(), e);
+			LOG.error("{} failed", description, e);
+			throw new RuntimeException(description + " failed: " + e.getMessage(), e);
 		}
 		finally
 		{
-			// Clean up
-			disconnect(session, sftpChannel);
+			// Clean up, connected sessions go back to the pool unless the work failed and may have
+			// broken them; session is null if connecting failed
+			disconnect(null, sftpChannel);
+			if (session != null && !uploadSessions.contains(session))
+			{
+				uploadSessions.add(session);
+			}
+			for (var pooledSession : uploadSessions)
+			{
+				if (failed || !pooledSession.isConnected())
+				{
+					sessionPool.invalidate(pooledSession);
+				}
+				else
+				{
+					sessionPool.release(pooledSession);
+				}
+			}
 			cleanupTempDirectory(tempDir);
 		}
 	}
@@ -150,36 +374,6 @@ public class FtpSyncService
 		return new SftpCredentials(username, password);
 	}
 
-	/**
-	 * Establishes SFTP connection to the server.
-	 *
-	 * @param config
-	 *            SFTP configuration
-	 * @param credentials
-	 *            authentication credentials
-	 * @return the connected session
-	 * @throws JSchException
-	 *             if connection fails
-	 */
-	Session connect(SftpConfig config, SftpCredentials credentials) throws JSchException
-	{
-		LOG.info("Connecting to SFTP server: {}:{}", config.getHost(), config.getPort());
-
-		var jsch = new JSch();
-		var session = jsch.getSession(credentials.username(), config.getHost(), config.getPort());
-		session.setPassword(credentials.password());
-
-		// Disable strict host key checking for simplicity
-		// In production, consider using known_hosts file
-		session.setConfig("StrictHostKeyChecking", "no");
-		session.setTimeout(SFTP_TIMEOUT_MS);
-
-		session.connect();
-		LOG.info("Connected to SFTP server successfully");
-
-		return session;
-	}
-
 	/**
 	 * Opens an SFTP channel on the given session.
 	 *
@@ -189,7 +383,7 @@ public class FtpSyncService
 	 * @throws JSchException
 	 *             if channel cannot be opened
 	 */
-	private ChannelSftp openSftpChannel(Session session) throws JSchException
+	ChannelSftp openSftpChannel(Session session) throws JSchException
 	{
 		if (session.openChannel("sftp") instanceof ChannelSftp channel)
 		{
@@ -201,91 +395,136 @@ public class FtpSyncService
 	}
 
 	/**
-	 * Downloads all XML files from the remote directory to a local temp directory.
+	 * Loads the manifest of remote files processed by the last sync.
+	 *
+	 * @param config
+	 *            SFTP configuration
+	 * @return the manifest, or null if no manifest file is configured
+	 */
+	private SftpDownloadManifest loadManifest(SftpConfig config)
+	{
+		if (StringUtils.isBlank(config.getManifestFile()))
+		{
+			return null;
+		}
+		return SftpDownloadManifest.load(Path.of(config.getManifestFile()));
+	}
+
+	/**
+	 * Lists the XML files in the remote directory. Files whose size and modification time match the
+	 * manifest are skipped.
 	 *
 	 * @param sftpChannel
 	 *            the SFTP channel
 	 * @param remoteDirectory
-	 *            the remote directory to download from
-	 * @param localDirectory
-	 *            the local directory to download to
-	 * @return list of downloaded XML files
+	 *            the remote directory to list
+	 * @param manifest
+	 *            manifest of the last sync, or null to list all files
+	 * @return XML files to process
 	 * @throws SftpException
 	 *             if SFTP operation fails
 	 */
-	List<File> downloadXmlFiles(ChannelSftp sftpChannel, String remoteDirectory, Path localDirectory) throws SftpException
+	List<RemoteXmlFile> listXmlFiles(ChannelSftp sftpChannel, String remoteDirectory, SftpDownloadManifest manifest)
+		throws SftpException
 	{
-		LOG.info("Downloading XML files from: {}", remoteDirectory);
+		LOG.info("Listing XML files in: {}", remoteDirectory);
 
-		var downloadedFiles = new ArrayList<File>();
+		var xmlFiles = new ArrayList<RemoteXmlFile>();
+		int skippedFiles = 0;
+		long bytesSaved = 0;
 
 		var entries = sftpChannel.ls(remoteDirectory);
 
 		for (var entry : entries)
 		{
 			var filename = entry.getFilename();
-			if (filename.toLowerCase().endsWith(XML_EXTENSION) && !entry.getAttrs().isDir())
+			var attrs = entry.getAttrs();
+			if (filename.toLowerCase().endsWith(XML_EXTENSION) && !attrs.isDir())
 			{
 				var remotePath = remoteDirectory + "/" + filename;
-				var localFile = localDirectory.resolve(filename).toFile();
-
-				LOG.debug("Downloading: {} -> {}", remotePath, localFile);
-				sftpChannel.get(remotePath, localFile.getAbsolutePath());
-				downloadedFiles.add(localFile);
+				if (manifest != null && manifest.isUnchanged(remotePath, attrs))
+				{
+					LOG.debug("Skipping unchanged file: {}", remotePath);
+					skippedFiles++;
+					bytesSaved += attrs.getSize();
+					continue;
+				}
+				xmlFiles.add(new RemoteXmlFile(filename, remotePath, attrs));
 			}
 		}
 
-		return downloadedFiles;
+		LOG.info("Files skipped: {}, bytes saved: {}", skippedFiles, bytesSaved);
+		return xmlFiles;
 	}
 
 	/**
-	 * Processes a single XML file and uploads generated output files.
+	 * Processes a single XML file and waits until all generated output files are uploaded.
 	 *
 	 * @param xmlFile
-	 *            the XML file to process
-	 * @param fileProcessor
-	 *            the processor callback
+	 *            the remote XML file to process
+	 * @param handler
+	 *            downloads and processes the file
 	 * @param sftpChannel
-	 *            the SFTP channel for uploads
-	 * @param uploadDirectory
-	 *            the remote upload directory
+	 *            the SFTP channel for downloads
+	 * @param tempDir
+	 *            local temp directory for downloads
+	 * @param uploadQueue
+	 *            the queue uploading the output files
+	 * @return true if the file was processed and all output files were uploaded
 	 */
-	private void processXmlFile(File xmlFile, BiConsumer<File, Consumer<File>> fileProcessor, ChannelSftp sftpChannel,
-		String uploadDirectory)
+	private boolean processXmlFile(RemoteXmlFile xmlFile, XmlFileHandler handler, ChannelSftp sftpChannel, Path tempDir,
+		SftpUploadQueue uploadQueue)
 	{
-		LOG.info("Processing XML file: {}", xmlFile.getName());
+		return processXml(xmlFile.filename(), () -> handler.handle(sftpChannel, xmlFile, tempDir, uploadQueue),
+			uploadQueue);
+	}
 
-		var outputFiles = new ArrayList<File>();
+	/**
+	 * Processes a single XML file and waits until all generated output files are uploaded.
+	 *
+	 * @param filename
+	 *            name of the XML file
+	 * @param processing
+	 *            processes the file
+	 * @param uploadQueue
+	 *            the queue uploading the output files
+	 * @return true if the file was processed and all output files were uploaded
+	 */
+	private boolean processXml(String filename, XmlProcessing processing, SftpUploadQueue uploadQueue)
+	{
+		LOG.info("Processing XML file: {}", filename);
 
 		try
 		{
-			// Call processor with callback that collects output files
-			fileProcessor.accept(xmlFile, pdf -> {
-				uploadFile(sftpChannel, pdf, uploadDirectory);
-				outputFiles.add(pdf);
-				try
-				{
-					LOG.info("Deleting PDF file after upload: {}", pdf);
-					Files.delete(pdf.toPath());
-				}
-				catch (IOException e)
-				{
-					e.printStackTrace();
-					pdf.deleteOnExit();
-				}
-			});
-
-			LOG.info("Processed {} and uploaded {} output files", xmlFile.getName(), outputFiles.size());
+			processing.run();
 		}
 		catch (Exception e)
 		{
-			LOG.error("Failed to process XML file: {}", xmlFile.getName(), e);
+			if (CancellationToken.current().isCancelled())
+			{
+				// stop the whole sync instead of continuing with the next file
+				uploadQueue.drain();
+				CancellationToken.current().throwIfCancelled();
+			}
+			LOG.error("Failed to process XML file: {}", filename, e);
 			// Continue with remaining files instead of aborting entire sync
+			uploadQueue.drain();
+			return false;
+		}
+
+		var failedUploads = uploadQueue.drain();
+		if (!failedUploads.isEmpty())
+		{
+			LOG.error("Processed {} but {} output files failed to upload", filename, failedUploads.size());
+			return false;
 		}
+
+		LOG.info("Processed {} and uploaded all output files", filename);
+		return true;
 	}
 
 	/**
-	 * Uploads a file to the remote directory.
+	 * Uploads a file to the remote directory, see {@link #putAtomically}.
 	 *
 	 * @param sftpChannel
 	 *            the SFTP channel
@@ -296,13 +535,17 @@ public class FtpSyncService
 	 */
 	void uploadFile(ChannelSftp sftpChannel, File file, String remoteDirectory)
 	{
-		var remotePath = remoteDirectory + "/" + file.getName();
-		LOG.debug("Uploading: {} -> {}", file.getAbsolutePath(), remotePath);
+		LOG.debug("Uploading: {} -> {}/{}", file.getAbsolutePath(), remoteDirectory, file.getName());
 
-		try (var inputStream = new FileInputStream(file))
+		try
 		{
-			sftpChannel.put(inputStream, remotePath);
-			LOG.info("Uploaded: {}", remotePath);
+			String contentHash;
+			try (var inputStream = new FileInputStream(file))
+			{
+				contentHash = DigestUtils.sha256Hex(inputStream);
+			}
+			putAtomically(sftpChannel, remoteDirectory, file.getName(), contentHash, file.length(),
+				() -> new FileInputStream(file));
 		}
 		catch (SftpException | IOException e)
 		{
@@ -311,6 +554,279 @@ public class FtpSyncService
 		}
 	}
 
+	/**
+	 * Uploads content to the remote directory, streaming it straight from memory, unless a file
+	 * with the same content was uploaded under the same name before. Partial uploads are resumed
+	 * when called again for the same content, see {@link #putAtomically}.
+	 *
+	 * @param sftpChannel
+	 *            the SFTP channel
+	 * @param filename
+	 *            the remote file name
+	 * @param content
+	 *            the file content
+	 * @param remoteDirectory
+	 *            the remote directory to upload to
+	 * @param manifest
+	 *            content hashes of previously uploaded files, may be null to always upload
+	 * @return true if the file was uploaded, false if the upload was skipped
+	 */
+	boolean uploadContent(ChannelSftp sftpChannel, String filename, byte[] content, String remoteDirectory,
+		SftpUploadManifest manifest)
+	{
+		String contentHash = null;
+		if (manifest != null)
+		{
+			contentHash = PdfContentHash.of(content);
+			if (manifest.isUploaded(filename, contentHash, content.length))
+			{
+				LOG.debug("Skipping upload of unchanged file: {}", filename);
+				return false;
+			}
+		}
+
+		try
+		{
+			// the part is named by the exact bytes, a resumed upload must continue the same bytes
+			putAtomically(sftpChannel, remoteDirectory, filename, DigestUtils.sha256Hex(content), content.length,
+				() -> new ByteArrayInputStream(content));
+		}
+		catch (SftpException | IOException e)
+		{
+			LOG.error("Failed to upload file: {}", filename, e);
+			throw new RuntimeException("Failed to upload file: " + filename + " - " + e.getMessage(), e);
+		}
+
+		if (manifest != null)
+		{
+			manifest.markUploaded(filename, contentHash);
+		}
+		return true;
+	}
+
+	/**
+	 * Uploads content under a temporary name and renames it to the final name once complete, so
+	 * that readers of the upload directory never see a truncated file. The temporary name contains
+	 * the content hash; when a previous attempt with the same content left a partial file, the
+	 * upload resumes where it stopped instead of sending the whole file again.
+	 *
+	 * @param sftpChannel
+	 *            the SFTP channel
+	 * @param remoteDirectory
+	 *            the remote directory to upload to
+	 * @param filename
+	 *            the remote file name
+	 * @param contentHash
+	 *            SHA-256 hash of the exact content bytes, identifies partial uploads of the same
+	 *            bytes
+	 * @param size
+	 *            size of the content
+	 * @param content
+	 *            opens the content, it is skipped up to the already uploaded part when resuming
+	 * @throws SftpException
+	 *             if the upload or the rename fails
+	 * @throws IOException
+	 *             if the content cannot be read
+	 */
+	private void putAtomically(ChannelSftp sftpChannel, String remoteDirectory, String filename, String contentHash,
+		long size, IOSupplier<InputStream> content) throws SftpException, IOException
+	{
+		var remotePath = remoteDirectory + "/" + filename;
+		var partPath = remoteDirectory + "/." + filename + "." + contentHash.substring(0, 16) + PART_EXTENSION;
+
+		var uploadedSize = remoteSize(sftpChannel, partPath);
+		var mode = uploadedSize > 0 && uploadedSize <= size ? ChannelSftp.RESUME : ChannelSftp.OVERWRITE;
+		if (mode == ChannelSftp.RESUME)
+		{
+			LOG.info("Resuming upload of {} at {} of {} bytes", remotePath, uploadedSize, size);
+		}
+		try (var inputStream = content.get())
+		{
+			sftpChannel.put(inputStream, partPath, mode);
+		}
+
+		replace(sftpChannel, partPath, remotePath);
+		LOG.info("Uploaded: {}", remotePath);
+	}
+
+	/**
+	 * Lists the partial uploads left in the remote directory by earlier uploads, see
+	 * {@link #putAtomically}. Parts of content that changed since are never resumed and have to be
+	 * removed once their file is uploaded, see {@link #removePartFiles}.
+	 *
+	 * @param sftpChannel
+	 *            the SFTP channel
+	 * @param remoteDirectory
+	 *            the remote directory
+	 * @return paths of the partial uploads by the name of the file they belong to, empty if the
+	 *         directory cannot be listed
+	 */
+	Map<String, List<String>> listPartFiles(ChannelSftp sftpChannel, String remoteDirectory)
+	{
+		var partFiles = new ConcurrentHashMap<String, List<String>>();
+		try
+		{
+			for (var entry : sftpChannel.ls(remoteDirectory + "/.*" + PART_EXTENSION))
+			{
+				var matcher = PART_FILE.matcher(entry.getFilename());
+				if (matcher.matches())
+				{
+					partFiles.computeIfAbsent(matcher.group(1), filename -> new ArrayList<>())
+						.add(remoteDirectory + "/" + entry.getFilename());
+				}
+			}
+		}
+		catch (SftpException e)
+		{
+			LOG.warn("Failed to list partial uploads in {}: {}", remoteDirectory, e.getMessage());
+		}
+		LOG.debug("Found partial uploads of {} files in {}", partFiles.size(), remoteDirectory);
+		return partFiles;
+	}
+
+	/**
+	 * Removes partial uploads that are no longer needed, because their file was uploaded or is
+	 * unchanged since the last upload. Parts that no longer exist are ignored.
+	 *
+	 * @param sftpChannel
+	 *            the SFTP channel
+	 * @param partPaths
+	 *            paths of the partial uploads
+	 */
+	void removePartFiles(ChannelSftp sftpChannel, List<String> partPaths)
+	{
+		for (var partPath : partPaths)
+		{
+			try
+			{
+				sftpChannel.rm(partPath);
+				LOG.debug("Removed stale partial upload: {}", partPath);
+			}
+			catch (SftpException e)
+			{
+				if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE)
+				{
+					LOG.warn("Failed to remove stale partial upload {}: {}", partPath, e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Renames a completely uploaded file to its final name, replacing an existing file.
+	 *
+	 * @param sftpChannel
+	 *            the SFTP channel
+	 * @param partPath
+	 *            the uploaded file
+	 * @param remotePath
+	 *            the final name
+	 * @throws SftpException
+	 *             if the rename fails
+	 */
+	void replace(ChannelSftp sftpChannel, String partPath, String remotePath) throws SftpException
+	{
+		try
+		{
+			sftpChannel.rename(partPath, remotePath);
+		}
+		catch (SftpException e)
+		{
+			// servers without the posix-rename extension refuse to replace an existing file
+			if (remoteSize(sftpChannel, remotePath) < 0)
+			{
+				throw e;
+			}
+			sftpChannel.rm(remotePath);
+			sftpChannel.rename(partPath, remotePath);
+		}
+	}
+
+	/**
+	 * @return size of the remote file, or -1 if it does not exist
+	 */
+	private long remoteSize(ChannelSftp sftpChannel, String remotePath) throws SftpException
+	{
+		try
+		{
+			return sftpChannel.stat(remotePath).getSize();
+		}
+		catch (SftpException e)
+		{
+			if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE)
+			{
+				return -1;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Loads the manifest of uploaded file contents. If the local copy is missing, the copy
+	 * mirrored in the upload directory is used when mirroring is enabled.
+	 *
+	 * @param sftpChannel
+	 *            the SFTP channel
+	 * @param config
+	 *            SFTP configuration
+	 * @return the manifest, or null if no manifest file is configured
+	 */
+	private SftpUploadManifest loadUploadManifest(ChannelSftp sftpChannel, SftpConfig config)
+	{
+		if (StringUtils.isBlank(config.getUploadManifestFile()))
+		{
+			return null;
+		}
+
+		var manifest = SftpUploadManifest.load(Path.of(config.getUploadManifestFile()));
+		if (!manifest.existsLocally() && config.isMirrorUploadManifest())
+		{
+			var remotePath = config.getUploadDirectory() + "/" + SftpUploadManifest.REMOTE_FILENAME;
+			try (var in = sftpChannel.get(remotePath))
+			{
+				manifest.read(in);
+				LOG.info("Loaded upload manifest mirrored on the server: {}", remotePath);
+			}
+			catch (SftpException | IOException e)
+			{
+				LOG.info("No upload manifest mirrored on the server, all files will be uploaded: {}", e.getMessage());
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Stores the manifest of uploaded file contents locally and mirrors it to the upload directory
+	 * when enabled.
+	 *
+	 * @param sftpChannel
+	 *            the SFTP channel
+	 * @param config
+	 *            SFTP configuration
+	 * @param manifest
+	 *            the manifest
+	 */
+	private void saveUploadManifest(ChannelSftp sftpChannel, SftpConfig config, SftpUploadManifest manifest)
+	{
+		LOG.info("Uploads skipped as unchanged: {}, bytes saved: {}", manifest.getSkippedFiles(), manifest.getBytesSaved());
+
+		var file = manifest.save();
+		if (file != null && config.isMirrorUploadManifest())
+		{
+			var remotePath = config.getUploadDirectory() + "/" + SftpUploadManifest.REMOTE_FILENAME;
+			try
+			{
+				var content = Files.readAllBytes(file);
+				putAtomically(sftpChannel, config.getUploadDirectory(), SftpUploadManifest.REMOTE_FILENAME,
+					DigestUtils.sha256Hex(content), content.length, () -> new ByteArrayInputStream(content));
+			}
+			catch (SftpException | IOException e)
+			{
+				LOG.warn("Failed to mirror upload manifest to {}", remotePath, e);
+			}
+		}
+	}
+
 	/**
 	 * Disconnects SFTP channel and session safely.
 	 *
@@ -369,4 +885,102 @@ public class FtpSyncService
 			}
 		}
 	}
+
+	/**
+	 * Processes an XML file while it is being downloaded.
+	 */
+	@FunctionalInterface
+	public interface XmlStreamProcessor
+	{
+		/**
+		 * Processes the XML stream.
+		 *
+		 * @param filename
+		 *            name of the remote XML file
+		 * @param inputStream
+		 *            the XML content as it is downloaded
+		 * @param uploadQueue
+		 *            queue for the generated output files
+		 * @throws Exception
+		 *             if processing fails
+		 */
+		void process(String filename, InputStream inputStream, SftpUploadQueue uploadQueue) throws Exception;
+	}
+
+	/**
+	 * Downloads and processes a single XML file.
+	 */
+	@FunctionalInterface
+	private interface XmlFileHandler
+	{
+		void handle(ChannelSftp sftpChannel, RemoteXmlFile xmlFile, Path tempDir, SftpUploadQueue uploadQueue) throws Exception;
+	}
+
+	/**
+	 * Processes a single XML file, see {@link FtpSyncService#processXml}.
+	 */
+	@FunctionalInterface
+	private interface XmlProcessing
+	{
+		void run() throws Exception;
+	}
+
+	/**
+	 * Work done with a connection to the server, see {@link FtpSyncService#connected}.
+	 */
+	@FunctionalInterface
+	private interface ConnectedWork
+	{
+		int run(ChannelSftp sftpChannel, Path tempDir, Uploads uploads) throws Exception;
+	}
+
+	/**
+	 * Opens the upload queue for a {@link ConnectedWork}, runs the uploading work with it and waits
+	 * for the uploads.
+	 */
+	@FunctionalInterface
+	private interface Uploads
+	{
+		void run(Consumer<SftpUploadQueue> uploadWork) throws Exception;
+	}
+
+	/**
+	 * XML file on the SFTP server.
+	 *
+	 * @param filename
+	 *            the file name
+	 * @param remotePath
+	 *            the remote file path
+	 * @param attrs
+	 *            attributes of the remote file from the directory listing
+	 */
+	record RemoteXmlFile(String filename, String remotePath, SftpATTRS attrs)
+	{
+	}
+
+	/**
+	 * Aborts a download when the job is cancelled.
+	 */
+	private static class CancellingMonitor implements SftpProgressMonitor
+	{
+		private final CancellationToken cancellation = CancellationToken.current();
+
+		@Override
+		public void init(int op, String src, String dest, long max)
+		{
+			// nothing to prepare
+		}
+
+		@Override
+		public boolean count(long count)
+		{
+			return !cancellation.isCancelled();
+		}
+
+		@Override
+		public void end()
+		{
+			// nothing to clean up
+		}
+	}
 }
@@ -29,6 +29,8 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import cz.solight.generator.xmltopdf.util.CancellationToken;
+
 import name.berries.wicket.util.app.AppConfigProvider;
 import name.berries.wicket.util.app.AppConfigProvider.ConfigKey;
 
@@ -139,6 +141,7 @@ public class ImagePathConverter
 	 */
 	private String findImageUrl(String filename)
 	{
+		CancellationToken.current().throwIfCancelled();
 		try
 		{
 			var url = FILE_FINDER_URL + URLEncoder.encode(filename, StandardCharsets.UTF_8.toString());
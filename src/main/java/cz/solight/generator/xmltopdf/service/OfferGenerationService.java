@@ -0,0 +1,799 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.wicket.Application;
+import org.apache.wicket.ThreadContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.solight.generator.xmltopdf.pojo.IssuedOffer;
+import cz.solight.generator.xmltopdf.pojo.OfferGenerationProgress;
+import cz.solight.generator.xmltopdf.pojo.PdfDisplayOptions;
+import cz.solight.generator.xmltopdf.util.CancellationToken;
+
+import jakarta.inject.Inject;
+
+/**
+ * Generates offer PDFs in the background, so that parsing, image resolution and waiting for
+ * Gotenberg do not hold a request thread. Jobs run on a small fixed pool of workers; the number of
+ * waiting jobs and the number of unfinished jobs per session are limited to protect Gotenberg from
+ * bursts of uploads.
+ *
+ * <p>
+ * The page submitting a job keeps its ID and polls {@link #getProgress(String)}. The state of
+ * finished jobs is kept for a while, so that a page polling late still learns the result.
+ * </p>
+ *
+ * <p>
+ * Rendered PDFs are kept in {@link OfferPdfCache}, so an offer uploaded again with the same
+ * options is served from the cache. Parsed offers are kept in {@link ParsedOfferStore}, so an
+ * offer regenerated with different options is only rendered. A file can be parsed speculatively
+ * by {@link #prepare(String, byte[])} as soon as the user selects it.
+ * </p>
+ *
+ * <p>
+ * Several files uploaded at once are submitted as a batch by
+ * {@link #submitBatch(String, List, PdfDisplayOptions, Path)}. Its files are separate jobs sharing
+ * the workers, so they are generated concurrently up to the Gotenberg capacity, and the batch counts
+ * as a single job against the per-session limit.
+ * </p>
+ */
+public class OfferGenerationService implements AutoCloseable
+{
+	private static final Logger LOG = LoggerFactory.getLogger(OfferGenerationService.class);
+	private static final int WORKER_THREADS = getDefaultConfiguration().getInt("offers.workerThreads", 2);
+	private static final int MAX_QUEUED_JOBS = getDefaultConfiguration().getInt("offers.maxQueuedJobs", 10);
+	private static final int MAX_JOBS_PER_SESSION = getDefaultConfiguration().getInt("offers.maxJobsPerSession", 1);
+	private static final int MAX_BATCH_FILES = getDefaultConfiguration().getInt("offers.maxBatchFiles", 10);
+	private static final int PREPARATION_THREADS = getDefaultConfiguration().getInt("offers.preparationThreads", 1);
+	private static final int MAX_QUEUED_PREPARATIONS = getDefaultConfiguration().getInt("offers.maxQueuedPreparations", 4);
+	private static final Duration JOB_TIMEOUT = Duration
+		.ofMinutes(getDefaultConfiguration().getLong("offers.jobTimeoutMinutes", 10));
+	private static final Duration FINISHED_JOB_RETENTION = Duration.ofHours(1);
+
+	@Inject
+	private OfferXmlParser xmlOfferParser;
+
+	@Inject
+	private OfferPdfGenerator offerPdfGenerator;
+
+	@Inject
+	private OfferPdfCache offerPdfCache;
+
+	@Inject
+	private ParsedOfferStore parsedOfferStore;
+
+	private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+	private final Map<String, List<Job>> batches = new ConcurrentHashMap<>();
+	private final Map<String, Preparation> preparations = new HashMap<>();
+	private final ThreadPoolExecutor executor;
+	/** Runs speculative parses, so they never take a worker or a queue slot from a real job. */
+	private final ThreadPoolExecutor preparationExecutor;
+
+	/**
+	 * Construct.
+	 */
+	public OfferGenerationService()
+	{
+		executor = newExecutor("OfferGenerator-", WORKER_THREADS, MAX_QUEUED_JOBS);
+		preparationExecutor = newExecutor("OfferPreparer-", PREPARATION_THREADS, MAX_QUEUED_PREPARATIONS);
+	}
+
+	private static ThreadPoolExecutor newExecutor(String threadPrefix, int threads, int maxQueued)
+	{
+		var threadCounter = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(maxQueued),
+			runnable -> {
+				var thread = new Thread(runnable, threadPrefix + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+	}
+
+	/**
+	 * Submits generation of an offer PDF.
+	 *
+	 * @param sessionId
+	 *            ID of the submitting session, for the per-session limit
+	 * @param xml
+	 *            content of the uploaded offer XML
+	 * @param options
+	 *            the display options
+	 * @param outputPath
+	 *            the output PDF path
+	 * @return ID of the job
+	 * @throws GenerationRejectedException
+	 *             if the session has too many unfinished jobs or the queue is full
+	 */
+	public String submit(String sessionId, byte[] xml, PdfDisplayOptions options, Path outputPath)
+	{
+		return submit(sessionId, MAX_JOBS_PER_SESSION, DigestUtils.sha256Hex(xml), xml, options, outputPath);
+	}
+
+	/**
+	 * Submits generation of an offer PDF with a custom limit of unfinished jobs, e.g. for clients of
+	 * the HTTP API which are not limited like user sessions.
+	 *
+	 * @param clientId
+	 *            ID of the submitting client, for the per-client limit
+	 * @param maxUnfinishedJobs
+	 *            number of unfinished jobs the client may have
+	 * @param xml
+	 *            content of the offer XML
+	 * @param options
+	 *            the display options
+	 * @param outputPath
+	 *            the output PDF path
+	 * @return ID of the job
+	 * @throws GenerationRejectedException
+	 *             if the client has too many unfinished jobs or the queue is full
+	 */
+	public String submit(String clientId, int maxUnfinishedJobs, byte[] xml, PdfDisplayOptions options, Path outputPath)
+	{
+		return submit(clientId, maxUnfinishedJobs, DigestUtils.sha256Hex(xml), xml, options, outputPath);
+	}
+
+	/**
+	 * Submits generation of a PDF of an offer uploaded before, with different display options. The
+	 * parsed offer is taken from {@link ParsedOfferStore}, so the job goes straight to rendering.
+	 *
+	 * @param sessionId
+	 *            ID of the submitting session, for the per-session limit
+	 * @param uploadHash
+	 *            SHA-256 hash of the uploaded XML, see {@link OfferGenerationProgress#uploadHash()}
+	 * @param options
+	 *            the display options
+	 * @param outputPath
+	 *            the output PDF path
+	 * @return ID of the job
+	 * @throws GenerationRejectedException
+	 *             if the offer is no longer stored, the session has too many unfinished jobs or the
+	 *             queue is full
+	 */
+	public String regenerate(String sessionId, String uploadHash, PdfDisplayOptions options, Path outputPath)
+	{
+		if (!parsedOfferStore.contains(uploadHash))
+		{
+			throw new GenerationRejectedException("Nahraná nabídka již není k dispozici, nahrajte prosím soubor znovu");
+		}
+		return submit(sessionId, MAX_JOBS_PER_SESSION, uploadHash, null, options, outputPath);
+	}
+
+	private String submit(String sessionId, int maxUnfinishedJobs, String uploadHash, byte[] xml, PdfDisplayOptions options,
+		Path outputPath)
+	{
+		var application = Application.exists() ? Application.get() : null;
+		Job job;
+		synchronized (this)
+		{
+			purgeFinishedJobs();
+			checkSessionLimit(sessionId, maxUnfinishedJobs);
+			job = new Job(UUID.randomUUID().toString(), sessionId, null, null,
+				OfferGenerationProgress.queued(outputPath.getFileName().toString(), uploadHash,
+				executor.getQueue().size()));
+			jobs.put(job.id, job);
+			try
+			{
+				executor.execute(new GenerationTask(job, application, xml, options, outputPath));
+			}
+			catch (RejectedExecutionException e)
+			{
+				jobs.remove(job.id);
+				LOG.warn("Offer generation queue is full ({} jobs waiting), rejecting job", executor.getQueue().size());
+				throw new GenerationRejectedException("Server právě generuje příliš mnoho nabídek, zkuste to prosím za chvíli",
+					true);
+			}
+		}
+		LOG.info("Offer generation job {} queued ({} waiting, {} running)", job.id, executor.getQueue().size(),
+			executor.getActiveCount());
+		return job.id;
+	}
+
+	/**
+	 * Submits generation of several offer PDFs at once, e.g. from a multi-file upload. Every file is
+	 * a separate job, the workers generate them concurrently.
+	 *
+	 * @param sessionId
+	 *            ID of the submitting session, for the per-session limit
+	 * @param files
+	 *            the uploaded offer XML files
+	 * @param options
+	 *            the display options, shared by all files
+	 * @param outputDirectory
+	 *            directory of the output PDFs, they get unique names
+	 * @return ID of the batch, see {@link #getBatchProgress(String)}
+	 * @throws GenerationRejectedException
+	 *             if there are too many files, the session has too many unfinished jobs or the queue
+	 *             cannot take all files
+	 */
+	public String submitBatch(String sessionId, List<BatchFile> files, PdfDisplayOptions options, Path outputDirectory)
+	{
+		if (files.size() > MAX_BATCH_FILES)
+		{
+			throw new GenerationRejectedException("Najednou lze nahrát nejvýše " + MAX_BATCH_FILES + " souborů");
+		}
+
+		var application = Application.exists() ? Application.get() : null;
+		var batchId = UUID.randomUUID().toString();
+		var batch = new ArrayList<Job>();
+		synchronized (this)
+		{
+			purgeFinishedJobs();
+			checkSessionLimit(sessionId, MAX_JOBS_PER_SESSION);
+			if (executor.getQueue().remainingCapacity() < files.size())
+			{
+				LOG.warn("Offer generation queue cannot take a batch of {} files ({} jobs waiting), rejecting it",
+					files.size(), executor.getQueue().size());
+				throw new GenerationRejectedException(
+					"Server právě generuje příliš mnoho nabídek, zkuste to prosím za chvíli nebo nahrajte méně souborů", true);
+			}
+
+			long timestamp = System.currentTimeMillis();
+			for (int i = 0; i < files.size(); i++)
+			{
+				var file = files.get(i);
+				var outputPath = outputDirectory.resolve("nabidka-" + timestamp + "-" + (i + 1) + ".pdf");
+				var job = new Job(UUID.randomUUID().toString(), sessionId, batchId, file.fileName(),
+					OfferGenerationProgress.queued(outputPath.getFileName().toString(),
+					DigestUtils.sha256Hex(file.xml()), executor.getQueue().size()));
+				jobs.put(job.id, job);
+				batch.add(job);
+				try
+				{
+					executor.execute(new GenerationTask(job, application, file.xml(), options, outputPath));
+				}
+				catch (RejectedExecutionException e)
+				{
+					// a speculative parse took the place meanwhile
+					job.finish(job.progress.failed("Server právě generuje příliš mnoho nabídek, zkuste to prosím za chvíli"));
+				}
+			}
+			batches.put(batchId, List.copyOf(batch));
+		}
+		LOG.info("Offer generation batch {} of {} files queued ({} waiting, {} running)", batchId, files.size(),
+			executor.getQueue().size(), executor.getActiveCount());
+		return batchId;
+	}
+
+	/**
+	 * Returns the state of every file of a batch, in the order of submission.
+	 *
+	 * @param batchId
+	 *            ID of the batch
+	 * @return the states, null if the batch is unknown or its state was already discarded
+	 */
+	public List<BatchEntry> getBatchProgress(String batchId)
+	{
+		var batch = batches.get(batchId);
+		if (batch == null)
+		{
+			return null;
+		}
+		return batch.stream().map(job -> new BatchEntry(job.sourceName, getProgress(job.id))).toList();
+	}
+
+	/**
+	 * Returns the final states of the files of a batch as they finish, e.g. to stream the PDFs to
+	 * the user without waiting for the whole batch.
+	 *
+	 * @param batchId
+	 *            ID of the batch
+	 * @return futures completed with the final state of every file, in the order of submission;
+	 *         null if the batch is unknown or its state was already discarded
+	 */
+	public List<CompletableFuture<BatchEntry>> getBatchResults(String batchId)
+	{
+		var batch = batches.get(batchId);
+		if (batch == null)
+		{
+			return null;
+		}
+		return batch.stream().map(job -> job.result.thenApply(progress -> new BatchEntry(job.sourceName, progress))).toList();
+	}
+
+	/**
+	 * Returns the state of a job. The queue position of a waiting job is up to date.
+	 *
+	 * @param jobId
+	 *            ID of the job
+	 * @return the state, null if the job is unknown or its state was already discarded
+	 */
+	public OfferGenerationProgress getProgress(String jobId)
+	{
+		var job = jobs.get(jobId);
+		if (job == null)
+		{
+			return null;
+		}
+		var progress = job.progress;
+		if (progress.phase() == OfferGenerationProgress.Phase.QUEUED)
+		{
+			int position = 0;
+			for (var waiting : executor.getQueue())
+			{
+				if (waiting instanceof GenerationTask task && task.job == job)
+				{
+					return OfferGenerationProgress.queued(progress.pdfFileName(), progress.uploadHash(), position);
+				}
+				position++;
+			}
+		}
+		return progress;
+	}
+
+	/**
+	 * Returns the state of a job submitted by the given session or client. Jobs of others are
+	 * reported as unknown, so that their existence is not revealed.
+	 *
+	 * @param jobId
+	 *            ID of the job
+	 * @param ownerId
+	 *            ID of the session or client asking, as passed when the job was submitted
+	 * @return the state, null if the job is unknown, was submitted by someone else or its state was
+	 *         already discarded
+	 */
+	public OfferGenerationProgress getProgress(String jobId, String ownerId)
+	{
+		return isOwnedBy(jobId, ownerId) ? getProgress(jobId) : null;
+	}
+
+	/**
+	 * Returns the final state of a job when it finishes.
+	 *
+	 * @param jobId
+	 *            ID of the job
+	 * @return future completed with the final state, null if the job is unknown or its state was
+	 *         already discarded
+	 */
+	public CompletableFuture<OfferGenerationProgress> getResult(String jobId)
+	{
+		var job = jobs.get(jobId);
+		return job != null ? job.result : null;
+	}
+
+	/**
+	 * Returns the final state of a job submitted by the given session or client when it finishes.
+	 *
+	 * @param jobId
+	 *            ID of the job
+	 * @param ownerId
+	 *            ID of the session or client asking, as passed when the job was submitted
+	 * @return future completed with the final state, null if the job is unknown, was submitted by
+	 *         someone else or its state was already discarded
+	 */
+	public CompletableFuture<OfferGenerationProgress> getResult(String jobId, String ownerId)
+	{
+		return isOwnedBy(jobId, ownerId) ? getResult(jobId) : null;
+	}
+
+	private boolean isOwnedBy(String jobId, String ownerId)
+	{
+		var job = jobs.get(jobId);
+		return job != null && job.sessionId.equals(ownerId);
+	}
+
+	/**
+	 * Starts parsing an upload (including picture resolution) in the background as soon as the file
+	 * is selected, so that generating it later only renders. Speculative work is best effort and
+	 * runs on its own small executor, so it never delays a submitted job: it is skipped when its
+	 * queue is full, and the preparation running for the session is cancelled when another file is
+	 * prepared, see also {@link #cancelPreparation(String)}.
+	 *
+	 * @param sessionId
+	 *            ID of the session selecting the file
+	 * @param xml
+	 *            content of the selected offer XML
+	 */
+	public void prepare(String sessionId, byte[] xml)
+	{
+		var uploadHash = DigestUtils.sha256Hex(xml);
+		if (parsedOfferStore.contains(uploadHash))
+		{
+			return;
+		}
+
+		Preparation preparation;
+		synchronized (preparations)
+		{
+			var previous = preparations.get(sessionId);
+			if (previous != null && previous.uploadHash.equals(uploadHash))
+			{
+				return;
+			}
+			// the timeout is scheduled only for a preparation that is going to run
+			preparation = new Preparation(sessionId, uploadHash, CancellationToken.withTimeout(JOB_TIMEOUT));
+			if (previous != null)
+			{
+				previous.cancellation.cancel("Vybraný soubor byl nahrazen");
+			}
+			preparations.put(sessionId, preparation);
+		}
+
+		var application = Application.exists() ? Application.get() : null;
+		try
+		{
+			preparationExecutor.execute(new PreparationTask(preparation, application, xml));
+			LOG.debug("Speculative parse of offer {} queued", uploadHash);
+		}
+		catch (RejectedExecutionException e)
+		{
+			LOG.info("Offer preparation queue is full, skipping speculative parse");
+			preparation.cancellation.complete();
+			synchronized (preparations)
+			{
+				preparations.remove(sessionId, preparation);
+			}
+		}
+	}
+
+	/**
+	 * Cancels the speculative parse running for a session, e.g. when the selected file is removed or
+	 * the session ends.
+	 *
+	 * @param sessionId
+	 *            ID of the session
+	 */
+	public void cancelPreparation(String sessionId)
+	{
+		Preparation preparation;
+		synchronized (preparations)
+		{
+			preparation = preparations.remove(sessionId);
+		}
+		if (preparation != null)
+		{
+			LOG.debug("Cancelling speculative parse of offer {}", preparation.uploadHash);
+			preparation.cancellation.cancel("Příprava nabídky byla zrušena");
+		}
+	}
+
+	/**
+	 * Stops the workers, running jobs and preparations are interrupted and waiting jobs fail.
+	 */
+	@Override
+	public void close()
+	{
+		for (var waiting : preparationExecutor.shutdownNow())
+		{
+			if (waiting instanceof PreparationTask task)
+			{
+				task.preparation.cancellation.complete();
+			}
+		}
+		for (var waiting : executor.shutdownNow())
+		{
+			if (waiting instanceof GenerationTask task)
+			{
+				task.job.finish(task.job.progress.failed("Server se vypíná"));
+			}
+		}
+	}
+
+	private IssuedOffer parse(byte[] xml) throws Exception
+	{
+		var offer = xmlOfferParser.parse(new ByteArrayInputStream(xml));
+		LOG.info("Parsed offer {} with {} products", offer.getDocNumber(), offer.getProducts().size());
+		return offer;
+	}
+
+	/**
+	 * Rejects a job of a session which has too many unfinished jobs, all files of a batch count as
+	 * one job.
+	 */
+	private void checkSessionLimit(String sessionId, int maxUnfinishedJobs)
+	{
+		long unfinished = jobs.values()
+			.stream()
+			.filter(j -> j.sessionId.equals(sessionId) && !j.progress.isFinished())
+			.map(j -> j.batchId != null ? j.batchId : j.id)
+			.distinct()
+			.count();
+		if (unfinished >= maxUnfinishedJobs)
+		{
+			throw new GenerationRejectedException(
+				"Generování předchozí nabídky ještě probíhá, počkejte prosím na jeho dokončení");
+		}
+	}
+
+	private void purgeFinishedJobs()
+	{
+		long now = System.nanoTime();
+		jobs.values()
+			.removeIf(job -> job.progress.isFinished() && now - job.finishedAt > FINISHED_JOB_RETENTION.toNanos());
+		batches.values().removeIf(batch -> batch.stream().noneMatch(job -> jobs.containsKey(job.id)));
+	}
+
+	private static String failureMessage(Exception e)
+	{
+		var cancellation = ExceptionUtils.throwableOfType(e, CancellationException.class);
+		return cancellation != null ? cancellation.getMessage() : e.getMessage();
+	}
+
+	/**
+	 * Thrown when a job is not accepted because of the concurrency limits. The message is meant for
+	 * the user.
+	 */
+	public static class GenerationRejectedException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final boolean queueFull;
+
+		/**
+		 * Construct.
+		 *
+		 * @param message
+		 *            message for the user
+		 */
+		public GenerationRejectedException(String message)
+		{
+			this(message, false);
+		}
+
+		/**
+		 * Construct.
+		 *
+		 * @param message
+		 *            message for the user
+		 * @param queueFull
+		 *            true if the job was rejected because the server is busy, rather than because of
+		 *            the limits of the submitter
+		 */
+		public GenerationRejectedException(String message, boolean queueFull)
+		{
+			super(message);
+			this.queueFull = queueFull;
+		}
+
+		/**
+		 * @return true if the job was rejected because the server is busy
+		 */
+		public boolean isQueueFull()
+		{
+			return queueFull;
+		}
+	}
+
+	/**
+	 * Uploaded file of a batch.
+	 *
+	 * @param fileName
+	 *            name of the file on the client
+	 * @param xml
+	 *            content of the offer XML
+	 */
+	public record BatchFile(String fileName, byte[] xml)
+	{
+	}
+
+	/**
+	 * State of a file of a batch.
+	 *
+	 * @param fileName
+	 *            name of the uploaded file on the client
+	 * @param progress
+	 *            state of its generation
+	 */
+	public record BatchEntry(String fileName, OfferGenerationProgress progress) implements Serializable
+	{
+	}
+
+	/**
+	 * A submitted job and its current state.
+	 */
+	private static class Job
+	{
+		private final String id;
+		private final String sessionId;
+		private final String batchId;
+		private final String sourceName;
+		private final CompletableFuture<OfferGenerationProgress> result = new CompletableFuture<>();
+		private volatile OfferGenerationProgress progress;
+		private volatile long finishedAt;
+
+		private Job(String id, String sessionId, String batchId, String sourceName, OfferGenerationProgress progress)
+		{
+			this.id = id;
+			this.sessionId = sessionId;
+			this.batchId = batchId;
+			this.sourceName = sourceName;
+			this.progress = progress;
+		}
+
+		private void finish(OfferGenerationProgress finalProgress)
+		{
+			// finishedAt first, a finished job must not look finished long ago
+			finishedAt = System.nanoTime();
+			progress = finalProgress;
+			result.complete(finalProgress);
+		}
+	}
+
+	/**
+	 * Speculative parse of a selected file.
+	 */
+	private static class Preparation
+	{
+		private final String sessionId;
+		private final String uploadHash;
+		private final CancellationToken cancellation;
+
+		private Preparation(String sessionId, String uploadHash, CancellationToken cancellation)
+		{
+			this.sessionId = sessionId;
+			this.uploadHash = uploadHash;
+			this.cancellation = cancellation;
+		}
+	}
+
+	/**
+	 * Parses a selected file into {@link ParsedOfferStore} in a worker thread.
+	 */
+	private class PreparationTask implements Runnable
+	{
+		private final Preparation preparation;
+		private final Application application;
+		private final byte[] xml;
+
+		private PreparationTask(Preparation preparation, Application application, byte[] xml)
+		{
+			this.preparation = preparation;
+			this.application = application;
+			this.xml = xml;
+		}
+
+		@Override
+		public void run()
+		{
+			if (application != null)
+			{
+				ThreadContext.setApplication(application);
+			}
+			try (var scope = preparation.cancellation.bind())
+			{
+				preparation.cancellation.throwIfCancelled();
+				parsedOfferStore.getOrParse(preparation.uploadHash, () -> parse(xml));
+			}
+			catch (Exception e)
+			{
+				if (ExceptionUtils.throwableOfType(e, CancellationException.class) != null)
+				{
+					LOG.info("Speculative parse of offer {} cancelled: {}", preparation.uploadHash, failureMessage(e));
+				}
+				else
+				{
+					// reported to the user when the offer is generated
+					LOG.warn("Speculative parse of offer {} failed", preparation.uploadHash, e);
+				}
+			}
+			finally
+			{
+				synchronized (preparations)
+				{
+					preparations.remove(preparation.sessionId, preparation);
+				}
+				ThreadContext.detach();
+			}
+		}
+	}
+
+	/**
+	 * Parses the offer and renders its PDF in a worker thread.
+	 */
+	private class GenerationTask implements Runnable
+	{
+		private final Job job;
+		private final Application application;
+		private final PdfDisplayOptions options;
+		private final Path outputPath;
+		private final byte[] xml;
+
+		private GenerationTask(Job job, Application application, byte[] xml, PdfDisplayOptions options, Path outputPath)
+		{
+			this.job = job;
+			this.application = application;
+			this.xml = xml;
+			this.options = options;
+			this.outputPath = outputPath;
+		}
+
+		@Override
+		public void run()
+		{
+			if (application != null)
+			{
+				ThreadContext.setApplication(application);
+			}
+			long start = System.nanoTime();
+			try (var scope = CancellationToken.withTimeout(JOB_TIMEOUT).bind())
+			{
+				job.progress = job.progress.parsing();
+				var cacheKey = OfferPdfCache.key(job.progress.uploadHash(), options);
+				offerPdfCache.getOrRender(cacheKey, this::render, this::publish);
+
+				job.finish(job.progress.done());
+				LOG.info("Offer generation job {} finished in {} ms", job.id,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			}
+			catch (Exception e)
+			{
+				LOG.error("Offer generation job {} failed", job.id, e);
+				job.finish(job.progress.failed(failureMessage(e)));
+			}
+			finally
+			{
+				ThreadContext.detach();
+			}
+		}
+
+		private void render(Path target) throws Exception
+		{
+			var offer = parsedOfferStore.getOrParse(job.progress.uploadHash(), () -> {
+				if (xml == null)
+				{
+					throw new IllegalStateException("Nahraná nabídka již není k dispozici, nahrajte prosím soubor znovu");
+				}
+				return parse(xml);
+			});
+
+			job.progress = job.progress.rendering(offer.getDocNumber(), offer.getProducts().size());
+			offerPdfGenerator.generatePdf(offer, options, target);
+		}
+
+		/**
+		 * Makes the cached PDF available under the output path, as a hard link if possible.
+		 */
+		private void publish(Path pdf) throws IOException
+		{
+			Files.createDirectories(outputPath.getParent());
+			Files.deleteIfExists(outputPath);
+			try
+			{
+				Files.createLink(outputPath, pdf);
+			}
+			catch (IOException | UnsupportedOperationException e)
+			{
+				Files.copy(pdf, outputPath);
+			}
+		}
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.solight.generator.xmltopdf.pojo.PdfDisplayOptions;
+import cz.solight.generator.xmltopdf.util.CancellationToken;
+
+/**
+ * On-disk cache of rendered offer PDFs. The key combines the SHA-256 hash of the uploaded XML, the
+ * {@link PdfDisplayOptions}, {@link OfferPdfGenerator#TEMPLATE_VERSION} and the current date
+ * (printed in the offer), so an offer uploaded again with the same options is not parsed and
+ * rendered again.
+ *
+ * <p>
+ * Concurrent requests for the same key are coalesced: the first one renders, the others wait for
+ * its result. Cached PDFs expire after the configured time without use, and the least recently
+ * used ones are evicted when the cache holds more files or bytes than configured. A cached PDF is
+ * handed over to a {@link Publisher} under a lock that eviction waits for, so it cannot be deleted
+ * between being found and being published.
+ * </p>
+ */
+public class OfferPdfCache
+{
+	private static final Logger LOG = LoggerFactory.getLogger(OfferPdfCache.class);
+	private static final String DEFAULT_DIRECTORY = getDefaultConfiguration().getString("offers.cacheDirectory",
+		"/data/tmp/offer-cache");
+	private static final Duration TTL = Duration.ofHours(getDefaultConfiguration().getLong("offers.cacheTtlHours", 24));
+	private static final int MAX_FILES = getDefaultConfiguration().getInt("offers.cacheMaxFiles", 200);
+	private static final long MAX_BYTES = getDefaultConfiguration().getLong("offers.cacheMaxBytes", 1_073_741_824L);
+
+	private static final String PDF_SUFFIX = ".pdf";
+	private static final String PART_SUFFIX = ".part";
+
+	private final Path directory;
+	private final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+	/** Held shared while a cached PDF is published, exclusively while PDFs are evicted. */
+	private final ReadWriteLock evictionLock = new ReentrantReadWriteLock();
+	/**
+	 * Last use of cached PDFs since the start. Kept in memory rather than as the modification time,
+	 * since published PDFs are hard links to the cached ones and their modification time is the
+	 * Last-Modified of the downloads.
+	 */
+	private final Map<Path, Long> lastUsed = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates a cache in the configured directory.
+	 */
+	public OfferPdfCache()
+	{
+		this(Path.of(DEFAULT_DIRECTORY));
+	}
+
+	/**
+	 * Creates a cache in the given directory.
+	 *
+	 * @param directory
+	 *            directory holding the cached PDFs
+	 */
+	public OfferPdfCache(Path directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Computes the cache key of an offer rendering.
+	 *
+	 * @param xmlHash
+	 *            SHA-256 hash of the uploaded XML
+	 * @param options
+	 *            the display options
+	 * @return the key
+	 */
+	public static String key(String xmlHash, PdfDisplayOptions options)
+	{
+		return DigestUtils.sha256Hex(xmlHash + '|' + options.isShowPriceMy() + '|' + options.isShowPriceVOC() + '|'
+			+ options.isShowPriceMOC() + '|' + options.getLocale().name() + '|' + OfferPdfGenerator.TEMPLATE_VERSION + '|'
+			+ LocalDate.now());
+	}
+
+	/**
+	 * Publishes the cached PDF for the key, rendering it first if it is not cached. If the same key
+	 * is being rendered by another thread, waits for that rendering instead.
+	 *
+	 * @param key
+	 *            the key, see {@link #key(String, PdfDisplayOptions)}
+	 * @param renderer
+	 *            renders the PDF into the given file
+	 * @param publisher
+	 *            makes the cached PDF available to the user, e.g. links it to the output path
+	 * @throws Exception
+	 *             if rendering or publishing fails
+	 */
+	public void getOrRender(String key, Renderer renderer, Publisher publisher) throws Exception
+	{
+		var file = directory.resolve(key + PDF_SUFFIX);
+		while (true)
+		{
+			if (publishCached(file, publisher))
+			{
+				LOG.info("Offer PDF found in cache: {}", file);
+				return;
+			}
+
+			var rendering = new CompletableFuture<Path>();
+			var running = inFlight.putIfAbsent(key, rendering);
+			if (running == null)
+			{
+				render(key, file, rendering, renderer, publisher);
+				return;
+			}
+
+			LOG.info("Identical offer PDF is being rendered, waiting for it");
+			await(running);
+			// publishing is retried, the PDF may have been evicted since it was rendered
+		}
+	}
+
+	private void render(String key, Path file, CompletableFuture<Path> rendering, Renderer renderer, Publisher publisher)
+		throws Exception
+	{
+		try
+		{
+			// the file may have been stored between the check and the registration
+			if (!publishCached(file, publisher))
+			{
+				Files.createDirectories(directory);
+				var partFile = directory.resolve(key + PART_SUFFIX);
+				renderer.render(partFile);
+				evictionLock.readLock().lock();
+				try
+				{
+					Files.move(partFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					publisher.publish(file);
+				}
+				finally
+				{
+					evictionLock.readLock().unlock();
+				}
+				evict();
+			}
+			rendering.complete(file);
+		}
+		catch (Exception e)
+		{
+			Files.deleteIfExists(directory.resolve(key + PART_SUFFIX));
+			rendering.completeExceptionally(e);
+			throw e;
+		}
+		finally
+		{
+			inFlight.remove(key, rendering);
+		}
+	}
+
+	/**
+	 * Publishes the PDF if it is cached, marking it as recently used.
+	 *
+	 * @return true if the PDF was cached and published
+	 */
+	private boolean publishCached(Path file, Publisher publisher) throws Exception
+	{
+		evictionLock.readLock().lock();
+		try
+		{
+			if (!isFresh(file))
+			{
+				return false;
+			}
+			lastUsed.put(file, System.currentTimeMillis());
+			publisher.publish(file);
+			return true;
+		}
+		finally
+		{
+			evictionLock.readLock().unlock();
+		}
+	}
+
+	private static Path await(CompletableFuture<Path> rendering) throws Exception
+	{
+		try
+		{
+			return CancellationToken.current().call(rendering::get);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof Exception cause)
+			{
+				throw cause;
+			}
+			throw e;
+		}
+	}
+
+	private boolean isFresh(Path file)
+	{
+		try
+		{
+			return Files.isRegularFile(file) && lastUsedMillis(file) > System.currentTimeMillis() - TTL.toMillis();
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * @return time of the last use of a cached PDF, its modification time if it was not used since
+	 *         the start
+	 */
+	private long lastUsedMillis(Path file) throws IOException
+	{
+		long modified = Files.getLastModifiedTime(file).toMillis();
+		return Math.max(modified, lastUsed.getOrDefault(file, modified));
+	}
+
+	/**
+	 * Deletes expired PDFs, then the least recently used ones until the limits are met. Failures
+	 * are logged and otherwise ignored.
+	 */
+	private void evict()
+	{
+		evictionLock.writeLock().lock();
+		try
+		{
+			evictLocked();
+		}
+		finally
+		{
+			evictionLock.writeLock().unlock();
+		}
+	}
+
+	private void evictLocked()
+	{
+		record CachedFile(Path path, long size, long lastUsed)
+		{
+		}
+
+		var files = new ArrayList<CachedFile>();
+		try (var listing = Files.list(directory))
+		{
+			for (var file : (Iterable<Path>)listing::iterator)
+			{
+				if (file.getFileName().toString().endsWith(PDF_SUFFIX))
+				{
+					files.add(new CachedFile(file, Files.size(file), lastUsedMillis(file)));
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Failed to list offer PDF cache {}", directory, e);
+			return;
+		}
+
+		// forget files deleted by other means
+		lastUsed.keySet().retainAll(Set.copyOf(files.stream().map(CachedFile::path).toList()));
+		files.sort(Comparator.comparingLong(CachedFile::lastUsed));
+		long totalBytes = files.stream().mapToLong(CachedFile::size).sum();
+		int count = files.size();
+		int evicted = 0;
+		for (var file : files)
+		{
+			boolean expired = !isFresh(file.path());
+			if (!expired && count <= MAX_FILES && totalBytes <= MAX_BYTES)
+			{
+				break;
+			}
+			try
+			{
+				Files.deleteIfExists(file.path());
+				lastUsed.remove(file.path());
+				count--;
+				totalBytes -= file.size();
+				evicted++;
+			}
+			catch (IOException e)
+			{
+				LOG.warn("Failed to evict cached offer PDF {}", file.path(), e);
+			}
+		}
+		if (evicted > 0)
+		{
+			LOG.info("Evicted {} cached offer PDFs, {} remain ({} bytes)", evicted, count, totalBytes);
+		}
+	}
+
+	/**
+	 * Renders a PDF into a file.
+	 */
+	@FunctionalInterface
+	public interface Renderer
+	{
+		/**
+		 * @param target
+		 *            the file to write
+		 * @throws Exception
+		 *             if rendering fails
+		 */
+		void render(Path target) throws Exception;
+	}
+
+	/**
+	 * Makes a cached PDF available to the user.
+	 */
+	@FunctionalInterface
+	public interface Publisher
+	{
+		/**
+		 * @param pdf
+		 *            the cached PDF, must not be modified
+		 * @throws Exception
+		 *             if publishing fails
+		 */
+		void publish(Path pdf) throws Exception;
+	}
+}
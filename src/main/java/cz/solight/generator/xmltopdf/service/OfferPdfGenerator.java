@@ -36,12 +36,14 @@ import org.slf4j.LoggerFactory;
 
 import cz.solight.generator.xmltopdf.pojo.IssuedOffer;
 import cz.solight.generator.xmltopdf.pojo.PdfDisplayOptions;
+import cz.solight.generator.xmltopdf.util.CancellationToken;
 import cz.solight.generator.xmltopdf.util.ContextUtil;
 
 import name.berries.wicket.util.app.AppConfigProvider;
 import name.berries.wicket.util.app.AppConfigProvider.ConfigKey;
 
 import kong.unirest.core.HttpResponse;
+import kong.unirest.core.MultipartBody;
 import kong.unirest.core.Unirest;
 
 /**
@@ -51,6 +53,12 @@ import kong.unirest.core.Unirest;
 public class OfferPdfGenerator
 {
 	private static final Logger LOG = LoggerFactory.getLogger(OfferPdfGenerator.class);
+
+	/**
+	 * Version of the offer templates and rendering options. Increase on every change that alters
+	 * the generated PDFs, so that offers cached by {@link OfferPdfCache} are rendered again.
+	 */
+	public static final int TEMPLATE_VERSION = 1;
 	private static final DateTimeFormatter CZECH_DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy");
 
 	private static final String TEMPLATE_PATH = "templates/offer-catalog.vm";
@@ -186,13 +194,14 @@ public class OfferPdfGenerator
 	 */
 	private byte[] generatePdfWithHeaderFooter(String mainHtml, String headerHtml, String footerHtml) throws Exception
 	{
-		HttpResponse<byte[]> response = Unirest.post(gotenbergUrl + "/forms/chromium/convert/html")
+		MultipartBody request = Unirest.post(gotenbergUrl + "/forms/chromium/convert/html")
 			.field("files", new ByteArrayInputStream(mainHtml.getBytes(StandardCharsets.UTF_8)), "index.html")
 			.field("files", new ByteArrayInputStream(headerHtml.getBytes(StandardCharsets.UTF_8)), "header.html")
 			.field("files", new ByteArrayInputStream(footerHtml.getBytes(StandardCharsets.UTF_8)), "footer.html")
 			.field("preferCssPageSize", "true").field("printBackground", "true").field("marginTop", HEADER_MARGIN)
 			.field("marginBottom", FOOTER_MARGIN).field("marginLeft", "0").field("marginRight", "0")
-			.field("waitForExpression", "window.pdfReady === true").asBytes();
+			.field("waitForExpression", "window.pdfReady === true");
+		HttpResponse<byte[]> response = CancellationToken.current().call(request::asBytes);
 
 		if (!response.isSuccess())
 		{
@@ -35,6 +35,7 @@ import cz.solight.generator.xmltopdf.pojo.FirmInfo;
 import cz.solight.generator.xmltopdf.pojo.IssuedOffer;
 import cz.solight.generator.xmltopdf.pojo.ProductPrice;
 import cz.solight.generator.xmltopdf.pojo.ProductRow;
+import cz.solight.generator.xmltopdf.util.DescriptionFormatter;
 
 import jakarta.inject.Inject;
 
@@ -201,7 +202,7 @@ public class OfferXmlParser
 
 			// Parse and format description
 			var rawDescription = getElementText(storeCard, "Description");
-			product.setDescription(formatDescription(rawDescription));
+			product.setDescription(DescriptionFormatter.formatListDescription(rawDescription));
 
 			// Parse price
 			product.setPrice(parsePrice(storeCard));
@@ -232,51 +233,6 @@ public class OfferXmlParser
 		return price;
 	}
 
-	/**
-	 * Formats the description HTML by truncating and reformatting list items. Ported from PHP
-	 * getDescription function.
-	 *
-	 * @param xmlDescription
-	 *            the raw XML description
-	 * @return the formatted description HTML
-	 */
-	private String formatDescription(String xmlDescription)
-	{
-		if (StringUtils.isBlank(xmlDescription))
-		{
-			return "";
-		}
-
-		var description = xmlDescription;
-
-		// Convert <li> to temp markers, remove <ul>
-		description = description.replaceAll("(?i)</li>", "<br />");
-		description = description.replaceAll("(?i)<li>", "### ");
-		description = description.replaceAll("(?i)<ul>", "");
-		description = description.replaceAll("(?i)</ul>", "");
-
-		// Determine line count based on length
-		int lineCount = description.length() > 1500 ? 10 : 15;
-
-		// Split by newlines and take first N lines
-		var lines = description.split("\n");
-		var limitedLines = new ArrayList<String>();
-		for (int i = 0; i < Math.min(lineCount, lines.length); i++)
-		{
-			limitedLines.add(lines[i]);
-		}
-		description = String.join("\n", limitedLines);
-
-		// Convert markers back to list items
-		description = description.replace("### ", "<li>");
-		description = description.replace("<br />", "</li>");
-
-		// Wrap in <ul>
-		description = "<ul>" + description + "</ul>";
-
-		return description;
-	}
-
 	/**
 	 * Gets the text content of a child element.
 	 */
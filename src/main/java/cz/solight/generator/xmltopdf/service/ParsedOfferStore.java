@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.solight.generator.xmltopdf.pojo.IssuedOffer;
+import cz.solight.generator.xmltopdf.util.CancellationToken;
+
+/**
+ * Bounded in-memory store of parsed offers (with resolved picture URLs) keyed by the SHA-256 hash
+ * of the uploaded XML. Regenerating an uploaded offer with different display options renders it
+ * straight from the store, without reading the upload again, parsing it and resolving every
+ * picture. The offers are kept on the server rather than serialized into the page.
+ *
+ * <p>
+ * The least recently used offers are evicted when the store is full. Callers get copies, because
+ * rendering fills in locale dependent defaults.
+ * </p>
+ */
+public class ParsedOfferStore
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ParsedOfferStore.class);
+	private static final int MAX_OFFERS = getDefaultConfiguration().getInt("offers.parsedOfferStoreSize", 20);
+
+	private final Map<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+	private final Map<String, StoredOffer> offers = new LinkedHashMap<>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, StoredOffer> eldest)
+		{
+			return size() > MAX_OFFERS;
+		}
+	};
+
+	/**
+	 * Construct.
+	 */
+	public ParsedOfferStore()
+	{
+		super();
+	}
+
+	/**
+	 * Stores a parsed offer.
+	 *
+	 * @param uploadHash
+	 *            SHA-256 hash of the uploaded XML
+	 * @param offer
+	 *            the parsed offer
+	 * @param parseNanos
+	 *            how long parsing (including picture resolution) took
+	 */
+	public void store(String uploadHash, IssuedOffer offer, long parseNanos)
+	{
+		var stored = new StoredOffer(SerializationUtils.clone(offer), parseNanos);
+		synchronized (offers)
+		{
+			offers.put(uploadHash, stored);
+		}
+	}
+
+	/**
+	 * Returns a copy of the stored offer, parsing it first if it is not stored. If the same upload
+	 * is being parsed by another thread (e.g. speculatively while the user sets the options), waits
+	 * for that parse instead; if that parse gets cancelled, parses the upload itself.
+	 *
+	 * @param uploadHash
+	 *            SHA-256 hash of the uploaded XML
+	 * @param parser
+	 *            parses the upload
+	 * @return the offer
+	 * @throws Exception
+	 *             if parsing fails
+	 */
+	public IssuedOffer getOrParse(String uploadHash, Parser parser) throws Exception
+	{
+		while (true)
+		{
+			var offer = get(uploadHash);
+			if (offer != null)
+			{
+				return offer;
+			}
+
+			var parsing = new CompletableFuture<Void>();
+			var running = inFlight.putIfAbsent(uploadHash, parsing);
+			if (running == null)
+			{
+				try
+				{
+					long start = System.nanoTime();
+					offer = parser.parse();
+					store(uploadHash, offer, System.nanoTime() - start);
+					parsing.complete(null);
+					return offer;
+				}
+				catch (Exception e)
+				{
+					parsing.completeExceptionally(e);
+					throw e;
+				}
+				finally
+				{
+					inFlight.remove(uploadHash, parsing);
+				}
+			}
+
+			LOG.info("Offer is already being parsed, waiting for it");
+			try
+			{
+				CancellationToken.current().call(running::get);
+			}
+			catch (CancellationException | ExecutionException e)
+			{
+				// the other parse was cancelled (the parser may have wrapped the cancellation)
+				if (ExceptionUtils.throwableOfType(e, CancellationException.class) != null
+					&& !CancellationToken.current().isCancelled())
+				{
+					LOG.info("Parse of the offer was cancelled, parsing it again");
+					continue;
+				}
+				if (e instanceof ExecutionException && e.getCause() instanceof Exception cause)
+				{
+					throw cause;
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy of a stored offer.
+	 *
+	 * @param uploadHash
+	 *            SHA-256 hash of the uploaded XML
+	 * @return copy of the offer, or null if it is not (or no longer) stored
+	 */
+	public IssuedOffer get(String uploadHash)
+	{
+		StoredOffer stored;
+		synchronized (offers)
+		{
+			stored = offers.get(uploadHash);
+		}
+		if (stored == null)
+		{
+			return null;
+		}
+		LOG.info("Reusing parsed offer {}, saved {} ms of parsing and picture resolution", stored.offer().getDocNumber(),
+			TimeUnit.NANOSECONDS.toMillis(stored.parseNanos()));
+		return SerializationUtils.clone(stored.offer());
+	}
+
+	/**
+	 * @param uploadHash
+	 *            SHA-256 hash of the uploaded XML
+	 * @return true if the offer is stored
+	 */
+	public boolean contains(String uploadHash)
+	{
+		synchronized (offers)
+		{
+			return offers.containsKey(uploadHash);
+		}
+	}
+
+	/**
+	 * Parses an uploaded offer.
+	 */
+	@FunctionalInterface
+	public interface Parser
+	{
+		/**
+		 * @return the parsed offer
+		 * @throws Exception
+		 *             if parsing fails
+		 */
+		IssuedOffer parse() throws Exception;
+	}
+
+	/**
+	 * A parsed offer and the time it took to parse it.
+	 */
+	private record StoredOffer(IssuedOffer offer, long parseNanos)
+	{
+	}
+}
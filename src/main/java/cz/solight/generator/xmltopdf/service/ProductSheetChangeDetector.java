@@ -0,0 +1,272 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.solight.generator.xmltopdf.pojo.ProductSheet;
+
+/**
+ * Detects which products of a catalogue changed since the previous run. Keeps per-product
+ * fingerprints (product code to hash of all fields and resolved image URLs) of the last run for
+ * each source XML file, so that only added and changed products have their PDFs regenerated.
+ *
+ * <p>
+ * The fingerprint includes {@link ProductSheetPdfGenerator#TEMPLATE_VERSION}; bumping it, or
+ * requesting a full rebuild, regenerates every product.
+ * </p>
+ *
+ * <p>
+ * While a run uploads the PDFs, finished products are checkpointed in a {@link ProductSheetJournal}
+ * next to the fingerprints, so that a run interrupted before it stored the fingerprints can be
+ * resumed. A resumed full rebuild stays a full rebuild.
+ * </p>
+ */
+public class ProductSheetChangeDetector
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ProductSheetChangeDetector.class);
+	private static final String DEFAULT_DIRECTORY = getDefaultConfiguration().getString("productSheets.fingerprintDirectory");
+	private static final String FINGERPRINT_SUFFIX = ".fingerprints";
+	private static final String JOURNAL_SUFFIX = ".journal";
+
+	private final Path directory;
+
+	/**
+	 * Creates a detector storing fingerprints in the configured directory.
+	 */
+	public ProductSheetChangeDetector()
+	{
+		this(Path.of(DEFAULT_DIRECTORY));
+	}
+
+	/**
+	 * Creates a detector storing fingerprints in the given directory.
+	 *
+	 * @param directory
+	 *            directory holding the fingerprint files
+	 */
+	public ProductSheetChangeDetector(Path directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Classifies the products against the fingerprints stored by the previous run.
+	 *
+	 * @param sourceName
+	 *            name of the source XML file, fingerprints are kept separately for each source
+	 * @param products
+	 *            the parsed products
+	 * @param forceFullRebuild
+	 *            if true, all products are reported as changed (e.g. after a template change)
+	 * @return the delta
+	 */
+	public ProductSheetDelta detectChanges(String sourceName, List<ProductSheet> products, boolean forceFullRebuild)
+	{
+		var delta = startDetection(sourceName, forceFullRebuild);
+		for (var product : products)
+		{
+			delta.classify(product);
+		}
+		finishDetection(delta);
+		return delta;
+	}
+
+	/**
+	 * Starts classifying products one by one, e.g. while the catalogue is streamed. Products are
+	 * passed to {@link ProductSheetDelta#classify(ProductSheet)}, then
+	 * {@link #finishDetection(ProductSheetDelta)} is called.
+	 *
+	 * @param sourceName
+	 *            name of the source XML file, fingerprints are kept separately for each source
+	 * @param forceFullRebuild
+	 *            if true, all products are reported as changed (e.g. after a template change); also
+	 *            the case if the run resumes an interrupted full rebuild
+	 * @return the empty delta
+	 */
+	public ProductSheetDelta startDetection(String sourceName, boolean forceFullRebuild)
+	{
+		var journal = ProductSheetJournal.open(directory.resolve(sourceName + JOURNAL_SUFFIX), forceFullRebuild);
+		if (journal.isFullRebuild() && !forceFullRebuild)
+		{
+			LOG.info("Resuming interrupted full rebuild of {}", sourceName);
+		}
+		var previous = journal.isFullRebuild() ? Map.<String, String> of() : loadFingerprints(sourceName);
+		// fingerprints are read by the upload threads for checkpointing
+		return new ProductSheetDelta(sourceName, new ConcurrentHashMap<>(), previous, journal.isFullRebuild(), journal);
+	}
+
+	/**
+	 * Completes the delta after all products were classified, determining the removed products.
+	 *
+	 * @param delta
+	 *            the delta
+	 */
+	public void finishDetection(ProductSheetDelta delta)
+	{
+		for (var code : delta.getPreviousFingerprints().keySet())
+		{
+			if (!delta.getFingerprints().containsKey(code))
+			{
+				delta.addRemoved(code);
+			}
+		}
+
+		LOG.info("Detected product changes: {}", delta);
+		if (!delta.getRemovedCodes().isEmpty())
+		{
+			LOG.info("Products removed from {}: {}", delta.getSourceName(), delta.getRemovedCodes());
+		}
+	}
+
+	/**
+	 * Stores the fingerprints of the delta as the baseline for the next run. Products whose
+	 * generation failed keep their previous fingerprint (or none), so they are processed again.
+	 * The journal of the run is deleted once the fingerprints are stored.
+	 *
+	 * @param delta
+	 *            the delta computed by {@link #detectChanges(String, List, boolean)}
+	 * @param failedCodes
+	 *            codes of products whose PDFs were not generated or uploaded
+	 */
+	public void saveFingerprints(ProductSheetDelta delta, Collection<String> failedCodes)
+	{
+		var fingerprints = new HashMap<>(delta.getFingerprints());
+		for (var code : failedCodes)
+		{
+			var previous = delta.getPreviousFingerprints().get(code);
+			if (previous != null)
+			{
+				fingerprints.put(code, previous);
+			}
+			else
+			{
+				fingerprints.remove(code);
+			}
+		}
+
+		var properties = new Properties();
+		properties.putAll(fingerprints);
+
+		try
+		{
+			Files.createDirectories(directory);
+			var tempFile = Files.createTempFile(directory, "fingerprints-", ".tmp");
+			try (var writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))
+			{
+				properties.store(writer, "Product sheet fingerprints of " + delta.getSourceName());
+			}
+			Files.move(tempFile, fingerprintFile(delta.getSourceName()), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+			LOG.info("Saved {} product fingerprints for {}", fingerprints.size(), delta.getSourceName());
+			delta.getJournal().delete();
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Failed to save product fingerprints for {}", delta.getSourceName(), e);
+			delta.getJournal().close();
+		}
+	}
+
+	private Map<String, String> loadFingerprints(String sourceName)
+	{
+		var file = fingerprintFile(sourceName);
+		var fingerprints = new HashMap<String, String>();
+		if (!Files.isRegularFile(file))
+		{
+			return fingerprints;
+		}
+
+		var properties = new Properties();
+		try (var reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+		{
+			properties.load(reader);
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Failed to load product fingerprints from {}, treating all products as added", file, e);
+			return fingerprints;
+		}
+
+		for (var name : properties.stringPropertyNames())
+		{
+			fingerprints.put(name, properties.getProperty(name));
+		}
+		return fingerprints;
+	}
+
+	private Path fingerprintFile(String sourceName)
+	{
+		return directory.resolve(sourceName + FINGERPRINT_SUFFIX);
+	}
+
+	/**
+	 * Computes the fingerprint of a product from all its fields and resolved image URLs.
+	 *
+	 * @param product
+	 *            the product
+	 * @return hex encoded SHA-256 fingerprint
+	 */
+	static String fingerprint(ProductSheet product)
+	{
+		MessageDigest digest = DigestUtils.getSha256Digest();
+		update(digest, String.valueOf(ProductSheetPdfGenerator.TEMPLATE_VERSION));
+		update(digest, product.getCode());
+		update(digest, product.getName());
+		update(digest, product.getBrandName());
+		update(digest, product.getBrand());
+		update(digest, product.getEan());
+		update(digest, String.valueOf(product.getPackageCount()));
+		update(digest, String.valueOf(product.getGuaranteeLength()));
+		update(digest, product.getProductId());
+		update(digest, product.getDescription());
+		update(digest, product.getPicture1Url());
+		update(digest, product.getPicture2Url());
+		update(digest, product.getPicture3Url());
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	/**
+	 * Adds a length-prefixed value to the digest, so that null, empty and values shifted between
+	 * fields all produce different fingerprints.
+	 */
+	private static void update(MessageDigest digest, String value)
+	{
+		var bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		int length = value != null ? bytes.length : -1;
+		digest.update(new byte[] { (byte)(length >>> 24), (byte)(length >>> 16), (byte)(length >>> 8), (byte)length });
+		digest.update(bytes);
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import cz.solight.generator.xmltopdf.pojo.ProductSheet;
+import cz.solight.generator.xmltopdf.pojo.ProductSheetFormat;
+
+/**
+ * Result of comparing a parsed catalogue with the fingerprints of the previous run, as computed by
+ * {@link ProductSheetChangeDetector}. Products are classified as added, changed, unchanged or
+ * removed; only added and changed products need their PDFs regenerated. Products finished by an
+ * interrupted run (see {@link ProductSheetJournal}) are not regenerated either.
+ */
+public class ProductSheetDelta
+{
+	private final String sourceName;
+	private final List<ProductSheet> productsToGenerate = new ArrayList<>();
+	private final Map<String, String> fingerprints;
+	private final Map<String, String> previousFingerprints;
+	private final boolean forceFullRebuild;
+	private final ProductSheetJournal journal;
+	private int addedCount;
+	private int changedCount;
+	private int unchangedCount;
+	private int resumedCount;
+	private final List<String> removedCodes = new ArrayList<>();
+
+	/**
+	 * Construct.
+	 *
+	 * @param sourceName
+	 *            name of the source XML file
+	 * @param fingerprints
+	 *            fingerprints of the current products, keyed by product code
+	 * @param previousFingerprints
+	 *            fingerprints stored by the previous run, keyed by product code
+	 * @param forceFullRebuild
+	 *            if true, all products are classified as changed
+	 * @param journal
+	 *            checkpoint journal of the run
+	 */
+	ProductSheetDelta(String sourceName, Map<String, String> fingerprints, Map<String, String> previousFingerprints,
+		boolean forceFullRebuild, ProductSheetJournal journal)
+	{
+		this.sourceName = sourceName;
+		this.fingerprints = fingerprints;
+		this.previousFingerprints = previousFingerprints;
+		this.forceFullRebuild = forceFullRebuild;
+		this.journal = journal;
+	}
+
+	/**
+	 * Classifies a single product. Allows processing products one by one while the catalogue is
+	 * still being parsed; {@link ProductSheetChangeDetector#finishDetection(ProductSheetDelta)}
+	 * has to be called after the last product.
+	 *
+	 * @param product
+	 *            the parsed product
+	 * @return true if the product was added or changed and its PDFs need to be generated
+	 */
+	public boolean classify(ProductSheet product)
+	{
+		var fingerprint = ProductSheetChangeDetector.fingerprint(product);
+		fingerprints.put(product.getCode(), fingerprint);
+
+		var previousFingerprint = previousFingerprints.get(product.getCode());
+		if (fingerprint.equals(journal.getJournaledFingerprint(product.getCode()))
+			&& (forceFullRebuild || !fingerprint.equals(previousFingerprint)))
+		{
+			// already uploaded by an interrupted run
+			resumedCount++;
+			return false;
+		}
+		if (forceFullRebuild || (previousFingerprint != null && !previousFingerprint.equals(fingerprint)))
+		{
+			productsToGenerate.add(product);
+			changedCount++;
+			return true;
+		}
+		if (previousFingerprint == null)
+		{
+			productsToGenerate.add(product);
+			addedCount++;
+			return true;
+		}
+		unchangedCount++;
+		return false;
+	}
+
+	/**
+	 * Records that a generated file reached the server, see
+	 * {@link SftpUploadQueue#setUploadListener(java.util.function.Consumer)}. Once all files of a
+	 * product did, the product is checkpointed in the journal.
+	 *
+	 * @param filename
+	 *            name of the uploaded file
+	 */
+	public void uploaded(String filename)
+	{
+		var code = ProductSheetFormat.parseProductCode(filename);
+		if (code != null)
+		{
+			journal.uploaded(code, fingerprints.get(code));
+		}
+	}
+
+	void addRemoved(String code)
+	{
+		removedCodes.add(code);
+	}
+
+	/**
+	 * @return name of the source XML file
+	 */
+	public String getSourceName()
+	{
+		return sourceName;
+	}
+
+	/**
+	 * @return number of products processed by the previous run, an estimate of the catalogue size
+	 *         while it is still being parsed
+	 */
+	public int getPreviousCount()
+	{
+		return previousFingerprints.size();
+	}
+
+	/**
+	 * @return added and changed products in catalogue order
+	 */
+	public List<ProductSheet> getProductsToGenerate()
+	{
+		return productsToGenerate;
+	}
+
+	/**
+	 * @return number of products not present in the previous run
+	 */
+	public int getAddedCount()
+	{
+		return addedCount;
+	}
+
+	/**
+	 * @return number of products whose data or images changed since the previous run
+	 */
+	public int getChangedCount()
+	{
+		return changedCount;
+	}
+
+	/**
+	 * @return number of products identical to the previous run
+	 */
+	public int getUnchangedCount()
+	{
+		return unchangedCount;
+	}
+
+	/**
+	 * @return number of products skipped because an interrupted run already uploaded them
+	 */
+	public int getResumedCount()
+	{
+		return resumedCount;
+	}
+
+	/**
+	 * @return checkpoint journal of the run
+	 */
+	public ProductSheetJournal getJournal()
+	{
+		return journal;
+	}
+
+	/**
+	 * @return codes of products present in the previous run but missing now
+	 */
+	public List<String> getRemovedCodes()
+	{
+		return removedCodes;
+	}
+
+	/**
+	 * @return number of products present in the previous run but missing now
+	 */
+	public int getRemovedCount()
+	{
+		return removedCodes.size();
+	}
+
+	Map<String, String> getFingerprints()
+	{
+		return fingerprints;
+	}
+
+	Map<String, String> getPreviousFingerprints()
+	{
+		return previousFingerprints;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ProductSheetDelta[source=" + sourceName + ", added=" + addedCount + ", changed=" + changedCount + ", unchanged="
+			+ unchangedCount + ", resumed=" + resumedCount + ", removed=" + removedCodes.size() + "]";
+	}
+}
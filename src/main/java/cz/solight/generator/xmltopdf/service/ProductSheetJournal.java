@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only checkpoint journal of a product sheet run. Every product whose PDFs all reached the
+ * server is appended with its fingerprint. The journal is deleted once the run stores its
+ * fingerprints; if the run is interrupted (crash, redeploy), the next run finds the journal and
+ * skips the products recorded in it whose fingerprint still matches.
+ *
+ * <p>
+ * Entries are written in batches and synced to disk once per batch, so checkpointing costs a
+ * fraction of a millisecond per product. At most the last unsynced batch is lost on a crash; those
+ * products are simply generated again. A truncated last line is ignored.
+ * </p>
+ *
+ * <p>
+ * The journal of a full rebuild starts with a {@value #FULL_REBUILD_HEADER} line, so that a run
+ * resuming it rebuilds the remaining products too, even though their fingerprints did not change.
+ * </p>
+ */
+public class ProductSheetJournal implements AutoCloseable
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ProductSheetJournal.class);
+
+	/** Number of entries after which the journal is synced to disk. */
+	private static final int BATCH_SIZE = 64;
+
+	/** Maximum time an entry waits in the batch before the journal is synced to disk. */
+	private static final long BATCH_INTERVAL_MS = 1_000;
+
+	/** First line of the journal of a full rebuild. */
+	static final String FULL_REBUILD_HEADER = "#fullRebuild";
+
+	private final Path file;
+	private final Map<String, String> journaled;
+	private final boolean fullRebuild;
+	private final Map<String, Integer> uploadedFiles = new HashMap<>();
+	private final StringBuilder batch = new StringBuilder();
+	private int batchEntries;
+	private long lastSync = System.currentTimeMillis();
+	private FileChannel channel;
+	/** Set when the journal cannot be written or was deleted, further entries are dropped. */
+	private boolean failed;
+
+	private ProductSheetJournal(Path file, Map<String, String> journaled, boolean fullRebuild)
+	{
+		this.file = file;
+		this.journaled = journaled;
+		this.fullRebuild = fullRebuild;
+	}
+
+	/**
+	 * Opens the journal, loading the products recorded by an interrupted run. Further entries are
+	 * appended.
+	 *
+	 * <p>
+	 * A new full rebuild does not resume anything: an existing journal is discarded, since the
+	 * products recorded in it may have been generated before the change the rebuild is requested
+	 * for. An incremental run resuming the journal of a full rebuild continues it as a full rebuild,
+	 * see {@link #isFullRebuild()}.
+	 * </p>
+	 *
+	 * @param file
+	 *            the journal file
+	 * @param forceFullRebuild
+	 *            if true, the run is a requested full rebuild
+	 * @return the journal
+	 */
+	public static ProductSheetJournal open(Path file, boolean forceFullRebuild)
+	{
+		if (forceFullRebuild)
+		{
+			try
+			{
+				if (Files.deleteIfExists(file))
+				{
+					LOG.info("Discarded journal of an interrupted run, a full rebuild was requested: {}", file);
+				}
+			}
+			catch (IOException e)
+			{
+				LOG.warn("Failed to delete product sheet journal {}, checkpointing disabled for this run", file, e);
+				var journal = new ProductSheetJournal(file, Map.of(), true);
+				journal.failed = true;
+				return journal;
+			}
+			return new ProductSheetJournal(file, Map.of(), true);
+		}
+
+		var journaled = new HashMap<String, String>();
+		boolean fullRebuild = false;
+		if (Files.isRegularFile(file))
+		{
+			try
+			{
+				var content = Files.readString(file, StandardCharsets.UTF_8);
+				// only complete lines count, the last one may have been cut off by a crash
+				int end = content.lastIndexOf('\n');
+				for (var line : content.substring(0, end + 1).split("\n"))
+				{
+					if (line.equals(FULL_REBUILD_HEADER))
+					{
+						fullRebuild = true;
+						continue;
+					}
+					int separator = line.indexOf('\t');
+					if (separator > 0)
+					{
+						journaled.put(line.substring(0, separator), line.substring(separator + 1));
+					}
+				}
+				LOG.info("Found journal of an interrupted {} with {} finished products: {}",
+					fullRebuild ? "full rebuild" : "run", journaled.size(), file);
+			}
+			catch (IOException e)
+			{
+				LOG.warn("Failed to read product sheet journal {}, all products will be processed", file, e);
+				journaled.clear();
+				fullRebuild = false;
+			}
+		}
+		return new ProductSheetJournal(file, journaled, fullRebuild);
+	}
+
+	/**
+	 * @return true if the run is a full rebuild, either requested or resumed from the journal of
+	 *         an interrupted full rebuild
+	 */
+	public boolean isFullRebuild()
+	{
+		return fullRebuild;
+	}
+
+	/**
+	 * @param code
+	 *            the product code
+	 * @return fingerprint of the product as finished by the interrupted run, null if it is not
+	 *         recorded
+	 */
+	public String getJournaledFingerprint(String code)
+	{
+		return journaled.get(code);
+	}
+
+	/**
+	 * @return number of products recorded by the interrupted run
+	 */
+	public int getJournaledCount()
+	{
+		return journaled.size();
+	}
+
+	/**
+	 * Records that a file of a product reached the server. Once all files of the product did, the
+	 * product is appended to the journal.
+	 *
+	 * @param code
+	 *            the product code
+	 * @param fingerprint
+	 *            fingerprint of the product
+	 */
+	public synchronized void uploaded(String code, String fingerprint)
+	{
+		if (fingerprint == null || failed)
+		{
+			return;
+		}
+		int files = uploadedFiles.merge(code, 1, Integer::sum);
+		if (files < ProductSheetPdfGenerator.PRODUCT_FORMATS.size())
+		{
+			return;
+		}
+		uploadedFiles.remove(code);
+
+		batch.append(code).append('\t').append(fingerprint).append('\n');
+		batchEntries++;
+		if (batchEntries >= BATCH_SIZE || System.currentTimeMillis() - lastSync >= BATCH_INTERVAL_MS)
+		{
+			sync();
+		}
+	}
+
+	/**
+	 * Writes and syncs the pending entries.
+	 */
+	public synchronized void sync()
+	{
+		if (batchEntries == 0 || failed)
+		{
+			return;
+		}
+		try
+		{
+			if (channel == null)
+			{
+				Files.createDirectories(file.toAbsolutePath().getParent());
+				channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+				if (fullRebuild && channel.size() == 0)
+				{
+					batch.insert(0, FULL_REBUILD_HEADER + "\n");
+				}
+			}
+			var buffer = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+			while (buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+		catch (IOException e)
+		{
+			// the run itself is not affected, it just cannot be resumed
+			LOG.warn("Failed to write product sheet journal {}, checkpointing disabled for this run", file, e);
+			failed = true;
+		}
+		batch.setLength(0);
+		batchEntries = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	 * Syncs the pending entries and closes the journal file. The journal is kept for the next
+	 * run.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		sync();
+		if (channel != null)
+		{
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				LOG.warn("Failed to close product sheet journal {}", file, e);
+			}
+			channel = null;
+		}
+	}
+
+	/**
+	 * Closes and deletes the journal once the run finished and its results are stored elsewhere.
+	 */
+	public synchronized void delete()
+	{
+		batch.setLength(0);
+		batchEntries = 0;
+		close();
+		// nothing is appended any more, the run is finished
+		failed = true;
+		try
+		{
+			Files.deleteIfExists(file);
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Failed to delete product sheet journal {}", file, e);
+		}
+	}
+}
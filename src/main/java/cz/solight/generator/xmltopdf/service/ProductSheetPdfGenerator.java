@@ -19,19 +19,25 @@ package cz.solight.generator.xmltopdf.service;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 import javax.imageio.ImageIO;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.Velocity;
 import org.apache.wicket.util.template.PackageTextTemplate;
@@ -40,7 +46,9 @@ import org.slf4j.LoggerFactory;
 
 import cz.solight.generator.xmltopdf.pojo.ProductSheet;
 import cz.solight.generator.xmltopdf.pojo.ProductSheetFormat;
+import cz.solight.generator.xmltopdf.util.CancellationToken;
 import cz.solight.generator.xmltopdf.util.ContextUtil;
+import cz.solight.generator.xmltopdf.util.PdfNormalizer;
 
 import name.berries.wicket.util.app.AppConfigProvider;
 import name.berries.wicket.util.app.AppConfigProvider.ConfigKey;
@@ -66,6 +74,16 @@ public class ProductSheetPdfGenerator
 {
 	private static final Logger log = LoggerFactory.getLogger(ProductSheetPdfGenerator.class);
 
+	/**
+	 * Version of the product sheet templates and rendering options. Increase on every change that
+	 * alters the generated PDFs, so that all products are regenerated by the next run.
+	 */
+	public static final int TEMPLATE_VERSION = 1;
+
+	/** Formats generated for every product. */
+	public static final List<ProductSheetFormat> PRODUCT_FORMATS = List.of(ProductSheetFormat.A4_SHORT,
+		ProductSheetFormat.FULL_LENGTH);
+
 	private static final String TEMPLATE_PATH = "templates/product-sheet.vm";
 	private static final String HEADER_TEMPLATE_PATH = "templates/product-sheet-header.vm";
 	private static final String FOOTER_TEMPLATE_PATH = "templates/product-sheet-footer.vm";
@@ -91,6 +109,14 @@ public class ProductSheetPdfGenerator
 	/** Gotenberg server URL. */
 	private final String gotenbergUrl;
 
+	/** Directory keeping a local copy of every generated PDF, blank to keep none. */
+	private final String localCopyDirectory = AppConfigProvider.getDefaultConfiguration()
+		.getString("productSheets.localCopyDirectory", "");
+
+	/** Whether timestamps and document IDs are pinned, so identical input yields identical PDFs. */
+	private boolean deterministic = AppConfigProvider.getDefaultConfiguration()
+		.getBoolean("productSheets.deterministicPdf", true);
+
 	/**
 	 * Creates a new PDF generator using Gotenberg URL from configuration.
 	 */
@@ -110,6 +136,25 @@ public class ProductSheetPdfGenerator
 		this.gotenbergUrl = gotenbergUrl;
 	}
 
+	/**
+	 * @return whether timestamps and document IDs are pinned, so identical input yields
+	 *         byte-identical PDFs
+	 */
+	public boolean isDeterministic()
+	{
+		return deterministic;
+	}
+
+	/**
+	 * @param deterministic
+	 *            whether timestamps and document IDs are pinned, so identical input yields
+	 *            byte-identical PDFs
+	 */
+	public void setDeterministic(boolean deterministic)
+	{
+		this.deterministic = deterministic;
+	}
+
 	/**
 	 * Generates PDF files for all products in both A4_SHORT and FULL_LENGTH formats.
 	 *
@@ -117,17 +162,19 @@ public class ProductSheetPdfGenerator
 	 *            the list of products to generate PDFs for
 	 * @param fileConsumer
 	 *            consumer for each generated PDF file
+	 * @return codes of products whose PDFs failed to generate or to be consumed
 	 * @throws Exception
 	 *             if PDF generation fails
 	 */
-	public void generateAllPdfs(List<ProductSheet> products, Consumer<File> fileConsumer) throws Exception
+	public List<String> generateAllPdfs(List<ProductSheet> products, Consumer<File> fileConsumer) throws Exception
 	{
-		generateAllPdfs(products, fileConsumer, null);
+		return generateAllPdfs(products, fileConsumer, null);
 	}
 
 	/**
 	 * Generates PDF files for all products in both A4_SHORT and FULL_LENGTH formats, with progress
-	 * reporting.
+	 * reporting. The files are written to a temp directory which is removed afterwards, so each
+	 * file is only valid during the consumer call.
 	 *
 	 * @param products
 	 *            the list of products to generate PDFs for
@@ -136,55 +183,114 @@ public class ProductSheetPdfGenerator
 	 * @param progressCallback
 	 *            callback receiving (currentIndex, productCode) after each product is processed,
 	 *            may be null
+	 * @return codes of products whose PDFs failed to generate or to be consumed
 	 * @throws Exception
 	 *             if PDF generation fails
 	 */
-	public void generateAllPdfs(List<ProductSheet> products, Consumer<File> fileConsumer,
+	public List<String> generateAllPdfs(List<ProductSheet> products, Consumer<File> fileConsumer,
 		BiConsumer<Integer, String> progressCallback) throws Exception
 	{
 		Path outputDir = Files.createTempDirectory("product-sheets-");
 		log.info("Generating PDFs via Gotenberg for {} products to {}", products.size(), outputDir);
 
+		try
+		{
+			return renderAllPdfs(products, (filename, pdfBytes) -> {
+				var path = outputDir.resolve(filename);
+				try
+				{
+					Files.write(path, pdfBytes);
+					fileConsumer.accept(path.toFile());
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException("Failed to write PDF: " + path + " - " + e.getMessage(), e);
+				}
+				finally
+				{
+					FileUtils.deleteQuietly(path.toFile());
+				}
+			}, progressCallback);
+		}
+		finally
+		{
+			FileUtils.deleteQuietly(outputDir.toFile());
+		}
+	}
+
+	/**
+	 * Renders PDFs for all products in both A4_SHORT and FULL_LENGTH formats and hands them over in
+	 * memory, without writing temp files. If a local copy directory is configured, each PDF is
+	 * also stored there.
+	 *
+	 * @param products
+	 *            the list of products to generate PDFs for
+	 * @param pdfConsumer
+	 *            consumer receiving the file name and content of each generated PDF
+	 * @param progressCallback
+	 *            callback receiving (currentIndex, productCode) after each product is processed,
+	 *            may be null
+	 * @return codes of products whose PDFs failed to generate or to be consumed
+	 */
+	public List<String> renderAllPdfs(List<ProductSheet> products, BiConsumer<String, byte[]> pdfConsumer,
+		BiConsumer<Integer, String> progressCallback)
+	{
+		log.info("Rendering PDFs via Gotenberg for {} products", products.size());
+
 		int successCount = 0;
-		int failCount = 0;
+		var failedCodes = new ArrayList<String>();
 		int index = 0;
 
 		for (var product : products)
 		{
+			CancellationToken.current().throwIfCancelled();
 			try
 			{
-				// Generate A4 short version
-				var a4Path = outputDir.resolve(ProductSheetFormat.A4_SHORT.buildFilename(product.getCode()));
-				generatePdf(product, ProductSheetFormat.A4_SHORT, a4Path);
-				fileConsumer.accept(a4Path.toFile());
-
-				// Generate full-length version
-				var fullPath = outputDir.resolve(ProductSheetFormat.FULL_LENGTH.buildFilename(product.getCode()));
-				generatePdf(product, ProductSheetFormat.FULL_LENGTH, fullPath);
-				fileConsumer.accept(fullPath.toFile());
+				renderProductPdfs(product, pdfConsumer);
 				successCount++;
-
-				// Report progress after each product is processed
-				index++;
-				if (progressCallback != null)
-				{
-					progressCallback.accept(index, product.getCode());
-				}
+			}
+			catch (CancellationException e)
+			{
+				throw e;
 			}
 			catch (Exception e)
 			{
-				e.printStackTrace();
-				log.error("Failed to generate PDFs for product {}: {}", product.getCode(), e.getMessage());
-				failCount++;
-				index++;
-				if (progressCallback != null)
-				{
-					progressCallback.accept(index, product.getCode());
-				}
+				log.error("Failed to generate PDFs for product {}: {}", product.getCode(), e.getMessage(), e);
+				failedCodes.add(product.getCode());
+			}
+
+			// Report progress after each product is processed
+			index++;
+			if (progressCallback != null)
+			{
+				progressCallback.accept(index, product.getCode());
 			}
 		}
 
-		log.info("PDF generation complete: {} successful, {} failed", successCount, failCount);
+		log.info("PDF generation complete: {} successful, {} failed", successCount, failedCodes.size());
+		return failedCodes;
+	}
+
+	/**
+	 * Renders the PDFs of a single product in both A4_SHORT and FULL_LENGTH formats and hands them
+	 * over in memory. If a local copy directory is configured, each PDF is also stored there.
+	 *
+	 * @param product
+	 *            the product data
+	 * @param pdfConsumer
+	 *            consumer receiving the file name and content of each generated PDF
+	 * @throws Exception
+	 *             if PDF generation fails
+	 */
+	public void renderProductPdfs(ProductSheet product, BiConsumer<String, byte[]> pdfConsumer) throws Exception
+	{
+		for (var format : PRODUCT_FORMATS)
+		{
+			var filename = format.buildFilename(product.getCode());
+			var pdfBytes = renderPdf(product, format, filename);
+			storeLocalCopy(filename, pdfBytes);
+			pdfConsumer.accept(filename, pdfBytes);
+		}
 	}
 
 	/**
@@ -203,9 +309,30 @@ public class ProductSheetPdfGenerator
 	{
 		log.debug("Generating {} PDF via Gotenberg for product {} to {}", format, product.getCode(), outputPath);
 
+		// Write to output file
+		Files.write(outputPath, renderPdf(product, format, outputPath.getFileName().toString()));
+
+		log.debug("PDF generated: {}", outputPath);
+	}
+
+	/**
+	 * Renders a single PDF for a product in the specified format.
+	 *
+	 * @param product
+	 *            the product data
+	 * @param format
+	 *            the output format (A4_SHORT or FULL_LENGTH)
+	 * @param filename
+	 *            file name of the PDF, available to the templates
+	 * @return PDF bytes
+	 * @throws Exception
+	 *             if PDF generation fails
+	 */
+	public byte[] renderPdf(ProductSheet product, ProductSheetFormat format, String filename) throws Exception
+	{
 		// Build Velocity context
 		Map<String, Object> context = buildContext(product, format);
-		context.put("pdfFilename", outputPath.getFileName());
+		context.put("pdfFilename", filename);
 
 		// Render templates
 		var mainHtml = renderVelocityTemplate(TEMPLATE_PATH, context);
@@ -225,10 +352,42 @@ public class ProductSheetPdfGenerator
 			pdfBytes = generateFixedA4PdfWithHeaderFooter(mainHtml, headerHtml, footerHtml);
 		}
 
-		// Write to output file
-		Files.write(outputPath, pdfBytes);
+		if (deterministic)
+		{
+			// pin Chromium's creation time and random document ID to values derived from the input
+			pdfBytes = PdfNormalizer.normalize(pdfBytes, ProductSheetChangeDetector.fingerprint(product) + "/" + format);
+		}
+		return pdfBytes;
+	}
 
-		log.debug("PDF generated: {}", outputPath);
+	/**
+	 * Stores a copy of the PDF in the local copy directory, if configured. Failures are logged and
+	 * otherwise ignored.
+	 *
+	 * @param filename
+	 *            file name of the PDF
+	 * @param pdfBytes
+	 *            PDF content
+	 */
+	private void storeLocalCopy(String filename, byte[] pdfBytes)
+	{
+		if (StringUtils.isBlank(localCopyDirectory))
+		{
+			return;
+		}
+		try
+		{
+			var directory = Path.of(localCopyDirectory);
+			Files.createDirectories(directory);
+			var tempFile = Files.createTempFile(directory, "pdf-", ".tmp");
+			Files.write(tempFile, pdfBytes);
+			Files.move(tempFile, directory.resolve(filename), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			log.warn("Failed to store local copy of {}", filename, e);
+		}
 	}
 
 	/**
@@ -280,7 +439,7 @@ public class ProductSheetPdfGenerator
 			.field("marginBottom", FOOTER_MARGIN).field("marginLeft", "0").field("marginRight", "0")
 			.field("waitForExpression", "window.pdfReady === true");
 
-		HttpResponse<byte[]> response = request.asBytes();
+		HttpResponse<byte[]> response = CancellationToken.current().call(request::asBytes);
 
 		if (!response.isSuccess())
 		{
@@ -303,13 +462,14 @@ public class ProductSheetPdfGenerator
 	 */
 	private int measureContentHeight(String mainHtml, String headerHtml, String footerHtml) throws Exception
 	{
-		HttpResponse<byte[]> response = Unirest.post(gotenbergUrl + "/forms/chromium/screenshot/html")
+		var request = Unirest.post(gotenbergUrl + "/forms/chromium/screenshot/html")
 			.field("files", new ByteArrayInputStream(mainHtml.getBytes(StandardCharsets.UTF_8)), "index.html")
 			.field("files", new ByteArrayInputStream(headerHtml.getBytes(StandardCharsets.UTF_8)), "header.html")
 			.field("files", new ByteArrayInputStream(footerHtml.getBytes(StandardCharsets.UTF_8)), "footer.html")
 			.field("width", String.valueOf(A4_WIDTH_PX)) // A4 width in pixels at 96 DPI
 			.field("clip", "false") // Don't clip - capture full content height
-			.field("format", "png").field("optimizeForSpeed", "true").asBytes();
+			.field("format", "png").field("optimizeForSpeed", "true");
+		HttpResponse<byte[]> response = CancellationToken.current().call(request::asBytes);
 
 		if (!response.isSuccess())
 		{
@@ -354,14 +514,15 @@ public class ProductSheetPdfGenerator
 		log.debug("Generating PDF: {}x{} inches (header={}, content={}px/{}, footer={})", A4_WIDTH_INCHES, totalHeightInches,
 			HEADER_MARGIN_INCHES, contentHeightPx, contentHeightInches, FOOTER_MARGIN_INCHES);
 
-		HttpResponse<byte[]> response = Unirest.post(gotenbergUrl + "/forms/chromium/convert/html")
+		var request = Unirest.post(gotenbergUrl + "/forms/chromium/convert/html")
 			.field("files", new ByteArrayInputStream(mainHtml.getBytes(StandardCharsets.UTF_8)), "index.html")
 			.field("files", new ByteArrayInputStream(headerHtml.getBytes(StandardCharsets.UTF_8)), "header.html")
 			.field("files", new ByteArrayInputStream(footerHtml.getBytes(StandardCharsets.UTF_8)), "footer.html")
 			.field("paperWidth", String.valueOf(A4_WIDTH_INCHES)).field("paperHeight", String.valueOf(totalHeightInches))
 			.field("marginTop", HEADER_MARGIN).field("marginBottom", FOOTER_MARGIN).field("marginLeft", "0")
 			.field("marginRight", "0").field("printBackground", "true").field("preferCssPageSize", "false").field("scale", "1")
-			.field("waitForExpression", "window.pdfReady === true").asBytes();
+			.field("waitForExpression", "window.pdfReady === true");
+		HttpResponse<byte[]> response = CancellationToken.current().call(request::asBytes);
 
 		if (!response.isSuccess())
 		{
@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.solight.generator.xmltopdf.pojo.ProductSheet;
+
+/**
+ * On-disk cache of parsed product catalogues. Keeps a compact binary snapshot of the
+ * {@link ProductSheet} list (including resolved picture URLs) keyed by the SHA-256 hash of the
+ * source XML, so that an identical produktove_listy.xml is loaded without parsing it and resolving
+ * every image again.
+ *
+ * <p>
+ * Only the snapshot of the most recent catalogue is kept. A snapshot written by a different
+ * {@link ProductSheetXmlParser#PARSER_VERSION} is ignored.
+ * </p>
+ */
+public class ProductSheetSnapshotCache
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ProductSheetSnapshotCache.class);
+	private static final String DEFAULT_DIRECTORY = getDefaultConfiguration().getString("productSheets.snapshotDirectory");
+
+	/** Identifies snapshot files ("PSS1"). */
+	private static final int MAGIC = 0x50535331;
+	private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+	private final Path directory;
+
+	/**
+	 * Creates a cache in the configured snapshot directory.
+	 */
+	public ProductSheetSnapshotCache()
+	{
+		this(Path.of(DEFAULT_DIRECTORY));
+	}
+
+	/**
+	 * Creates a cache in the given directory.
+	 *
+	 * @param directory
+	 *            directory holding the snapshot files
+	 */
+	public ProductSheetSnapshotCache(Path directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Loads the snapshot stored for the given content hash.
+	 *
+	 * @param contentHash
+	 *            SHA-256 hash of the source XML
+	 * @return the cached products, or null if there is no valid snapshot for the hash
+	 */
+	public List<ProductSheet> load(String contentHash)
+	{
+		var file = snapshotFile(contentHash);
+		if (!Files.isRegularFile(file))
+		{
+			return null;
+		}
+
+		try (var in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file)))))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != ProductSheetXmlParser.PARSER_VERSION
+				|| !contentHash.equals(in.readUTF()))
+			{
+				LOG.info("Discarding outdated product sheet snapshot {}", file);
+				Files.deleteIfExists(file);
+				return null;
+			}
+
+			int count = in.readInt();
+			var products = new ArrayList<ProductSheet>(count);
+			for (int i = 0; i < count; i++)
+			{
+				products.add(readProduct(in));
+			}
+			return products;
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Failed to read product sheet snapshot {}, ignoring it", file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a snapshot of the products for the given content hash, replacing any previous
+	 * snapshot. Failures are logged and otherwise ignored, the cache is only an optimization.
+	 *
+	 * @param contentHash
+	 *            SHA-256 hash of the source XML
+	 * @param products
+	 *            the parsed products
+	 */
+	public void store(String contentHash, List<ProductSheet> products)
+	{
+		try
+		{
+			Files.createDirectories(directory);
+			var file = snapshotFile(contentHash);
+			var tempFile = Files.createTempFile(directory, "snapshot-", ".tmp");
+
+			try (var out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tempFile)))))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(ProductSheetXmlParser.PARSER_VERSION);
+				out.writeUTF(contentHash);
+				out.writeInt(products.size());
+				for (var product : products)
+				{
+					writeProduct(out, product);
+				}
+			}
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			removeOtherSnapshots(file);
+
+			LOG.info("Stored product sheet snapshot with {} products: {}", products.size(), file);
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Failed to store product sheet snapshot", e);
+		}
+	}
+
+	private Path snapshotFile(String contentHash)
+	{
+		return directory.resolve(contentHash + SNAPSHOT_SUFFIX);
+	}
+
+	private void removeOtherSnapshots(Path current) throws IOException
+	{
+		try (var files = Files.list(directory))
+		{
+			for (var file : (Iterable<Path>)files::iterator)
+			{
+				var name = file.getFileName().toString();
+				if (!file.equals(current) && (name.endsWith(SNAPSHOT_SUFFIX) || name.endsWith(".tmp")))
+				{
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+	}
+
+	private static void writeProduct(DataOutputStream out, ProductSheet product) throws IOException
+	{
+		writeString(out, product.getCode());
+		writeString(out, product.getName());
+		writeString(out, product.getBrandName());
+		writeString(out, product.getBrand());
+		writeString(out, product.getEan());
+		out.writeInt(product.getPackageCount());
+		out.writeInt(product.getGuaranteeLength());
+		writeString(out, product.getProductId());
+		writeString(out, product.getDescription());
+		writeString(out, product.getPicture1Url());
+		writeString(out, product.getPicture2Url());
+		writeString(out, product.getPicture3Url());
+	}
+
+	private static ProductSheet readProduct(DataInputStream in) throws IOException
+	{
+		var product = new ProductSheet();
+		product.setCode(readString(in));
+		product.setName(readString(in));
+		product.setBrandName(readString(in));
+		product.setBrand(readString(in));
+		product.setEan(readString(in));
+		product.setPackageCount(in.readInt());
+		product.setGuaranteeLength(in.readInt());
+		product.setProductId(readString(in));
+		product.setDescription(readString(in));
+		product.setPicture1Url(readString(in));
+		product.setPicture2Url(readString(in));
+		product.setPicture3Url(readString(in));
+		return product;
+	}
+
+	/**
+	 * Writes a nullable string as length-prefixed UTF-8 (length -1 for null). Unlike
+	 * {@link DataOutputStream#writeUTF(String)} this is not limited to 64 kB.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		var bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0)
+		{
+			return null;
+		}
+		var bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
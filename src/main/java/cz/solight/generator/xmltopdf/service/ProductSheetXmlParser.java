@@ -17,19 +17,31 @@
 package cz.solight.generator.xmltopdf.service;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.ByteOrderMark;
 import org.apache.commons.io.input.BOMInputStream;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.text.StringEscapeUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -39,6 +51,7 @@ import org.xml.sax.InputSource;
 
 import cz.solight.generator.xmltopdf.pojo.ProductSheet;
 import cz.solight.generator.xmltopdf.service.OfferXmlParser.XmlParseException;
+import cz.solight.generator.xmltopdf.util.DescriptionFormatter;
 
 import jakarta.inject.Inject;
 
@@ -50,9 +63,57 @@ public class ProductSheetXmlParser
 {
 	private static final Logger LOG = LoggerFactory.getLogger(ProductSheetXmlParser.class);
 
+	/**
+	 * Version of the parsing logic. Increase whenever the parsed output changes for the same input,
+	 * so that stale {@link ProductSheetSnapshotCache} snapshots are discarded.
+	 */
+	public static final int PARSER_VERSION = 1;
+
+	private static final String PRODUCT_ELEMENT = "PRODUCT";
+
 	@Inject
 	private ImagePathConverter imagePathConverter;
 
+	@Inject
+	private ProductSheetSnapshotCache snapshotCache;
+
+	/**
+	 * Parses a catalog file into a list of ProductSheet objects. The file is read once and its
+	 * content hashed; when a snapshot of the same content exists, the products are loaded from it
+	 * instead of parsing the XML and resolving the images again. Hashing and parsing the same bytes
+	 * keeps the snapshot consistent even when the file is replaced while it is being read.
+	 *
+	 * @param file
+	 *            the XML file (produktove_listy.xml format)
+	 * @return list of parsed product sheets
+	 * @throws XmlParseException
+	 *             if parsing fails
+	 */
+	public List<ProductSheet> parse(File file) throws XmlParseException
+	{
+		byte[] content;
+		try
+		{
+			content = Files.readAllBytes(file.toPath());
+		}
+		catch (IOException e)
+		{
+			throw new XmlParseException("Failed to read product sheet XML: " + e.getMessage(), e);
+		}
+		var contentHash = DigestUtils.sha256Hex(content);
+
+		var cached = snapshotCache.load(contentHash);
+		if (cached != null)
+		{
+			LOG.info("Loaded {} products from snapshot of {} ({})", cached.size(), file.getName(), contentHash);
+			return cached;
+		}
+
+		var products = parse(new ByteArrayInputStream(content));
+		snapshotCache.store(contentHash, products);
+		return products;
+	}
+
 	/**
 	 * Parses an XML input stream into a list of ProductSheet objects.
 	 *
@@ -99,6 +160,152 @@ public class ProductSheetXmlParser
 		}
 	}
 
+	/**
+	 * Parses an XML input stream product by product, passing each valid product to the consumer
+	 * as soon as its element is read. Unlike {@link #parse(InputStream)} the document is not
+	 * loaded into memory, so processing can start while the stream is still being downloaded.
+	 *
+	 * @param inputStream
+	 *            the XML input stream (produktove_listy.xml format)
+	 * @param productConsumer
+	 *            consumer of the parsed products
+	 * @return number of valid products
+	 * @throws XmlParseException
+	 *             if parsing fails
+	 */
+	public int parse(InputStream inputStream, Consumer<ProductSheet> productConsumer) throws XmlParseException
+	{
+		XMLStreamReader reader = null;
+		try
+		{
+			var bufferedStream = new BufferedInputStream(inputStream);
+			var charset = detectEncoding(bufferedStream);
+			LOG.info("Using charset: {}", charset);
+
+			var bomInputStream = BOMInputStream.builder().setInputStream(bufferedStream)
+				.setByteOrderMarks(ByteOrderMark.UTF_8, ByteOrderMark.UTF_16LE, ByteOrderMark.UTF_16BE, ByteOrderMark.UTF_32LE,
+					ByteOrderMark.UTF_32BE)
+				.setInclude(false) // Skip the BOM
+				.get();
+
+			var factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			reader = factory.createXMLStreamReader(new InputStreamReader(bomInputStream, charset));
+
+			int index = 0;
+			int validCount = 0;
+			while (reader.hasNext())
+			{
+				if (reader.next() == XMLStreamConstants.START_ELEMENT && PRODUCT_ELEMENT.equals(reader.getLocalName()))
+				{
+					var fields = readProductFields(reader);
+					var product = buildProduct(tagName -> fields.getOrDefault(tagName, ""));
+					if (product.isValid())
+					{
+						validCount++;
+						productConsumer.accept(product);
+					}
+					else
+					{
+						LOG.info("Skipping invalid product at index {}: code='{}', name='{}' (missing required fields)", index,
+							product.getCode(), product.getName());
+					}
+					index++;
+				}
+			}
+
+			LOG.info("Successfully parsed {} valid products of {} PRODUCT elements", validCount, index);
+			return validCount;
+		}
+		catch (XmlParseException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			LOG.error("Failed to parse product sheet XML", e);
+			throw new XmlParseException("Failed to parse product sheet XML: " + e.getMessage(), e);
+		}
+		finally
+		{
+			closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Reads the child elements of a PRODUCT element, the reader is positioned on its start tag.
+	 * Like {@link #getElementText(Element, String)}, the first occurrence of each element at any
+	 * depth is used and its text content is trimmed.
+	 *
+	 * @param reader
+	 *            the stream reader
+	 * @return trimmed text content of the product's elements by tag name
+	 * @throws XMLStreamException
+	 *             if reading fails
+	 */
+	private Map<String, String> readProductFields(XMLStreamReader reader) throws XMLStreamException
+	{
+		var fields = new HashMap<String, String>();
+		var text = new StringBuilder();
+		String capturedElement = null;
+		int capturedDepth = 0;
+		int depth = 0;
+
+		while (reader.hasNext())
+		{
+			switch (reader.next())
+			{
+				case XMLStreamConstants.START_ELEMENT -> {
+					depth++;
+					if (capturedElement == null && !fields.containsKey(reader.getLocalName()))
+					{
+						capturedElement = reader.getLocalName();
+						capturedDepth = depth;
+						text.setLength(0);
+					}
+				}
+				case XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA, XMLStreamConstants.SPACE -> {
+					if (capturedElement != null)
+					{
+						text.append(reader.getText());
+					}
+				}
+				case XMLStreamConstants.END_ELEMENT -> {
+					if (depth == 0)
+					{
+						// end of the PRODUCT element
+						return fields;
+					}
+					if (capturedElement != null && depth == capturedDepth)
+					{
+						fields.put(capturedElement, text.toString().trim());
+						capturedElement = null;
+					}
+					depth--;
+				}
+				default -> {
+					// comments and processing instructions are not part of the text content
+				}
+			}
+		}
+		return fields;
+	}
+
+	private static void closeQuietly(XMLStreamReader reader)
+	{
+		if (reader != null)
+		{
+			try
+			{
+				reader.close();
+			}
+			catch (XMLStreamException e)
+			{
+				LOG.debug("Failed to close XML reader", e);
+			}
+		}
+	}
+
 	/**
 	 * Detects the encoding of the input stream by examining the first bytes. Supports UTF-8,
 	 * UTF-16LE, UTF-16BE detection via BOM, and heuristic UTF-16 detection.
@@ -177,7 +384,7 @@ public class ProductSheetXmlParser
 	{
 		List<ProductSheet> products = new ArrayList<>();
 
-		NodeList productNodes = document.getElementsByTagName("PRODUCT");
+		NodeList productNodes = document.getElementsByTagName(PRODUCT_ELEMENT);
 		LOG.info("Found {} PRODUCT elements in XML", productNodes.getLength());
 
 		for (int i = 0; i < productNodes.getLength(); i++)
@@ -209,28 +416,41 @@ public class ProductSheetXmlParser
 	 * @return the parsed product sheet
 	 */
 	private ProductSheet parseProduct(Element productElement)
+	{
+		return buildProduct(tagName -> getElementText(productElement, tagName));
+	}
+
+	/**
+	 * Builds a ProductSheet from the text content of the PRODUCT element's children.
+	 *
+	 * @param elementText
+	 *            function returning the trimmed text content of a child element by tag name, or
+	 *            empty string if not found
+	 * @return the parsed product sheet
+	 */
+	private ProductSheet buildProduct(UnaryOperator<String> elementText)
 	{
 		var product = new ProductSheet();
 
-		product.setCode(getElementText(productElement, "code"));
-		product.setName(getElementText(productElement, "name"));
-		product.setEan(getElementText(productElement, "EAN"));
-		product.setPackageCount(parseInteger(getElementText(productElement, "Package")));
-		product.setGuaranteeLength(parseInteger(getElementText(productElement, "GuaranteeLength")));
-		product.setBrandName(getElementText(productElement, "Brand-Name"));
-		product.setBrand(getElementText(productElement, "brand"));
-		product.setProductId(getElementText(productElement, "PRODUCT_ID"));
+		product.setCode(elementText.apply("code"));
+		product.setName(elementText.apply("name"));
+		product.setEan(elementText.apply("EAN"));
+		product.setPackageCount(parseInteger(elementText.apply("Package")));
+		product.setGuaranteeLength(parseInteger(elementText.apply("GuaranteeLength")));
+		product.setBrandName(elementText.apply("Brand-Name"));
+		product.setBrand(elementText.apply("brand"));
+		product.setProductId(elementText.apply("PRODUCT_ID"));
 
 		// Decode HTML entities in description
-		var rawDescription = getElementText(productElement, "Description");
-		product.setDescription(decodeHtmlEntities(rawDescription));
+		var rawDescription = elementText.apply("Description");
+		product.setDescription(DescriptionFormatter.decodeEntities(rawDescription));
 
 		if (product.isValid())
 		{
 			// Picture filenames (will be converted to URLs by the POJO)
-			product.setPicture1Url(imagePathConverter.convertToUrl(product.getCode(), getElementText(productElement, "PICTURE1")));
-			product.setPicture2Url(imagePathConverter.convertToUrl(product.getCode(), getElementText(productElement, "PICTURE2")));
-			product.setPicture3Url(imagePathConverter.convertToUrl(product.getCode(), getElementText(productElement, "PICTURE3")));
+			product.setPicture1Url(imagePathConverter.convertToUrl(product.getCode(), elementText.apply("PICTURE1")));
+			product.setPicture2Url(imagePathConverter.convertToUrl(product.getCode(), elementText.apply("PICTURE2")));
+			product.setPicture3Url(imagePathConverter.convertToUrl(product.getCode(), elementText.apply("PICTURE3")));
 		}
 
 		return product;
@@ -278,21 +498,4 @@ public class ProductSheetXmlParser
 			return 0;
 		}
 	}
-
-	/**
-	 * Decodes HTML entities in the description text. The XML contains HTML-encoded content like
-	 * &amp;lt;UL&amp;gt; which needs to be decoded to &lt;UL&gt;.
-	 *
-	 * @param text
-	 *            the text with HTML entities
-	 * @return the decoded HTML text
-	 */
-	private String decodeHtmlEntities(String text)
-	{
-		if (StringUtils.isBlank(text))
-		{
-			return "";
-		}
-		return StringEscapeUtils.unescapeHtml4(text);
-	}
 }
@@ -31,12 +31,39 @@ public class SftpConfig
 	private static final String DEFAULT_CREDENTIALS_FILE = getDefaultConfiguration().getString("sftp.credentialsFile");
 	private static final String DEFAULT_DOWNLOAD_DIRECTORY = getDefaultConfiguration().getString("sftp.downloadDirectory");
 	private static final String DEFAULT_UPLOAD_DIRECTORY = getDefaultConfiguration().getString("sftp.uploadDirectory");
+	private static final String DEFAULT_MANIFEST_FILE = getDefaultConfiguration().getString("sftp.manifestFile");
+	private static final boolean DEFAULT_STREAM_DOWNLOADS = getDefaultConfiguration().getBoolean("sftp.streamDownloads", false);
+	private static final String DEFAULT_DOWNLOAD_COPY_DIRECTORY = getDefaultConfiguration().getString("sftp.downloadCopyDirectory",
+		"");
+	private static final String DEFAULT_UPLOAD_MANIFEST_FILE = getDefaultConfiguration().getString("sftp.uploadManifestFile");
+	private static final boolean DEFAULT_MIRROR_UPLOAD_MANIFEST = getDefaultConfiguration().getBoolean("sftp.mirrorUploadManifest",
+		false);
+	private static final int DEFAULT_UPLOAD_SESSIONS = getDefaultConfiguration().getInt("sftp.uploadSessions", 1);
+	private static final int DEFAULT_UPLOAD_CHANNELS = getDefaultConfiguration().getInt("sftp.uploadChannels", 4);
+	private static final long DEFAULT_MAX_IN_FLIGHT_BYTES = getDefaultConfiguration().getLong("sftp.maxInFlightBytes",
+		64L * 1024 * 1024);
+	private static final int DEFAULT_UPLOAD_ATTEMPTS = getDefaultConfiguration().getInt("sftp.uploadAttempts", 3);
+	private static final boolean DEFAULT_ARCHIVE_UPLOADS = getDefaultConfiguration().getBoolean("sftp.archiveUploads", false);
+	private static final String DEFAULT_ARCHIVE_PREFIX = getDefaultConfiguration().getString("sftp.archivePrefix",
+		"produktove-listy");
 
 	private String host = DEFAULT_HOST;
 	private int port = DEFAULT_PORT;
 	private String downloadDirectory = DEFAULT_DOWNLOAD_DIRECTORY;
 	private String uploadDirectory = DEFAULT_UPLOAD_DIRECTORY;
 	private String credentialsFile = DEFAULT_CREDENTIALS_FILE;
+	private String manifestFile = DEFAULT_MANIFEST_FILE;
+	private boolean skipUnchangedFiles = true;
+	private boolean streamDownloads = DEFAULT_STREAM_DOWNLOADS;
+	private String downloadCopyDirectory = DEFAULT_DOWNLOAD_COPY_DIRECTORY;
+	private String uploadManifestFile = DEFAULT_UPLOAD_MANIFEST_FILE;
+	private boolean mirrorUploadManifest = DEFAULT_MIRROR_UPLOAD_MANIFEST;
+	private int uploadSessions = DEFAULT_UPLOAD_SESSIONS;
+	private int uploadChannels = DEFAULT_UPLOAD_CHANNELS;
+	private long maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+	private int uploadAttempts = DEFAULT_UPLOAD_ATTEMPTS;
+	private boolean archiveUploads = DEFAULT_ARCHIVE_UPLOADS;
+	private String archivePrefix = DEFAULT_ARCHIVE_PREFIX;
 
 	/**
 	 * Construct.
@@ -131,6 +158,215 @@ public class SftpConfig
 		this.credentialsFile = credentialsFile;
 	}
 
+	/**
+	 * @return the path to the local manifest of remote files processed by the last sync
+	 */
+	public String getManifestFile()
+	{
+		return manifestFile;
+	}
+
+	/**
+	 * @param manifestFile
+	 *            the path to the local manifest of remote files processed by the last sync
+	 */
+	public void setManifestFile(String manifestFile)
+	{
+		this.manifestFile = manifestFile;
+	}
+
+	/**
+	 * @return whether remote files with the same size and modification time as in the last sync
+	 *         are skipped (default true)
+	 */
+	public boolean isSkipUnchangedFiles()
+	{
+		return skipUnchangedFiles;
+	}
+
+	/**
+	 * @param skipUnchangedFiles
+	 *            whether remote files with the same size and modification time as in the last sync
+	 *            are skipped
+	 */
+	public void setSkipUnchangedFiles(boolean skipUnchangedFiles)
+	{
+		this.skipUnchangedFiles = skipUnchangedFiles;
+	}
+
+	/**
+	 * @return whether XML files are processed as a stream while they are downloaded, instead of
+	 *         being downloaded to a temp file first
+	 */
+	public boolean isStreamDownloads()
+	{
+		return streamDownloads;
+	}
+
+	/**
+	 * @param streamDownloads
+	 *            whether XML files are processed as a stream while they are downloaded
+	 */
+	public void setStreamDownloads(boolean streamDownloads)
+	{
+		this.streamDownloads = streamDownloads;
+	}
+
+	/**
+	 * @return the directory keeping a local copy of streamed XML files, blank to keep none
+	 */
+	public String getDownloadCopyDirectory()
+	{
+		return downloadCopyDirectory;
+	}
+
+	/**
+	 * @param downloadCopyDirectory
+	 *            the directory keeping a local copy of streamed XML files, blank to keep none
+	 */
+	public void setDownloadCopyDirectory(String downloadCopyDirectory)
+	{
+		this.downloadCopyDirectory = downloadCopyDirectory;
+	}
+
+	/**
+	 * @return the path to the local manifest of content hashes of uploaded files
+	 */
+	public String getUploadManifestFile()
+	{
+		return uploadManifestFile;
+	}
+
+	/**
+	 * @param uploadManifestFile
+	 *            the path to the local manifest of content hashes of uploaded files
+	 */
+	public void setUploadManifestFile(String uploadManifestFile)
+	{
+		this.uploadManifestFile = uploadManifestFile;
+	}
+
+	/**
+	 * @return whether the manifest of uploaded files is mirrored to the upload directory
+	 */
+	public boolean isMirrorUploadManifest()
+	{
+		return mirrorUploadManifest;
+	}
+
+	/**
+	 * @param mirrorUploadManifest
+	 *            whether the manifest of uploaded files is mirrored to the upload directory
+	 */
+	public void setMirrorUploadManifest(boolean mirrorUploadManifest)
+	{
+		this.mirrorUploadManifest = mirrorUploadManifest;
+	}
+
+	/**
+	 * @return the number of SFTP sessions the upload channels are spread over (default 1)
+	 */
+	public int getUploadSessions()
+	{
+		return uploadSessions;
+	}
+
+	/**
+	 * @param uploadSessions
+	 *            the number of SFTP sessions the upload channels are spread over
+	 */
+	public void setUploadSessions(int uploadSessions)
+	{
+		this.uploadSessions = uploadSessions;
+	}
+
+	/**
+	 * @return the number of SFTP channels uploading in parallel (default 4)
+	 */
+	public int getUploadChannels()
+	{
+		return uploadChannels;
+	}
+
+	/**
+	 * @param uploadChannels
+	 *            the number of SFTP channels uploading in parallel
+	 */
+	public void setUploadChannels(int uploadChannels)
+	{
+		this.uploadChannels = uploadChannels;
+	}
+
+	/**
+	 * @return the maximum number of bytes waiting for upload before generation is paused (default
+	 *         64 MB)
+	 */
+	public long getMaxInFlightBytes()
+	{
+		return maxInFlightBytes;
+	}
+
+	/**
+	 * @param maxInFlightBytes
+	 *            the maximum number of bytes waiting for upload before generation is paused
+	 */
+	public void setMaxInFlightBytes(long maxInFlightBytes)
+	{
+		this.maxInFlightBytes = maxInFlightBytes;
+	}
+
+	/**
+	 * @return the number of attempts to upload a file (default 3)
+	 */
+	public int getUploadAttempts()
+	{
+		return uploadAttempts;
+	}
+
+	/**
+	 * @param uploadAttempts
+	 *            the number of attempts to upload a file
+	 */
+	public void setUploadAttempts(int uploadAttempts)
+	{
+		this.uploadAttempts = uploadAttempts;
+	}
+
+	/**
+	 * @return true if the generated files of each XML are uploaded as one ZIP archive with a
+	 *         manifest instead of individual files
+	 */
+	public boolean isArchiveUploads()
+	{
+		return archiveUploads;
+	}
+
+	/**
+	 * @param archiveUploads
+	 *            true to upload the generated files of each XML as one ZIP archive with a manifest
+	 */
+	public void setArchiveUploads(boolean archiveUploads)
+	{
+		this.archiveUploads = archiveUploads;
+	}
+
+	/**
+	 * @return the file name prefix of uploaded archives, followed by a timestamp
+	 */
+	public String getArchivePrefix()
+	{
+		return archivePrefix;
+	}
+
+	/**
+	 * @param archivePrefix
+	 *            the file name prefix of uploaded archives
+	 */
+	public void setArchivePrefix(String archivePrefix)
+	{
+		this.archivePrefix = archivePrefix;
+	}
+
 	/**
 	 * Validates that all required configuration fields are set.
 	 *
@@ -155,12 +391,21 @@ public class SftpConfig
 		{
 			throw new IllegalStateException("SFTP credentials file path is required");
 		}
+		if (uploadSessions < 1 || uploadChannels < 1)
+		{
+			throw new IllegalStateException("At least one SFTP upload session and channel is required");
+		}
+		if (archiveUploads && StringUtils.isBlank(archivePrefix))
+		{
+			throw new IllegalStateException("SFTP archive prefix is required for archive uploads");
+		}
 	}
 
 	@Override
 	public String toString()
 	{
 		return "SftpConfig[host=" + host + ", port=" + port + ", downloadDirectory=" + downloadDirectory + ", uploadDirectory="
-			+ uploadDirectory + "]";
+			+ uploadDirectory + ", skipUnchangedFiles=" + skipUnchangedFiles + ", uploadSessions="
+			+ uploadSessions + ", uploadChannels=" + uploadChannels + ", archiveUploads=" + archiveUploads + "]";
 	}
 }
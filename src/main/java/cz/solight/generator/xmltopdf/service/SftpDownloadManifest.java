@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.SftpATTRS;
+
+/**
+ * Local record of the remote XML files processed by the last successful sync. Each remote path is
+ * stored with the size and modification time reported by the SFTP server, so that files which did
+ * not change since then can be skipped without downloading them.
+ */
+public class SftpDownloadManifest
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SftpDownloadManifest.class);
+
+	private final Path file;
+	private final Properties entries = new Properties();
+
+	private SftpDownloadManifest(Path file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Loads the manifest from the given file. A missing or unreadable file results in an empty
+	 * manifest, i.e. all remote files are treated as changed.
+	 *
+	 * @param file
+	 *            the manifest file
+	 * @return the manifest
+	 */
+	public static SftpDownloadManifest load(Path file)
+	{
+		var manifest = new SftpDownloadManifest(file);
+		if (Files.isRegularFile(file))
+		{
+			try (var reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+			{
+				manifest.entries.load(reader);
+			}
+			catch (IOException e)
+			{
+				LOG.warn("Failed to load SFTP download manifest {}, all files will be downloaded", file, e);
+				manifest.entries.clear();
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Checks whether the remote file has the same size and modification time as when it was last
+	 * processed.
+	 *
+	 * @param remotePath
+	 *            the remote file path
+	 * @param attrs
+	 *            attributes of the remote file from the directory listing
+	 * @return true if the file did not change since the last sync
+	 */
+	public boolean isUnchanged(String remotePath, SftpATTRS attrs)
+	{
+		return describe(attrs).equals(entries.getProperty(remotePath));
+	}
+
+	/**
+	 * Records the remote file as processed.
+	 *
+	 * @param remotePath
+	 *            the remote file path
+	 * @param attrs
+	 *            attributes of the remote file from the directory listing
+	 */
+	public void markProcessed(String remotePath, SftpATTRS attrs)
+	{
+		entries.setProperty(remotePath, describe(attrs));
+	}
+
+	/**
+	 * Writes the manifest to its file. Failures are logged and otherwise ignored, the next sync
+	 * then simply downloads the files again.
+	 */
+	public void save()
+	{
+		try
+		{
+			var directory = file.toAbsolutePath().getParent();
+			Files.createDirectories(directory);
+			var tempFile = Files.createTempFile(directory, "sftp-manifest-", ".tmp");
+			try (var writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))
+			{
+				entries.store(writer, "Remote XML files processed by the last SFTP sync (size,mtime)");
+			}
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Failed to save SFTP download manifest {}", file, e);
+		}
+	}
+
+	private static String describe(SftpATTRS attrs)
+	{
+		return attrs.getSize() + "," + attrs.getMTime();
+	}
+}
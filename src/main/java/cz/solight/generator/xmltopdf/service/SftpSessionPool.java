@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Pool of connected SSH sessions for SFTP, so that repeated syncs do not pay for a full handshake
+ * and password authentication every time. Idle sessions are kept warm by ServerAliveInterval
+ * keepalives, validated before they are leased and replaced by a new connection when broken.
+ *
+ * <p>
+ * A leased session is used exclusively by the caller (which may open several channels on it) and
+ * has to be returned by {@link #release(Session)}, or by {@link #invalidate(Session)} if it should
+ * not be reused. Sessions are pooled per host, port and user.
+ * </p>
+ */
+public class SftpSessionPool implements AutoCloseable
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SftpSessionPool.class);
+	private static final int SFTP_TIMEOUT_MS = 30_000;
+	private static final int KEEP_ALIVE_INTERVAL_MS = getDefaultConfiguration().getInt("sftp.keepAliveIntervalSeconds", 30)
+		* 1000;
+	private static final int MAX_IDLE_SESSIONS = getDefaultConfiguration().getInt("sftp.maxIdleSessions", 2);
+	private static final Duration MAX_IDLE_TIME = Duration
+		.ofMinutes(getDefaultConfiguration().getLong("sftp.maxIdleMinutes", 60));
+
+	private final Map<String, Deque<IdleSession>> idleSessions = new HashMap<>();
+	private final Map<Session, String> leasedSessions = new IdentityHashMap<>();
+	private boolean closed;
+
+	/**
+	 * Construct.
+	 */
+	public SftpSessionPool()
+	{
+		super();
+	}
+
+	/**
+	 * Leases a connected session. An idle pooled session is reused if it is still alive, otherwise
+	 * a new connection is established.
+	 *
+	 * @param config
+	 *            SFTP configuration
+	 * @param credentials
+	 *            authentication credentials
+	 * @return the connected session
+	 * @throws JSchException
+	 *             if connection fails
+	 */
+	public Session lease(SftpConfig config, SftpCredentials credentials) throws JSchException
+	{
+		var key = key(config, credentials);
+		while (true)
+		{
+			IdleSession idle;
+			synchronized (this)
+			{
+				if (closed)
+				{
+					throw new IllegalStateException("SFTP session pool is closed");
+				}
+				var sessions = idleSessions.get(key);
+				idle = sessions != null ? sessions.pollFirst() : null;
+			}
+			if (idle == null)
+			{
+				break;
+			}
+			if (idle.isExpired())
+			{
+				LOG.debug("Closing SFTP session idle for more than {}", MAX_IDLE_TIME);
+				disconnect(idle.session());
+			}
+			else if (isAlive(idle.session()))
+			{
+				LOG.debug("Reusing pooled SFTP session to {}", key);
+				return leased(idle.session(), key);
+			}
+			else
+			{
+				LOG.info("Pooled SFTP session to {} is broken, reconnecting", key);
+				disconnect(idle.session());
+			}
+		}
+		return leased(connect(config, credentials), key);
+	}
+
+	/**
+	 * Returns a leased session to the pool. The caller must have closed its channels.
+	 *
+	 * @param session
+	 *            the session, may be null
+	 */
+	public void release(Session session)
+	{
+		if (session == null)
+		{
+			return;
+		}
+		synchronized (this)
+		{
+			var key = leasedSessions.remove(session);
+			if (key != null && !closed && session.isConnected())
+			{
+				var sessions = idleSessions.computeIfAbsent(key, k -> new ArrayDeque<>());
+				if (sessions.size() < MAX_IDLE_SESSIONS)
+				{
+					sessions.addFirst(new IdleSession(session, System.nanoTime()));
+					return;
+				}
+			}
+		}
+		disconnect(session);
+	}
+
+	/**
+	 * Disconnects a leased session instead of returning it to the pool, e.g. after an error that
+	 * may have left it in an unusable state.
+	 *
+	 * @param session
+	 *            the session, may be null
+	 */
+	public void invalidate(Session session)
+	{
+		if (session == null)
+		{
+			return;
+		}
+		synchronized (this)
+		{
+			leasedSessions.remove(session);
+		}
+		disconnect(session);
+	}
+
+	/**
+	 * Disconnects all idle sessions; leased sessions are disconnected when they are released.
+	 */
+	@Override
+	public void close()
+	{
+		Deque<IdleSession> toClose = new ArrayDeque<>();
+		synchronized (this)
+		{
+			closed = true;
+			idleSessions.values().forEach(toClose::addAll);
+			idleSessions.clear();
+		}
+		toClose.forEach(idle -> disconnect(idle.session()));
+	}
+
+	/**
+	 * Establishes a new session to the server.
+	 *
+	 * @param config
+	 *            SFTP configuration
+	 * @param credentials
+	 *            authentication credentials
+	 * @return the connected session
+	 * @throws JSchException
+	 *             if connection fails
+	 */
+	Session connect(SftpConfig config, SftpCredentials credentials) throws JSchException
+	{
+		LOG.info("Connecting to SFTP server: {}:{}", config.getHost(), config.getPort());
+
+		var jsch = new JSch();
+		var session = jsch.getSession(credentials.username(), config.getHost(), config.getPort());
+		session.setPassword(credentials.password());
+
+		// Disable strict host key checking for simplicity
+		// In production, consider using known_hosts file
+		session.setConfig("StrictHostKeyChecking", "no");
+		session.setTimeout(SFTP_TIMEOUT_MS);
+
+		session.connect();
+
+		// keep idle pooled sessions from being dropped by the server or firewalls
+		session.setServerAliveInterval(KEEP_ALIVE_INTERVAL_MS);
+		session.setServerAliveCountMax(3);
+		LOG.info("Connected to SFTP server successfully");
+
+		return session;
+	}
+
+	private synchronized Session leased(Session session, String key)
+	{
+		leasedSessions.put(session, key);
+		return session;
+	}
+
+	/**
+	 * Checks that the session is connected and the connection still carries data.
+	 */
+	private boolean isAlive(Session session)
+	{
+		if (!session.isConnected())
+		{
+			return false;
+		}
+		try
+		{
+			session.sendKeepAliveMsg();
+			return true;
+		}
+		catch (Exception e)
+		{
+			LOG.debug("SFTP keepalive failed", e);
+			return false;
+		}
+	}
+
+	private void disconnect(Session session)
+	{
+		try
+		{
+			session.disconnect();
+			LOG.info("SFTP session disconnected");
+		}
+		catch (Exception e)
+		{
+			LOG.warn("Error disconnecting SFTP session", e);
+		}
+	}
+
+	private static String key(SftpConfig config, SftpCredentials credentials)
+	{
+		return credentials.username() + "@" + config.getHost() + ":" + config.getPort();
+	}
+
+	/**
+	 * Session waiting in the pool.
+	 *
+	 * @param session
+	 *            the session
+	 * @param releasedAt
+	 *            {@link System#nanoTime()} when it was released
+	 */
+	private record IdleSession(Session session, long releasedAt)
+	{
+		boolean isExpired()
+		{
+			return System.nanoTime() - releasedAt > MAX_IDLE_TIME.toNanos();
+		}
+	}
+}
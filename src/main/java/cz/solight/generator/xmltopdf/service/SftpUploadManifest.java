@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content hashes of the files last uploaded to the SFTP upload directory, keyed by remote file
+ * name. A file whose hash matches the last uploaded version is not uploaded again. The manifest is
+ * stored locally and may be mirrored to the upload directory, so that it survives the loss of the
+ * local copy.
+ *
+ * <p>
+ * Safe for use by several upload workers at once.
+ * </p>
+ */
+public class SftpUploadManifest
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SftpUploadManifest.class);
+
+	/** Name of the mirrored manifest in the remote upload directory. */
+	public static final String REMOTE_FILENAME = ".upload-manifest.properties";
+
+	private final Path file;
+	private final ConcurrentHashMap<String, String> hashes = new ConcurrentHashMap<>();
+	private final AtomicInteger skippedFiles = new AtomicInteger();
+	private final AtomicLong bytesSaved = new AtomicLong();
+
+	private SftpUploadManifest(Path file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Loads the manifest from the given file. A missing or unreadable file results in an empty
+	 * manifest, i.e. all files are uploaded.
+	 *
+	 * @param file
+	 *            the local manifest file
+	 * @return the manifest
+	 */
+	public static SftpUploadManifest load(Path file)
+	{
+		var manifest = new SftpUploadManifest(file);
+		if (Files.isRegularFile(file))
+		{
+			try (var in = Files.newInputStream(file))
+			{
+				manifest.read(in);
+			}
+			catch (IOException e)
+			{
+				LOG.warn("Failed to load SFTP upload manifest {}, all files will be uploaded", file, e);
+				manifest.hashes.clear();
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * @return true if the local manifest file exists
+	 */
+	public boolean existsLocally()
+	{
+		return Files.isRegularFile(file);
+	}
+
+	/**
+	 * Replaces the entries with the content of a manifest mirrored on the server.
+	 *
+	 * @param in
+	 *            the mirrored manifest
+	 * @throws IOException
+	 *             if the manifest cannot be read
+	 */
+	public void read(InputStream in) throws IOException
+	{
+		var properties = new Properties();
+		properties.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+		hashes.clear();
+		for (var name : properties.stringPropertyNames())
+		{
+			hashes.put(name, properties.getProperty(name));
+		}
+	}
+
+	/**
+	 * Checks whether a file with the same content was already uploaded under the given name. Counts
+	 * the file as skipped if so.
+	 *
+	 * @param remoteName
+	 *            the remote file name
+	 * @param contentHash
+	 *            content hash of the local file
+	 * @param size
+	 *            size of the local file, for statistics
+	 * @return true if the upload can be skipped
+	 */
+	public boolean isUploaded(String remoteName, String contentHash, long size)
+	{
+		if (contentHash.equals(hashes.get(remoteName)))
+		{
+			skippedFiles.incrementAndGet();
+			bytesSaved.addAndGet(size);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records a successful upload.
+	 *
+	 * @param remoteName
+	 *            the remote file name
+	 * @param contentHash
+	 *            content hash of the uploaded file
+	 */
+	public void markUploaded(String remoteName, String contentHash)
+	{
+		hashes.put(remoteName, contentHash);
+	}
+
+	/**
+	 * @return number of uploads skipped because of identical content
+	 */
+	public int getSkippedFiles()
+	{
+		return skippedFiles.get();
+	}
+
+	/**
+	 * @return number of bytes not uploaded because of identical content
+	 */
+	public long getBytesSaved()
+	{
+		return bytesSaved.get();
+	}
+
+	/**
+	 * Writes the manifest to its local file. Failures are logged and otherwise ignored, the next
+	 * sync then simply uploads the files again.
+	 *
+	 * @return the written file, or null if writing failed
+	 */
+	public Path save()
+	{
+		var properties = new Properties();
+		properties.putAll(hashes);
+
+		try
+		{
+			var directory = file.toAbsolutePath().getParent();
+			Files.createDirectories(directory);
+			var tempFile = Files.createTempFile(directory, "upload-manifest-", ".tmp");
+			try (var writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))
+			{
+				properties.store(writer, "Content hashes of files in the SFTP upload directory");
+			}
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return file;
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Failed to save SFTP upload manifest {}", file, e);
+			return null;
+		}
+	}
+}
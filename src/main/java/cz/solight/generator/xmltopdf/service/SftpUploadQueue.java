@@ -0,0 +1,715 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+
+import cz.solight.generator.xmltopdf.util.CancellationToken;
+import cz.solight.generator.xmltopdf.util.PdfContentHash;
+
+/**
+ * Uploads files to the SFTP server in the background over several SFTP channels, so that uploads
+ * run in parallel with the generation of further files. Each channel is used by its own worker
+ * thread (channels are not thread safe); the channels may be spread over several sessions.
+ *
+ * <p>
+ * Content waiting for upload is held in memory and streamed straight into the SFTP channel, no
+ * temp files are needed. Submitting blocks while the content waiting for upload exceeds the
+ * configured number of bytes. Failed uploads are retried, a broken channel is reopened. Files
+ * identical to the last uploaded version are skipped. {@link #awaitCompletion()} waits until all
+ * submitted files are acknowledged by the server.
+ * </p>
+ *
+ * <p>
+ * In archive mode the files are not uploaded one by one, which costs several round trips per file,
+ * but written by a single worker into one ZIP archive that is streamed to the server while further
+ * files are generated. {@link #awaitCompletion()} completes the archive and uploads a manifest
+ * listing its files next to it; the archive gets its final name only after that. If the archive
+ * fails, all files in it are reported as failed.
+ * </p>
+ *
+ * <p>
+ * The queue is bound to the {@link CancellationToken} of the thread that creates it; once the job
+ * is cancelled, submitting fails and files waiting for upload are reported as failed.
+ * </p>
+ */
+public class SftpUploadQueue implements Consumer<File>, AutoCloseable
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SftpUploadQueue.class);
+	private static final long RETRY_DELAY_MS = 1_000;
+
+	/** Marks the end of the queue for the workers. */
+	private static final PendingUpload END = new PendingUpload("", new byte[0]);
+
+	/** Asks the archive worker to complete the current archive. */
+	private static final PendingUpload FLUSH = new PendingUpload("", new byte[0]);
+
+	private static final DateTimeFormatter ARCHIVE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+	private final FtpSyncService ftpSyncService;
+	private final String remoteDirectory;
+	private final long maxInFlightBytes;
+	private final int maxAttempts;
+	private final SftpUploadManifest manifest;
+	private final String archivePrefix;
+	/** Partial uploads left by earlier runs, removed once their file is uploaded. */
+	private final Map<String, List<String>> staleParts;
+
+	private final BlockingQueue<PendingUpload> queue = new LinkedBlockingQueue<>();
+	private final List<Thread> workers = new ArrayList<>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private long inFlightBytes;
+	private int pendingFiles;
+	private final List<String> failedFiles = new ArrayList<>();
+	private boolean closed;
+	private volatile Consumer<String> uploadListener;
+	private final CancellationToken cancellation = CancellationToken.current();
+
+	private final long started = System.nanoTime();
+	private final AtomicInteger uploadedFiles = new AtomicInteger();
+	private final AtomicLong uploadedBytes = new AtomicLong();
+
+	/**
+	 * Creates the queue and starts one worker per channel. Channels are opened round robin on the
+	 * given sessions.
+	 *
+	 * @param ftpSyncService
+	 *            service performing the uploads
+	 * @param sessions
+	 *            connected sessions to open the channels on
+	 * @param channelCount
+	 *            number of parallel channels
+	 * @param remoteDirectory
+	 *            the remote directory to upload to
+	 * @param maxInFlightBytes
+	 *            maximum number of bytes submitted but not yet uploaded
+	 * @param maxAttempts
+	 *            number of attempts per file
+	 * @param manifest
+	 *            content hashes of previously uploaded files, unchanged files are skipped; may be
+	 *            null to upload all files
+	 * @param archivePrefix
+	 *            file name prefix of archives in archive mode, null to upload individual files
+	 * @throws JSchException
+	 *             if a channel cannot be opened
+	 */
+	SftpUploadQueue(FtpSyncService ftpSyncService, List<Session> sessions, int channelCount, String remoteDirectory,
+		long maxInFlightBytes, int maxAttempts, SftpUploadManifest manifest, String archivePrefix) throws JSchException
+	{
+		this.ftpSyncService = ftpSyncService;
+		this.remoteDirectory = remoteDirectory;
+		this.maxInFlightBytes = maxInFlightBytes;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.manifest = manifest;
+		this.archivePrefix = archivePrefix;
+
+		if (archivePrefix != null)
+		{
+			this.staleParts = Map.of();
+			var worker = new Thread(new ArchiveWorker(sessions.get(0)), "sftp-upload-archive");
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+			LOG.info("Started SFTP archive upload");
+			return;
+		}
+
+		var channels = new ArrayList<ChannelSftp>();
+		for (int i = 0; i < Math.max(1, channelCount); i++)
+		{
+			var session = sessions.get(i % sessions.size());
+			var channel = ftpSyncService.openSftpChannel(session);
+			var worker = new Thread(new Worker(session, channel), "sftp-upload-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			channels.add(channel);
+		}
+		this.staleParts = ftpSyncService.listPartFiles(channels.get(0), remoteDirectory);
+		workers.forEach(Thread::start);
+		LOG.info("Started {} SFTP upload channels on {} sessions", workers.size(), sessions.size());
+	}
+
+	/**
+	 * Submits a local file for upload. The content is read right away, the file may be deleted
+	 * once this method returns. Blocks while the content waiting for upload exceeds the in-flight
+	 * limit.
+	 *
+	 * @param file
+	 *            the local file to upload
+	 */
+	@Override
+	public void accept(File file)
+	{
+		try
+		{
+			accept(file.getName(), Files.readAllBytes(file.toPath()));
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Failed to read file: " + file.getName() + " - " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Submits content for upload. Blocks while the content waiting for upload exceeds the in-flight
+	 * limit.
+	 *
+	 * @param filename
+	 *            the remote file name
+	 * @param content
+	 *            the file content, must not be modified afterwards
+	 */
+	public void accept(String filename, byte[] content)
+	{
+		cancellation.throwIfCancelled();
+		long size = content.length;
+		lock.lock();
+		try
+		{
+			while (!closed && inFlightBytes > 0 && inFlightBytes + size > maxInFlightBytes)
+			{
+				changed.awaitUninterruptibly();
+			}
+			if (closed)
+			{
+				throw new IllegalStateException("Upload queue is closed");
+			}
+			inFlightBytes += size;
+			pendingFiles++;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		queue.add(new PendingUpload(filename, content));
+	}
+
+	/**
+	 * Sets a listener notified with the name of every file that reached the server or was skipped
+	 * as unchanged. It is called from the upload threads.
+	 *
+	 * @param uploadListener
+	 *            the listener, null for none
+	 */
+	public void setUploadListener(Consumer<String> uploadListener)
+	{
+		this.uploadListener = uploadListener;
+	}
+
+	/**
+	 * Waits until all submitted files are uploaded or have failed. In archive mode the current
+	 * archive is completed.
+	 *
+	 * @return names of files that failed to upload since the queue was last drained
+	 */
+	public List<String> awaitCompletion()
+	{
+		if (archivePrefix != null)
+		{
+			queue.add(FLUSH);
+		}
+		lock.lock();
+		try
+		{
+			while (pendingFiles > 0)
+			{
+				changed.awaitUninterruptibly();
+			}
+			return new ArrayList<>(failedFiles);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until all submitted files are uploaded or have failed and clears the failures.
+	 *
+	 * @return names of files that failed to upload since the queue was last drained
+	 */
+	List<String> drain()
+	{
+		lock.lock();
+		try
+		{
+			var failed = awaitCompletion();
+			failedFiles.clear();
+			return failed;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the pending uploads, stops the workers and disconnects their channels. Sessions are
+	 * left to the caller.
+	 */
+	@Override
+	public void close()
+	{
+		var failed = drain();
+		if (!failed.isEmpty())
+		{
+			LOG.warn("{} files were not uploaded", failed.size());
+		}
+		lock.lock();
+		try
+		{
+			closed = true;
+			changed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		workers.forEach(worker -> queue.add(END));
+		for (var worker : workers)
+		{
+			try
+			{
+				worker.join();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		logThroughput(archivePrefix != null ? "archives" : workers.size() + " channels", uploadedFiles.get(),
+			uploadedBytes.get(), started);
+	}
+
+	/**
+	 * Logs the upload throughput, for tuning the number of channels and the upload mode.
+	 */
+	private static void logThroughput(String uploadedOver, int files, long bytes, long startedNanos)
+	{
+		double seconds = Math.max(1, System.nanoTime() - startedNanos) / 1e9;
+		LOG.info("Uploaded {} files, {} bytes over {} in {} s ({} files/s, {} MB/s)", files, bytes, uploadedOver,
+			String.format("%.1f", seconds), String.format("%.1f", files / seconds), String.format("%.2f", bytes / seconds / 1e6));
+	}
+
+	private void finished(PendingUpload upload, boolean success)
+	{
+		released(upload);
+		completed(List.of(upload.filename()), success);
+	}
+
+	/**
+	 * Frees the in-flight bytes of content that was sent, it may not be acknowledged yet.
+	 */
+	private void released(PendingUpload upload)
+	{
+		lock.lock();
+		try
+		{
+			inFlightBytes -= upload.content().length;
+			changed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records the outcome of files whose upload was completed.
+	 */
+	private void completed(Collection<String> filenames, boolean success)
+	{
+		// notified before the files stop being pending, so awaitCompletion() covers the listener
+		var listener = uploadListener;
+		if (success && listener != null)
+		{
+			filenames.forEach(listener);
+		}
+		lock.lock();
+		try
+		{
+			pendingFiles -= filenames.size();
+			if (!success)
+			{
+				failedFiles.addAll(filenames);
+			}
+			changed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Uploads files from the queue over its own channel.
+	 */
+	private class Worker implements Runnable
+	{
+		private final Session session;
+		private ChannelSftp channel;
+
+		Worker(Session session, ChannelSftp channel)
+		{
+			this.session = session;
+			this.channel = channel;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					var upload = queue.take();
+					if (upload == END)
+					{
+						return;
+					}
+					finished(upload, upload(upload));
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				ftpSyncService.disconnect(null, channel);
+			}
+		}
+
+		/**
+		 * Uploads the content with retries, reopening the channel if it broke. A retry resumes the
+		 * partially uploaded file.
+		 *
+		 * @return true if the file was uploaded or skipped as unchanged
+		 */
+		private boolean upload(PendingUpload upload) throws InterruptedException
+		{
+			for (int attempt = 1; attempt <= maxAttempts && !cancellation.isCancelled(); attempt++)
+			{
+				try
+				{
+					if (channel == null || !channel.isConnected())
+					{
+						channel = ftpSyncService.openSftpChannel(session);
+					}
+					if (ftpSyncService.uploadContent(channel, upload.filename(), upload.content(), remoteDirectory, manifest))
+					{
+						uploadedFiles.incrementAndGet();
+						uploadedBytes.addAndGet(upload.content().length);
+					}
+					var parts = staleParts.isEmpty() ? null : staleParts.remove(upload.filename());
+					if (parts != null)
+					{
+						ftpSyncService.removePartFiles(channel, parts);
+					}
+					return true;
+				}
+				catch (JSchException | RuntimeException e)
+				{
+					if (attempt == maxAttempts)
+					{
+						LOG.error("Giving up upload of {} after {} attempts", upload.filename(), attempt, e);
+					}
+					else
+					{
+						LOG.warn("Upload of {} failed (attempt {}/{}), retrying: {}", upload.filename(), attempt, maxAttempts,
+							e.getMessage());
+						Thread.sleep(RETRY_DELAY_MS * attempt);
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the files from the queue into a ZIP archive streamed to the server over a single
+	 * channel.
+	 */
+	private class ArchiveWorker implements Runnable
+	{
+		private final Session session;
+		private ChannelSftp channel;
+		private int archiveCount;
+
+		private String archiveName;
+		private ZipOutputStream zip;
+		private final List<ArchivedFile> archivedFiles = new ArrayList<>();
+		private boolean archiveFailed;
+		private long archiveStarted;
+
+		ArchiveWorker(Session session)
+		{
+			this.session = session;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					var upload = queue.take();
+					if (upload == END)
+					{
+						completeArchive();
+						return;
+					}
+					if (upload == FLUSH)
+					{
+						completeArchive();
+					}
+					else
+					{
+						add(upload);
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				abortArchive();
+				ftpSyncService.disconnect(null, channel);
+			}
+		}
+
+		/**
+		 * Writes the file into the current archive, starting a new archive if needed.
+		 */
+		private void add(PendingUpload upload)
+		{
+			var content = upload.content();
+			String contentHash = null;
+			if (manifest != null)
+			{
+				contentHash = PdfContentHash.of(content);
+				if (manifest.isUploaded(upload.filename(), contentHash, content.length))
+				{
+					LOG.debug("Skipping upload of unchanged file: {}", upload.filename());
+					finished(upload, true);
+					return;
+				}
+			}
+
+			archivedFiles.add(new ArchivedFile(upload.filename(), content.length, DigestUtils.sha256Hex(content), contentHash));
+			if (cancellation.isCancelled())
+			{
+				archiveFailed = true;
+			}
+			try
+			{
+				if (!archiveFailed)
+				{
+					if (zip == null)
+					{
+						openArchive();
+					}
+					var entry = new ZipEntry(upload.filename());
+					zip.putNextEntry(entry);
+					zip.write(content);
+					zip.closeEntry();
+				}
+			}
+			catch (IOException | SftpException | JSchException | RuntimeException e)
+			{
+				LOG.error("Failed to write {} to archive {}", upload.filename(), archiveName, e);
+				archiveFailed = true;
+			}
+			finally
+			{
+				released(upload);
+			}
+		}
+
+		private void openArchive() throws SftpException, JSchException
+		{
+			if (channel == null || !channel.isConnected())
+			{
+				channel = ftpSyncService.openSftpChannel(session);
+			}
+			archiveCount++;
+			archiveName = archivePrefix + "-" + LocalDateTime.now().format(ARCHIVE_TIMESTAMP)
+				+ (archiveCount > 1 ? "-" + archiveCount : "") + ".zip";
+			archiveStarted = System.nanoTime();
+			zip = new ZipOutputStream(new BufferedOutputStream(channel.put(partPath(archiveName), ChannelSftp.OVERWRITE)));
+			// PDFs are compressed already, spend little CPU on them
+			zip.setLevel(Deflater.BEST_SPEED);
+			LOG.info("Started archive upload: {}/{}", remoteDirectory, archiveName);
+		}
+
+		/**
+		 * Completes the current archive, uploads its manifest and renames the archive to its final
+		 * name.
+		 */
+		private void completeArchive()
+		{
+			if (archivedFiles.isEmpty())
+			{
+				return;
+			}
+
+			var filenames = archivedFiles.stream().map(ArchivedFile::filename).toList();
+			boolean success = false;
+			try
+			{
+				if (!archiveFailed)
+				{
+					zip.close();
+					zip = null;
+
+					var manifestName = archiveName.substring(0, archiveName.length() - ".zip".length()) + ".manifest.csv";
+					ftpSyncService.uploadContent(channel, manifestName, manifestContent(), remoteDirectory, null);
+					ftpSyncService.replace(channel, partPath(archiveName), remoteDirectory + "/" + archiveName);
+					success = true;
+
+					long bytes = archivedFiles.stream().mapToLong(ArchivedFile::size).sum();
+					uploadedFiles.addAndGet(archivedFiles.size());
+					uploadedBytes.addAndGet(bytes);
+					logThroughput("archive " + archiveName, archivedFiles.size(), bytes, archiveStarted);
+
+					if (manifest != null)
+					{
+						archivedFiles.forEach(file -> manifest.markUploaded(file.filename(), file.contentHash()));
+					}
+				}
+			}
+			catch (IOException | SftpException | RuntimeException e)
+			{
+				LOG.error("Failed to complete archive {}", archiveName, e);
+			}
+			finally
+			{
+				if (!success)
+				{
+					LOG.error("Archive {} was not uploaded, {} files failed", archiveName, filenames.size());
+					abortArchive();
+				}
+				archivedFiles.clear();
+				archiveFailed = false;
+				completed(filenames, success);
+			}
+		}
+
+		/**
+		 * Discards an unfinished archive.
+		 */
+		private void abortArchive()
+		{
+			if (zip == null)
+			{
+				return;
+			}
+			try
+			{
+				zip.close();
+				channel.rm(partPath(archiveName));
+			}
+			catch (IOException | SftpException | RuntimeException e)
+			{
+				LOG.debug("Failed to remove unfinished archive {}", archiveName, e);
+			}
+			zip = null;
+		}
+
+		/**
+		 * @return lines with name, size and SHA-256 hash of each file in the archive
+		 */
+		private byte[] manifestContent()
+		{
+			var manifestContent = new StringBuilder("filename;size;sha256\n");
+			for (var file : archivedFiles)
+			{
+				manifestContent.append(file.filename()).append(';').append(file.size()).append(';').append(file.sha256())
+					.append('\n');
+			}
+			return manifestContent.toString().getBytes(StandardCharsets.UTF_8);
+		}
+
+		private String partPath(String filename)
+		{
+			return remoteDirectory + "/." + filename + FtpSyncService.PART_EXTENSION;
+		}
+	}
+
+	/**
+	 * File written into an archive.
+	 *
+	 * @param filename
+	 *            the file name in the archive
+	 * @param size
+	 *            size of the file
+	 * @param sha256
+	 *            SHA-256 hash of the content, listed in the manifest
+	 * @param contentHash
+	 *            content hash for the upload manifest, null if it is not used
+	 */
+	private record ArchivedFile(String filename, long size, String sha256, String contentHash)
+	{
+	}
+
+	/**
+	 * Content waiting for upload.
+	 *
+	 * @param filename
+	 *            the remote file name
+	 * @param content
+	 *            the file content
+	 */
+	private record PendingUpload(String filename, byte[] content)
+	{
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.util;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cancel signal and deadline of a long running job. The token of the running job is bound to the
+ * job thread, so that parsing, image resolution and PDF rendering deep in the call stack can check
+ * it via {@link #current()} without passing it through every method. Threads working for the job
+ * (e.g. upload workers) get the token explicitly.
+ *
+ * <p>
+ * Blocking calls wrapped in {@link #call(Callable)} are interrupted when the token is cancelled or
+ * the deadline passes, which aborts in-flight HTTP requests of the JDK HTTP client.
+ * </p>
+ *
+ * <p>
+ * The timeouts of all tokens are scheduled on one shared timer thread. The timeout of a token is
+ * removed from the timer once the last scope binding the token is closed, or by
+ * {@link #complete()}, so finished jobs are not kept referenced until their deadline.
+ * </p>
+ */
+public final class CancellationToken
+{
+	/** Token that is never cancelled, used when no job token is bound. */
+	public static final CancellationToken NONE = new CancellationToken(Long.MAX_VALUE);
+
+	private static final ThreadLocal<CancellationToken> CURRENT = new ThreadLocal<>();
+
+	private static final ScheduledThreadPoolExecutor TIMEOUTS = createTimeoutExecutor();
+
+	private final long deadlineNanos;
+	private final Set<Thread> interruptibleThreads = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final AtomicInteger bindings = new AtomicInteger();
+	private volatile String cancelReason;
+	private volatile ScheduledFuture<?> timeout;
+
+	private CancellationToken(long deadlineNanos)
+	{
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	/**
+	 * Creates a token that is cancelled automatically once the timeout elapses.
+	 *
+	 * @param timeout
+	 *            maximum duration of the job
+	 * @return the token
+	 */
+	public static CancellationToken withTimeout(Duration timeout)
+	{
+		var token = new CancellationToken(System.nanoTime() + timeout.toNanos());
+		token.timeout = TIMEOUTS.schedule(
+			() -> token.cancel("Překročen časový limit úlohy (" + timeout.toMinutes() + " min)"), timeout.toNanos(),
+			TimeUnit.NANOSECONDS);
+		return token;
+	}
+
+	private static ScheduledThreadPoolExecutor createTimeoutExecutor()
+	{
+		var executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+			var thread = new Thread(runnable, "job-timeouts");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// timeouts of finished jobs are removed right away, not when their deadline passes
+		executor.setRemoveOnCancelPolicy(true);
+		return executor;
+	}
+
+	/**
+	 * @return the token bound to the current thread, {@link #NONE} if there is none
+	 */
+	public static CancellationToken current()
+	{
+		var token = CURRENT.get();
+		return token != null ? token : NONE;
+	}
+
+	/**
+	 * Binds the token to the current thread until the returned scope is closed. Once the last scope
+	 * binding the token is closed, the job is considered finished, see {@link #complete()}.
+	 *
+	 * @return scope restoring the previously bound token
+	 */
+	public Scope bind()
+	{
+		var previous = CURRENT.get();
+		CURRENT.set(this);
+		bindings.incrementAndGet();
+		return () -> {
+			if (previous != null)
+			{
+				CURRENT.set(previous);
+			}
+			else
+			{
+				CURRENT.remove();
+			}
+			if (bindings.decrementAndGet() == 0)
+			{
+				complete();
+			}
+		};
+	}
+
+	/**
+	 * Marks the job as finished, removing its timeout from the timer. Needed only for a token that
+	 * is never bound, e.g. of a job that was not started.
+	 */
+	public void complete()
+	{
+		var scheduled = timeout;
+		if (scheduled != null)
+		{
+			scheduled.cancel(false);
+		}
+	}
+
+	/**
+	 * Cancels the job.
+	 *
+	 * @param reason
+	 *            reason reported to the user
+	 */
+	public void cancel(String reason)
+	{
+		if (this == NONE)
+		{
+			return;
+		}
+		synchronized (interruptibleThreads)
+		{
+			if (cancelReason != null)
+			{
+				return;
+			}
+			cancelReason = reason;
+			interruptibleThreads.forEach(Thread::interrupt);
+		}
+		complete();
+	}
+
+	/**
+	 * @return true if the job was cancelled or its deadline passed
+	 */
+	public boolean isCancelled()
+	{
+		return cancelReason != null || System.nanoTime() - deadlineNanos > 0;
+	}
+
+	/**
+	 * Stops the job if it was cancelled.
+	 *
+	 * @throws CancellationException
+	 *             if the job was cancelled or its deadline passed
+	 */
+	public void throwIfCancelled()
+	{
+		if (isCancelled())
+		{
+			throw new CancellationException(reason());
+		}
+	}
+
+	/**
+	 * Runs a blocking call that is interrupted if the job is cancelled meanwhile.
+	 *
+	 * @param <T>
+	 *            result type
+	 * @param call
+	 *            the blocking call
+	 * @return result of the call
+	 * @throws CancellationException
+	 *             if the job was cancelled before or during the call
+	 * @throws Exception
+	 *             if the call fails
+	 */
+	public <T> T call(Callable<T> call) throws Exception
+	{
+		throwIfCancelled();
+		var thread = Thread.currentThread();
+		synchronized (interruptibleThreads)
+		{
+			interruptibleThreads.add(thread);
+		}
+		try
+		{
+			return call.call();
+		}
+		catch (Exception e)
+		{
+			if (isCancelled())
+			{
+				var cancellation = new CancellationException(reason());
+				cancellation.initCause(e);
+				throw cancellation;
+			}
+			throw e;
+		}
+		finally
+		{
+			synchronized (interruptibleThreads)
+			{
+				interruptibleThreads.remove(thread);
+				if (cancelReason != null)
+				{
+					// the interrupt was meant for the call only
+					Thread.interrupted();
+				}
+			}
+		}
+	}
+
+	private String reason()
+	{
+		return cancelReason != null ? cancelReason : "Překročen časový limit úlohy";
+	}
+
+	/**
+	 * Scope of a bound token.
+	 */
+	@FunctionalInterface
+	public interface Scope extends AutoCloseable
+	{
+		@Override
+		void close();
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.text.translate.EntityArrays;
+
+/**
+ * Single-pass formatter for product descriptions coming from the XML exports, shared by
+ * {@code OfferXmlParser} and {@code ProductSheetXmlParser}. Each description is processed in one
+ * scan without regular expressions or intermediate strings: entity decoding for product sheets,
+ * {@code <UL>}/{@code <LI>} normalization and line limit for offers.
+ *
+ * <p>
+ * The output is identical to the former regex/{@code StringEscapeUtils} based implementation for
+ * well-formed descriptions.
+ * </p>
+ */
+public final class DescriptionFormatter
+{
+	/** Length of the normalized description above which the shorter line limit is used. */
+	private static final int LONG_DESCRIPTION_LENGTH = 1500;
+	private static final int LONG_DESCRIPTION_LINES = 10;
+	private static final int SHORT_DESCRIPTION_LINES = 15;
+
+	/** Named HTML 4 entities (with the leading '&amp;' and trailing ';') to their characters. */
+	private static final Map<String, String> NAMED_ENTITIES = new HashMap<>();
+	private static final int MAX_ENTITY_LENGTH;
+
+	static
+	{
+		int maxLength = 0;
+		for (var entities : List.of(EntityArrays.BASIC_UNESCAPE, EntityArrays.ISO8859_1_UNESCAPE,
+			EntityArrays.HTML40_EXTENDED_UNESCAPE))
+		{
+			for (var entry : entities.entrySet())
+			{
+				var key = entry.getKey().toString();
+				NAMED_ENTITIES.putIfAbsent(key, entry.getValue().toString());
+				maxLength = Math.max(maxLength, key.length());
+			}
+		}
+		MAX_ENTITY_LENGTH = maxLength;
+	}
+
+	private DescriptionFormatter()
+	{
+		// Utility class, no instantiation
+	}
+
+	/**
+	 * Decodes HTML entities in the description text. The product sheet XML contains HTML-encoded
+	 * content like &amp;lt;UL&amp;gt; which needs to be decoded to &lt;UL&gt;. Equivalent to
+	 * {@code StringEscapeUtils.unescapeHtml4}.
+	 *
+	 * @param text
+	 *            the text with HTML entities
+	 * @return the decoded HTML text, or empty string if blank
+	 */
+	public static String decodeEntities(String text)
+	{
+		if (StringUtils.isBlank(text))
+		{
+			return "";
+		}
+		if (text.indexOf('&') < 0)
+		{
+			return text;
+		}
+		var out = new StringBuilder(text.length());
+		int i = 0;
+		while (i < text.length())
+		{
+			i = appendDecoded(text, i, out);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Formats the offer description HTML by truncating and reformatting list items. Ported from PHP
+	 * getDescription function: {@code <ul>} tags are dropped, {@code <li>} items are kept, the
+	 * description is cut to 15 lines (10 lines for descriptions longer than 1500 characters) and
+	 * the result is wrapped in a single {@code <ul>}.
+	 *
+	 * @param xmlDescription
+	 *            the raw XML description
+	 * @return the formatted description HTML
+	 */
+	public static String formatListDescription(String xmlDescription)
+	{
+		if (StringUtils.isBlank(xmlDescription))
+		{
+			return "";
+		}
+
+		var text = xmlDescription;
+		int length = text.length();
+		var out = new StringBuilder(length + 16);
+		out.append("<ul>");
+
+		// length of the description after tag normalization, decides the line limit
+		int normalizedLength = 0;
+		// output positions of the newlines ending the short and long line limits
+		int longLimitCut = -1;
+		int shortLimitCut = -1;
+		int newlines = 0;
+
+		int i = 0;
+		while (i < length)
+		{
+			char c = text.charAt(i);
+			if (c == '<')
+			{
+				if (text.regionMatches(true, i, "<li>", 0, 4))
+				{
+					out.append("<li>");
+					normalizedLength += 4;
+					i += 4;
+					continue;
+				}
+				if (text.regionMatches(true, i, "</li>", 0, 5))
+				{
+					out.append("</li>");
+					// former implementation measured "<br />" in place of "</li>"
+					normalizedLength += 6;
+					i += 5;
+					continue;
+				}
+				if (text.regionMatches(true, i, "<ul>", 0, 4))
+				{
+					i += 4;
+					continue;
+				}
+				if (text.regionMatches(true, i, "</ul>", 0, 5))
+				{
+					i += 5;
+					continue;
+				}
+				if (text.startsWith("<br />", i))
+				{
+					out.append("</li>");
+					normalizedLength += 6;
+					i += 6;
+					continue;
+				}
+			}
+			else if (c == '#' && text.startsWith("### ", i))
+			{
+				out.append("<li>");
+				normalizedLength += 4;
+				i += 4;
+				continue;
+			}
+			else if (c == '\n')
+			{
+				newlines++;
+				if (newlines == LONG_DESCRIPTION_LINES)
+				{
+					longLimitCut = out.length();
+				}
+				else if (newlines == SHORT_DESCRIPTION_LINES)
+				{
+					shortLimitCut = out.length();
+				}
+			}
+
+			out.append(c);
+			normalizedLength++;
+			i++;
+		}
+
+		// String.split drops trailing empty lines
+		int end = out.length();
+		while (out.charAt(end - 1) == '\n')
+		{
+			end--;
+		}
+
+		int cut = normalizedLength > LONG_DESCRIPTION_LENGTH ? longLimitCut : shortLimitCut;
+		out.setLength(cut >= 0 && cut < end ? cut : end);
+
+		return out.append("</ul>").toString();
+	}
+
+	/**
+	 * Appends the character(s) at the given position to the output, decoding an HTML entity if one
+	 * starts there.
+	 *
+	 * @param text
+	 *            the input text
+	 * @param index
+	 *            current position
+	 * @param out
+	 *            output buffer
+	 * @return position following the consumed input
+	 */
+	private static int appendDecoded(String text, int index, StringBuilder out)
+	{
+		char c = text.charAt(index);
+		if (c != '&')
+		{
+			out.append(c);
+			return index + 1;
+		}
+
+		int length = text.length();
+		if (index + 2 < length && text.charAt(index + 1) == '#')
+		{
+			int consumed = appendNumericEntity(text, index, out);
+			if (consumed > 0)
+			{
+				return index + consumed;
+			}
+		}
+		else
+		{
+			int limit = Math.min(length, index + MAX_ENTITY_LENGTH);
+			for (int end = index + 1; end < limit; end++)
+			{
+				char e = text.charAt(end);
+				if (e == ';')
+				{
+					var decoded = NAMED_ENTITIES.get(text.substring(index, end + 1));
+					if (decoded != null)
+					{
+						out.append(decoded);
+						return end + 1;
+					}
+					break;
+				}
+				if (e == '&')
+				{
+					break;
+				}
+			}
+		}
+
+		out.append(c);
+		return index + 1;
+	}
+
+	/**
+	 * Decodes a numeric entity ({@code &#123;} or {@code &#x7B;}) starting at the given position.
+	 *
+	 * @param text
+	 *            the input text
+	 * @param index
+	 *            position of the '&amp;'
+	 * @param out
+	 *            output buffer
+	 * @return number of consumed characters, 0 if there is no valid entity at the position
+	 */
+	private static int appendNumericEntity(String text, int index, StringBuilder out)
+	{
+		int length = text.length();
+		int start = index + 2;
+		boolean hex = false;
+		char first = text.charAt(start);
+		if (first == 'x' || first == 'X')
+		{
+			start++;
+			hex = true;
+			if (start == length)
+			{
+				return 0;
+			}
+		}
+
+		int end = start;
+		while (end < length && isHexDigit(text.charAt(end)))
+		{
+			end++;
+		}
+		if (end == length || text.charAt(end) != ';')
+		{
+			return 0;
+		}
+
+		int codePoint;
+		try
+		{
+			codePoint = Integer.parseInt(text, start, end, hex ? 16 : 10);
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+		if (!Character.isValidCodePoint(codePoint))
+		{
+			return 0;
+		}
+
+		out.appendCodePoint(codePoint);
+		return end + 1 - index;
+	}
+
+	private static boolean isHexDigit(char c)
+	{
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Content hash of generated PDFs that ignores volatile metadata. Chromium (Gotenberg) writes the
+ * creation and modification time and a random document ID into every PDF, so two renderings of the
+ * same input differ in a few bytes. These values are blanked by {@link PdfNormalizer} before
+ * hashing, so the hash only changes when the actual content does.
+ */
+public final class PdfContentHash
+{
+	private PdfContentHash()
+	{
+		// Utility class, no instantiation
+	}
+
+	/**
+	 * Computes the content hash of a PDF file.
+	 *
+	 * @param pdf
+	 *            the PDF file
+	 * @return hex encoded SHA-256 hash of the normalized PDF
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public static String of(Path pdf) throws IOException
+	{
+		return of(Files.readAllBytes(pdf));
+	}
+
+	/**
+	 * Computes the content hash of a PDF.
+	 *
+	 * @param pdf
+	 *            the PDF bytes
+	 * @return hex encoded SHA-256 hash of the normalized PDF
+	 */
+	public static String of(byte[] pdf)
+	{
+		return DigestUtils.sha256Hex(PdfNormalizer.normalize(pdf, null));
+	}
+}
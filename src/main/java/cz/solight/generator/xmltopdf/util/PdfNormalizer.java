@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Makes PDFs rendered by Chromium (Gotenberg) reproducible. Chromium writes the current time and a
+ * random document ID into every PDF; these are replaced with a fixed timestamp and an ID derived
+ * from a fingerprint of the input, so identical input yields byte-identical PDFs.
+ *
+ * <p>
+ * Values are replaced in place with values of the same length, so the cross-reference table stays
+ * valid and the PDF does not need to be rewritten. Only uncompressed metadata (info dictionary,
+ * trailer and XMP packet, which is where Chromium puts them) is normalized.
+ * </p>
+ */
+public final class PdfNormalizer
+{
+	/** Info dictionary dates, e.g. {@code /CreationDate (D:20250101120000+00'00')}. */
+	private static final Pattern INFO_DATE = Pattern.compile("(/(?:CreationDate|ModDate)\\s*\\()([^)]*)(\\))");
+
+	/** Trailer document ID, e.g. {@code /ID [<0a1b...> <0a1b...>]}. */
+	private static final Pattern DOCUMENT_ID = Pattern.compile("(/ID\\s*\\[\\s*<)([0-9A-Fa-f]*)(>\\s*<)([0-9A-Fa-f]*)(>\\s*\\])");
+
+	/** XMP metadata dates. */
+	private static final Pattern XMP_DATE = Pattern
+		.compile("(<(xmp:CreateDate|xmp:ModifyDate|xmp:MetadataDate)>)([^<]*)(</\\2>)");
+
+	/** XMP metadata IDs, e.g. {@code uuid:0a1b...}. */
+	private static final Pattern XMP_ID = Pattern.compile("(<(xmpMM:DocumentID|xmpMM:InstanceID)>(?:uuid:)?)([^<]*)(</\\2>)");
+
+	/**
+	 * Digits of the pinned timestamp, 2000-01-01 00:00:00; further digits (time zone offset) are
+	 * zeros.
+	 */
+	private static final String PINNED_DATE_DIGITS = "20000101000000";
+
+	private PdfNormalizer()
+	{
+		// Utility class, no instantiation
+	}
+
+	/**
+	 * Replaces timestamps and document IDs in the PDF.
+	 *
+	 * @param pdf
+	 *            the PDF bytes
+	 * @param fingerprint
+	 *            fingerprint of the input the PDF was rendered from, the document ID is derived
+	 *            from it; null blanks the ID with zeros
+	 * @return the normalized PDF bytes, same length as the input
+	 */
+	public static byte[] normalize(byte[] pdf, String fingerprint)
+	{
+		var idHex = fingerprint != null ? DigestUtils.sha256Hex(fingerprint) : null;
+
+		// ISO-8859-1 maps every byte to one char, binary streams pass through unchanged
+		var text = new String(pdf, StandardCharsets.ISO_8859_1);
+		text = INFO_DATE.matcher(text).replaceAll(m -> quote(m.group(1) + pinDate(m.group(2)) + m.group(3)));
+		text = DOCUMENT_ID.matcher(text)
+			.replaceAll(m -> quote(m.group(1) + pinId(m.group(2), idHex) + m.group(3) + pinId(m.group(4), idHex) + m.group(5)));
+		text = XMP_DATE.matcher(text).replaceAll(m -> quote(m.group(1) + pinDate(m.group(3)) + m.group(4)));
+		text = XMP_ID.matcher(text).replaceAll(m -> quote(m.group(1) + pinId(m.group(3), idHex) + m.group(4)));
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Replaces the digits of a date with the pinned timestamp, keeping its layout and length.
+	 */
+	private static String pinDate(String date)
+	{
+		var pinned = new StringBuilder(date.length());
+		int digit = 0;
+		for (int i = 0; i < date.length(); i++)
+		{
+			char c = date.charAt(i);
+			if (c >= '0' && c <= '9')
+			{
+				pinned.append(digit < PINNED_DATE_DIGITS.length() ? PINNED_DATE_DIGITS.charAt(digit) : '0');
+				digit++;
+			}
+			else
+			{
+				pinned.append(c);
+			}
+		}
+		return pinned.toString();
+	}
+
+	/**
+	 * Replaces the hex digits of an ID with lower case hex digits derived from the fingerprint,
+	 * keeping its layout and length.
+	 */
+	private static String pinId(String id, String idHex)
+	{
+		var pinned = new StringBuilder(id.length());
+		int digit = 0;
+		for (int i = 0; i < id.length(); i++)
+		{
+			char c = id.charAt(i);
+			if (Character.digit(c, 16) >= 0)
+			{
+				pinned.append(idHex != null ? idHex.charAt(digit % idHex.length()) : '0');
+				digit++;
+			}
+			else
+			{
+				pinned.append(c);
+			}
+		}
+		return pinned.toString();
+	}
+
+	private static String quote(String replacement)
+	{
+		return Matcher.quoteReplacement(replacement);
+	}
+}
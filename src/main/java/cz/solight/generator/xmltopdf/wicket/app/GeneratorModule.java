@@ -6,12 +6,22 @@ import org.slf4j.LoggerFactory;
 import com.google.inject.AbstractModule;
 import com.google.inject.Singleton;
 
+import cz.solight.generator.xmltopdf.api.ApiAuthenticator;
+import cz.solight.generator.xmltopdf.api.PdfGenerator;
+import cz.solight.generator.xmltopdf.scheduler.ProductSheetJobCoordinator;
 import cz.solight.generator.xmltopdf.service.FtpSyncService;
 import cz.solight.generator.xmltopdf.service.ImagePathConverter;
+import cz.solight.generator.xmltopdf.service.OfferGenerationService;
+import cz.solight.generator.xmltopdf.service.OfferPdfCache;
 import cz.solight.generator.xmltopdf.service.OfferPdfGenerator;
 import cz.solight.generator.xmltopdf.service.OfferXmlParser;
+import cz.solight.generator.xmltopdf.service.ParsedOfferStore;
+import cz.solight.generator.xmltopdf.service.ProductSheetChangeDetector;
 import cz.solight.generator.xmltopdf.service.ProductSheetPdfGenerator;
+import cz.solight.generator.xmltopdf.service.ProductSheetSnapshotCache;
 import cz.solight.generator.xmltopdf.service.ProductSheetXmlParser;
+import cz.solight.generator.xmltopdf.service.SftpSessionPool;
+import cz.solight.generator.xmltopdf.wicket.components.UploadProgressBroadcaster;
 
 import name.berries.pdf.PdfGeneratorService;
 
@@ -30,11 +40,22 @@ public class GeneratorModule extends AbstractModule
 		bind(ImagePathConverter.class).in(Singleton.class);
 		bind(PdfGeneratorService.class).in(Singleton.class);
 		bind(FtpSyncService.class).in(Singleton.class);
+		bind(SftpSessionPool.class).in(Singleton.class);
 
 		bind(OfferXmlParser.class).in(Singleton.class);
 		bind(OfferPdfGenerator.class).in(Singleton.class);
+		bind(OfferGenerationService.class).in(Singleton.class);
+		bind(OfferPdfCache.class).in(Singleton.class);
+		bind(ParsedOfferStore.class).in(Singleton.class);
 
 		bind(ProductSheetPdfGenerator.class).in(Singleton.class);
 		bind(ProductSheetXmlParser.class).in(Singleton.class);
+		bind(ProductSheetSnapshotCache.class).in(Singleton.class);
+		bind(ProductSheetChangeDetector.class).in(Singleton.class);
+		bind(ProductSheetJobCoordinator.class).in(Singleton.class);
+		bind(UploadProgressBroadcaster.class).in(Singleton.class);
+
+		bind(PdfGenerator.class).in(Singleton.class);
+		bind(ApiAuthenticator.class).in(Singleton.class);
 	}
 }
@@ -1,11 +1,14 @@
 package cz.solight.generator.xmltopdf.wicket.app;
 
 import org.apache.wicket.Application;
+import org.apache.wicket.ISessionListener;
 import org.apache.wicket.guice.GuiceComponentInjector;
 import org.apache.wicket.markup.head.filter.JavaScriptFilteredIntoFooterHeaderResponse;
 import org.apache.wicket.markup.html.WebPage;
 import org.apache.wicket.protocol.http.WebApplication;
 import org.apache.wicket.request.Url;
+import org.apache.wicket.request.resource.IResource;
+import org.apache.wicket.request.resource.ResourceReference;
 import org.apache.wicket.request.resource.UrlResourceReference;
 import org.apache.wicket.settings.ExceptionSettings;
 import org.apache.wicket.util.lang.Bytes;
@@ -15,7 +18,11 @@ import org.slf4j.LoggerFactory;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 
+import cz.solight.generator.xmltopdf.api.CatalogueIngestResource;
+import cz.solight.generator.xmltopdf.api.PdfApiResource;
 import cz.solight.generator.xmltopdf.scheduler.Scheduler;
+import cz.solight.generator.xmltopdf.service.OfferGenerationService;
+import cz.solight.generator.xmltopdf.service.SftpSessionPool;
 import cz.solight.generator.xmltopdf.wicket.pages.HomePage;
 import cz.solight.generator.xmltopdf.wicket.pages.ProductSheetUploadPage;
 
@@ -67,6 +74,16 @@ public class PdfGeneratorApplication extends WebApplication
 
 		getComponentInstantiationListeners().add(new GuiceComponentInjector(this, injector));
 
+		// speculative offer parsing of an ended session is no longer needed
+		getSessionListeners().add(new ISessionListener()
+		{
+			@Override
+			public void onUnbound(String sessionId)
+			{
+				injector.getInstance(OfferGenerationService.class).cancelPreparation(sessionId);
+			}
+		});
+
 		getCspSettings().blocking().disabled();
 
 		getExceptionSettings().setUnexpectedExceptionDisplay(ExceptionSettings.SHOW_EXCEPTION_PAGE);
@@ -91,6 +108,32 @@ public class PdfGeneratorApplication extends WebApplication
 		 ****************************************************/
 
 		mountPage("/nastaveni", ProductSheetUploadPage.class);
+
+		// headless generation for integrating systems, see PdfApiResource
+		var apiResource = new PdfApiResource();
+		mountResource("/api/v1", new ResourceReference(PdfApiResource.class, "api")
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public IResource getResource()
+			{
+				return apiResource;
+			}
+		});
+
+		// product sheet catalogues pushed by the ERP, see CatalogueIngestResource
+		var ingestResource = new CatalogueIngestResource();
+		mountResource("/api/v1/catalogues", new ResourceReference(CatalogueIngestResource.class, "catalogues")
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public IResource getResource()
+			{
+				return ingestResource;
+			}
+		});
 	}
 
 	/**
@@ -128,6 +171,8 @@ public class PdfGeneratorApplication extends WebApplication
 		if (scheduler != null)
 			scheduler.stopScheduler();
 
+		GuiceStaticHolder.getInstance(SftpSessionPool.class).close();
+		GuiceStaticHolder.getInstance(OfferGenerationService.class).close();
 		GuiceStaticHolder.unset();
 	}
 }
\ No newline at end of file
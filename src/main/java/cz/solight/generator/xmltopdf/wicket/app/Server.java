@@ -17,9 +17,11 @@
 package cz.solight.generator.xmltopdf.wicket.app;
 
 import org.apache.wicket.RuntimeConfigurationType;
+import org.apache.wicket.protocol.ws.javax.WicketServerEndpointConfig;
 import org.eclipse.jetty.http.HttpCookie;
 import org.eclipse.jetty.server.session.SessionHandler;
 import org.eclipse.jetty.webapp.WebAppContext;
+import org.eclipse.jetty.websocket.jakarta.server.config.JakartaWebSocketServletContainerInitializer;
 
 import name.berries.wicket.util.app.WicketAppUtil;
 import name.berries.wicket.util.app.jetty.JettyRunner;
@@ -71,6 +73,10 @@ public class Server extends JettyRunner
 	protected void configureWebAppContext(WebAppContext webapp)
 	{
 		webapp.setMaxFormContentSize(1024 * 1024 * 5);
+
+		// WebSocket endpoint of Wicket's native WebSocket support (progress push)
+		JakartaWebSocketServletContainerInitializer.configure(webapp,
+			(servletContext, container) -> container.addEndpoint(new WicketServerEndpointConfig()));
 	}
 
 	/**
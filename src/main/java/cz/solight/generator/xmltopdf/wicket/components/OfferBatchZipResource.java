@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.wicket.components;
+
+import static name.berries.app.guice.GuiceStaticHolder.getInstance;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.wicket.request.resource.AbstractResource;
+import org.apache.wicket.request.resource.ContentDisposition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.solight.generator.xmltopdf.pojo.OfferGenerationProgress.Phase;
+import cz.solight.generator.xmltopdf.service.OfferGenerationService;
+import cz.solight.generator.xmltopdf.service.OfferGenerationService.BatchEntry;
+
+/**
+ * Downloads the PDFs of a batch of offers as a ZIP archive. The download can start while the batch
+ * is still being generated: every PDF is written to the archive as soon as its job finishes, so the
+ * user does not wait for the slowest file before the transfer starts. Files that failed are listed
+ * in {@code chyby.txt} at the end of the archive.
+ */
+public class OfferBatchZipResource extends AbstractResource
+{
+	private static final long serialVersionUID = 1L;
+	private static final Logger LOG = LoggerFactory.getLogger(OfferBatchZipResource.class);
+	private static final String ERRORS_ENTRY = "chyby.txt";
+
+	private final String batchId;
+	private final String directory;
+
+	/**
+	 * Construct.
+	 *
+	 * @param batchId
+	 *            ID of the batch, see {@link OfferGenerationService#submitBatch}
+	 * @param directory
+	 *            directory of the generated PDFs
+	 */
+	public OfferBatchZipResource(String batchId, String directory)
+	{
+		this.batchId = batchId;
+		this.directory = directory;
+	}
+
+	@Override
+	protected ResourceResponse newResourceResponse(Attributes attributes)
+	{
+		var response = new ResourceResponse();
+		var results = getInstance(OfferGenerationService.class).getBatchResults(batchId);
+		if (results == null)
+		{
+			LOG.warn("Offer batch {} is no longer available", batchId);
+			response.setError(404);
+			return response;
+		}
+
+		response.disableCaching();
+		response.setFileName("nabidky.zip");
+		response.setContentDisposition(ContentDisposition.ATTACHMENT);
+		response.setContentType("application/zip");
+		response.setWriteCallback(new WriteCallback()
+		{
+			@Override
+			public void writeData(Attributes attributes) throws IOException
+			{
+				writeZip(results, attributes);
+			}
+		});
+		return response;
+	}
+
+	/**
+	 * Writes the PDFs in the order in which they finish.
+	 */
+	private void writeZip(Iterable<CompletableFuture<BatchEntry>> results, Attributes attributes) throws IOException
+	{
+		var pending = new ArrayList<CompletableFuture<BatchEntry>>();
+		results.forEach(pending::add);
+		var entryNames = new HashSet<String>();
+		var errors = new StringBuilder();
+
+		// the response stream is not closed, it belongs to the container
+		var zip = new ZipOutputStream(attributes.getResponse().getOutputStream());
+		zip.setLevel(Deflater.BEST_SPEED);
+		while (!pending.isEmpty())
+		{
+			CompletableFuture.anyOf(pending.toArray(CompletableFuture[]::new)).join();
+			for (var iterator = pending.iterator(); iterator.hasNext();)
+			{
+				var result = iterator.next();
+				if (!result.isDone())
+				{
+					continue;
+				}
+				iterator.remove();
+
+				var entry = result.join();
+				if (entry.progress().phase() == Phase.DONE)
+				{
+					zip.putNextEntry(new ZipEntry(entryName(entry.fileName(), entryNames)));
+					Files.copy(Path.of(directory, entry.progress().pdfFileName()), zip);
+					zip.closeEntry();
+					// send the finished PDF now rather than when the buffers fill up
+					zip.flush();
+				}
+				else
+				{
+					errors.append(entry.fileName()).append(": ").append(entry.progress().error()).append('\n');
+				}
+			}
+		}
+
+		if (!errors.isEmpty())
+		{
+			zip.putNextEntry(new ZipEntry(ERRORS_ENTRY));
+			zip.write(errors.toString().getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+		zip.finish();
+		LOG.info("Offer batch {} downloaded", batchId);
+	}
+
+	/**
+	 * Names the PDF after the uploaded file, unique within the archive.
+	 */
+	private static String entryName(String uploadName, Set<String> usedNames)
+	{
+		var baseName = uploadName.replaceAll("(?i)\\.xml$", "").replaceAll("[/\\\\]", "_");
+		var name = baseName + ".pdf";
+		for (int i = 2; !usedNames.add(name); i++)
+		{
+			name = baseName + "-" + i + ".pdf";
+		}
+		return name;
+	}
+}
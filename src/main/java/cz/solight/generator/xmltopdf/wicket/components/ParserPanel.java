@@ -1,29 +1,37 @@
 package cz.solight.generator.xmltopdf.wicket.components;
 
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
 import java.io.File;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.wicket.AttributeModifier;
 import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.ajax.AjaxSelfUpdatingTimerBehavior;
+import org.apache.wicket.ajax.attributes.AjaxRequestAttributes;
+import org.apache.wicket.ajax.form.AjaxFormSubmitBehavior;
 import org.apache.wicket.ajax.markup.html.form.AjaxButton;
 import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.EnumChoiceRenderer;
 import org.apache.wicket.markup.html.form.Form;
+import org.apache.wicket.markup.html.form.upload.FileUpload;
 import org.apache.wicket.markup.html.link.AbstractLink;
 import org.apache.wicket.markup.html.link.DownloadLink;
+import org.apache.wicket.markup.html.link.ExternalLink;
+import org.apache.wicket.markup.html.link.Link;
+import org.apache.wicket.markup.html.list.ListItem;
+import org.apache.wicket.markup.html.list.ListView;
 import org.apache.wicket.markup.html.panel.Panel;
 import org.apache.wicket.model.IModel;
+import org.apache.wicket.model.LoadableDetachableModel;
 import org.apache.wicket.model.Model;
 import org.apache.wicket.request.cycle.RequestCycle;
-import org.apache.wicket.request.http.WebResponse.CacheScope;
+import org.apache.wicket.request.handler.resource.ResourceRequestHandler;
 import org.apache.wicket.request.mapper.parameter.PageParameters;
-import org.apache.wicket.request.resource.AbstractResource;
-import org.apache.wicket.request.resource.ContentDisposition;
 import org.apache.wicket.request.resource.SharedResourceReference;
 import org.apache.wicket.util.lang.Bytes;
 import org.slf4j.Logger;
@@ -31,11 +39,16 @@ import org.slf4j.LoggerFactory;
 
 import com.google.inject.Inject;
 
+import cz.solight.generator.xmltopdf.pojo.OfferGenerationProgress;
+import cz.solight.generator.xmltopdf.pojo.OfferGenerationProgress.Phase;
 import cz.solight.generator.xmltopdf.pojo.PdfDisplayOptions;
 import cz.solight.generator.xmltopdf.pojo.PdfLocale;
-import cz.solight.generator.xmltopdf.service.OfferPdfGenerator;
-import cz.solight.generator.xmltopdf.service.OfferXmlParser;
+import cz.solight.generator.xmltopdf.service.OfferGenerationService;
+import cz.solight.generator.xmltopdf.service.OfferGenerationService.BatchEntry;
+import cz.solight.generator.xmltopdf.service.OfferGenerationService.BatchFile;
+import cz.solight.generator.xmltopdf.service.OfferGenerationService.GenerationRejectedException;
 
+import name.berries.wicket.behaviors.nprogress.NprogressBehavior;
 import name.berries.wicket.components.YesNoCheckBox;
 import name.berries.wicket.notifications.AjaxNotificationPanel;
 import name.berries.wicket.util.app.WicketAppUtil;
@@ -49,7 +62,15 @@ import de.agilecoders.wicket.jquery.Key;
 
 /**
  * Wicket panel for uploading XML offer files and generating PDF catalogs. Provides checkboxes to
- * control which prices are displayed in the output.
+ * control which prices are displayed in the output. The PDF is generated in the background by
+ * {@link OfferGenerationService}; the panel polls its progress and shows the PDF when it is ready.
+ * A selected file is parsed speculatively before the user clicks generate.
+ *
+ * <p>
+ * When several files are uploaded at once, they are generated concurrently as a batch; the panel
+ * lists the state of every file and offers the PDFs as a ZIP download, which streams each PDF as
+ * soon as it is ready.
+ * </p>
  */
 public class ParserPanel extends Panel
 {
@@ -57,12 +78,13 @@ public class ParserPanel extends Panel
 	private static final Logger LOG = LoggerFactory.getLogger(ParserPanel.class);
 	private static final String PDF_OUTPUT_DIR = "/data/tmp/";
 	private static final String PDF_RESOURCE_KEY = "inline-pdf-resource";
+	private static final Duration POLL_INTERVAL = Duration.ofMillis(500);
+	private static final Duration PDF_CACHE_DURATION = Duration.ofHours(1);
+	private static final int MAX_FILES = getDefaultConfiguration().getInt("offers.maxBatchFiles", 10);
+	private static final long MAX_FILE_SIZE_MB = 10;
 
 	@Inject
-	private OfferXmlParser xmlOfferParser;
-
-	@Inject
-	private OfferPdfGenerator offerPdfGenerator;
+	private OfferGenerationService offerGenerationService;
 
 	private BootstrapFileInputField fileUploadField;
 	private Model<Boolean> showPriceMyModel = Model.of(true);
@@ -73,6 +95,14 @@ public class ParserPanel extends Panel
 	private WebMarkupContainer pdfFrame;
 	private DownloadLink downloadLink;
 	private IModel<File> pdfFileModel = Model.of();
+	private IModel<String> jobIdModel = Model.of();
+	private IModel<String> uploadHashModel = Model.of();
+	private IModel<String> batchIdModel = Model.of();
+	private AjaxButton regenerateButton;
+	private WebMarkupContainer progressContainer;
+	private Label progressText;
+	private WebMarkupContainer batchContainer;
+	private AjaxSelfUpdatingTimerBehavior timerBehavior;
 
 	/**
 	 * Constructor for ParserPanel.
@@ -109,10 +139,83 @@ public class ParserPanel extends Panel
 		downloadLink.setOutputMarkupId(true);
 		pdfPreviewContainer.add(downloadLink);
 
+		// Progress of the background generation (hidden until a file is submitted)
+		progressContainer = new WebMarkupContainer("progressContainer");
+		progressContainer.setOutputMarkupId(true);
+		progressContainer.setOutputMarkupPlaceholderTag(true);
+		progressContainer.setVisible(false);
+		add(progressContainer);
+
+		progressText = new Label("progressText", Model.of(""));
+		progressText.setOutputMarkupId(true);
+		progressContainer.add(progressText);
+
+		// Progress of a multi-file upload, file by file
+		batchContainer = new WebMarkupContainer("batchContainer");
+		batchContainer.setOutputMarkupId(true);
+		batchContainer.setOutputMarkupPlaceholderTag(true);
+		batchContainer.setVisible(false);
+		add(batchContainer);
+
+		var batchModel = new LoadableDetachableModel<List<BatchEntry>>()
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected List<BatchEntry> load()
+			{
+				var entries = batchIdModel.getObject() != null
+					? offerGenerationService.getBatchProgress(batchIdModel.getObject())
+					: null;
+				return entries != null ? entries : List.of();
+			}
+		};
+		batchContainer.add(new Label("batchSummary", batchModel.map(entries -> "Zpracováno "
+			+ entries.stream().filter(entry -> entry.progress().isFinished()).count() + " z " + entries.size()
+			+ " souborů")));
+		batchContainer.add(new Link<Void>("batchDownloadLink")
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void onClick()
+			{
+				var resource = new OfferBatchZipResource(batchIdModel.getObject(), PDF_OUTPUT_DIR);
+				getRequestCycle().scheduleRequestHandlerAfterCurrent(new ResourceRequestHandler(resource, null));
+			}
+		});
+		batchContainer.add(new ListView<>("batchFiles", batchModel)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void populateItem(ListItem<BatchEntry> item)
+			{
+				var entry = item.getModelObject();
+				var progress = entry.progress();
+				item.add(new Label("fileName", entry.fileName()));
+				var status = new Label("status", describe(progress));
+				if (progress != null && progress.phase() == Phase.DONE)
+				{
+					status.add(AttributeModifier.append("class", "text-success"));
+				}
+				else if (progress != null && progress.phase() == Phase.FAILED)
+				{
+					status.add(AttributeModifier.append("class", "text-danger"));
+				}
+				item.add(status);
+				var pdfLink = new ExternalLink("pdfLink",
+					progress != null && progress.phase() == Phase.DONE ? pdfUrl(progress.pdfFileName()) : null);
+				pdfLink.setVisible(progress != null && progress.phase() == Phase.DONE);
+				item.add(pdfLink);
+			}
+		});
+
 		// Create upload form
 		var uploadForm = new Form<Void>("uploadForm");
 		uploadForm.setMultiPart(true);
-		uploadForm.setMaxSize(Bytes.megabytes(10));
+		uploadForm.setFileMaxSize(Bytes.megabytes(MAX_FILE_SIZE_MB));
+		uploadForm.setMaxSize(Bytes.megabytes(MAX_FILE_SIZE_MB * MAX_FILES));
 		add(uploadForm);
 
 		// Add file upload field
@@ -122,12 +225,31 @@ public class ParserPanel extends Panel
 		// fileInputConfig.showPreview(false);
 		fileInputConfig.showUpload(false);
 		fileInputConfig.withLocale("cs");
-		fileInputConfig.maxFileCount(1);
+		fileInputConfig.maxFileCount(MAX_FILES);
 		fileInputConfig.put(new Key<>("browseOnZoneClick"), true);
 		fileInputConfig.withDropZoneEnabled(true);
 
 		uploadForm.add(fileUploadField);
 
+		// Parse the selected file in the background while the user sets the options
+		fileUploadField.add(new AjaxFormSubmitBehavior(uploadForm, "change")
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void onSubmit(AjaxRequestTarget target)
+			{
+				prepareSelectedFile();
+			}
+
+			@Override
+			protected void updateAjaxAttributes(AjaxRequestAttributes attributes)
+			{
+				super.updateAjaxAttributes(attributes);
+				attributes.getExtraParameters().put(NprogressBehavior.SKIP_NPROGRESS_ATTRIBUTE_KEY, true);
+			}
+		});
+
 		uploadForm.add(new ButtonGroup("locale")
 		{
 			@Override
@@ -205,69 +327,76 @@ public class ParserPanel extends Panel
 				AjaxNotificationPanel.notifyAllIfTargetExists();
 			}
 		});
+
+		// Regenerates the last uploaded offer with the current options, without uploading it again
+		regenerateButton = new AjaxButton("regenerateButton", uploadForm)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void onSubmit(AjaxRequestTarget target)
+			{
+				regenerate(target);
+				AjaxNotificationPanel.notifyAllIfTargetExists();
+			}
+
+			@Override
+			protected void onError(AjaxRequestTarget target)
+			{
+				AjaxNotificationPanel.notifyAllIfTargetExists();
+			}
+
+			@Override
+			protected void onConfigure()
+			{
+				super.onConfigure();
+				setVisible(uploadHashModel.getObject() != null);
+			}
+		};
+		regenerateButton.setOutputMarkupPlaceholderTag(true);
+		uploadForm.add(regenerateButton);
 	}
 
 	/**
-	 * Process the uploaded XML file and generate PDF.
+	 * Reads the uploaded XML file and submits generation of its PDF to the background, the result
+	 * is picked up by polling. Several uploaded files are submitted as a batch.
 	 *
 	 * @param target
 	 *            ajax request target
 	 */
 	private void processUploadedFile(AjaxRequestTarget target)
 	{
-		var upload = fileUploadField.getFileUpload();
+		var uploads = fileUploadField.getFileUploads();
 
-		if (upload == null)
+		if (uploads == null || uploads.isEmpty())
 		{
 			error("Prosím vyberte soubor k nahrání");
 			AjaxNotificationPanel.notifyAllIfTargetExists();
 			return;
 		}
+		if (uploads.size() > 1)
+		{
+			processUploadedFiles(target, uploads);
+			return;
+		}
 
+		var upload = uploads.get(0);
 		try
 		{
 			var fileName = upload.getClientFileName();
 			LOG.info("Processing uploaded file: {}", fileName);
 
-			// Parse XML
-			var offer = xmlOfferParser.parse(upload.getInputStream());
-			LOG.info("Parsed offer {} with {} products", offer.getDocNumber(), offer.getProducts().size());
-
-			// Build display options from checkboxes and locale selection
-			var displayOptions = new PdfDisplayOptions(Boolean.TRUE.equals(showPriceMyModel.getObject()),
-				Boolean.TRUE.equals(showPriceVOCModel.getObject()), Boolean.TRUE.equals(showPriceMOCModel.getObject()));
-			displayOptions.setLocale(localeModel.getObject());
-
-			// Generate PDF
-			var pdfFileName = "nabidka-" + System.currentTimeMillis() + ".pdf";
-
-			if (WicketAppUtil.localMode())
-				pdfFileName = "nabidka.pdf";
-
-			var outputPath = Path.of(PDF_OUTPUT_DIR, pdfFileName);
-
-			// Ensure output directory exists
-			Files.createDirectories(outputPath.getParent());
-
-			offerPdfGenerator.generatePdf(offer, displayOptions, outputPath);
-
-			LOG.info("PDF generated successfully: {}", outputPath);
-			info("PDF soubor byl úspěšně vygenerován");
-
-			// Build URL for the PDF using the shared resource
-			var params = new PageParameters();
-			params.add("file", pdfFileName);
-			var pdfUrl = RequestCycle.get()
-				.urlFor(new SharedResourceReference(ParserPanel.class, PDF_RESOURCE_KEY), params)
-				.toString();
-
-			// Update iframe src, set download file, and show preview container
-			pdfFrame.add(AttributeModifier.replace("src", pdfUrl));
-			pdfFileModel.setObject(outputPath.toFile());
-			pdfPreviewContainer.add(AttributeModifier.replace("style", "display: block;"));
-
-			// Add components to AJAX target for refresh
-			target.add(pdfPreviewContainer);
+			// the upload is gone after this request, the job gets its content
+			getSession().bind();
+			var jobId = offerGenerationService.submit(getSession().getId(), upload.getBytes(), newDisplayOptions(),
+				newOutputPath());
+			jobIdModel.setObject(jobId);
+			showProgress(target);
+		}
+		catch (GenerationRejectedException e)
+		{
+			LOG.info("Offer generation rejected: {}", e.getMessage());
+			warn(e.getMessage());
 		}
 		catch (Exception e)
 		{
@@ -277,72 +406,357 @@ public class ParserPanel extends Panel
 	}
 
 	/**
-	 * Registers the shared resource for serving PDF files inline (for iframe display). The resource
-	 * is registered only once per application lifecycle.
+	 * Submits generation of several uploaded XML files as a batch.
+	 *
+	 * @param target
+	 *            ajax request target
+	 * @param uploads
+	 *            the uploaded files
 	 */
-	private void registerPdfResource()
+	private void processUploadedFiles(AjaxRequestTarget target, List<FileUpload> uploads)
 	{
-		var sharedResources = getApplication().getSharedResources();
+		try
+		{
+			LOG.info("Processing {} uploaded files", uploads.size());
+			var files = uploads.stream().map(upload -> new BatchFile(upload.getClientFileName(), upload.getBytes())).toList();
+
+			// the uploads are gone after this request, the jobs get their content
+			getSession().bind();
+			var batchId = offerGenerationService.submitBatch(getSession().getId(), files, newDisplayOptions(),
+				Path.of(PDF_OUTPUT_DIR));
+			batchIdModel.setObject(batchId);
+			showBatchProgress(target);
+		}
+		catch (GenerationRejectedException e)
+		{
+			LOG.info("Offer batch generation rejected: {}", e.getMessage());
+			warn(e.getMessage());
+		}
+		catch (Exception e)
+		{
+			LOG.error("Error processing files", e);
+			error("Chyba při zpracování souborů: " + e.getMessage());
+		}
+	}
 
-		// Check if resource is already registered
-		if (sharedResources.get(ParserPanel.class, PDF_RESOURCE_KEY, null, null, null, true) != null)
+	/**
+	 * Starts parsing the selected file in the background, so that generating it only renders. If
+	 * the selection was cleared, cancels the parse of the previously selected file. Several selected
+	 * files are not prepared, they are generated as a batch.
+	 */
+	private void prepareSelectedFile()
+	{
+		getSession().bind();
+		var sessionId = getSession().getId();
+		var uploads = fileUploadField.getFileUploads();
+		if (uploads == null || uploads.size() != 1)
 		{
+			offerGenerationService.cancelPreparation(sessionId);
 			return;
 		}
+		var upload = uploads.get(0);
+		LOG.info("Preparing selected file: {}", upload.getClientFileName());
+		offerGenerationService.prepare(sessionId, upload.getBytes());
+	}
+
+	/**
+	 * Submits generation of the last uploaded offer with the current display options. The parsed
+	 * offer is kept on the server, so only rendering is repeated.
+	 *
+	 * @param target
+	 *            ajax request target
+	 */
+	private void regenerate(AjaxRequestTarget target)
+	{
+		var uploadHash = uploadHashModel.getObject();
+		if (uploadHash == null)
+		{
+			return;
+		}
+
+		try
+		{
+			getSession().bind();
+			var jobId = offerGenerationService.regenerate(getSession().getId(), uploadHash, newDisplayOptions(),
+				newOutputPath());
+			jobIdModel.setObject(jobId);
+			showProgress(target);
+		}
+		catch (GenerationRejectedException e)
+		{
+			LOG.info("Offer regeneration rejected: {}", e.getMessage());
+			warn(e.getMessage());
+		}
+	}
+
+	/**
+	 * Builds display options from checkboxes and locale selection.
+	 *
+	 * @return the display options
+	 */
+	private PdfDisplayOptions newDisplayOptions()
+	{
+		var displayOptions = new PdfDisplayOptions(Boolean.TRUE.equals(showPriceMyModel.getObject()),
+			Boolean.TRUE.equals(showPriceVOCModel.getObject()), Boolean.TRUE.equals(showPriceMOCModel.getObject()));
+		displayOptions.setLocale(localeModel.getObject());
+		return displayOptions;
+	}
+
+	/**
+	 * @return path of a new PDF file in the output directory
+	 */
+	private static Path newOutputPath()
+	{
+		var pdfFileName = "nabidka-" + System.currentTimeMillis() + ".pdf";
+
+		if (WicketAppUtil.localMode())
+			pdfFileName = "nabidka.pdf";
+
+		return Path.of(PDF_OUTPUT_DIR, pdfFileName);
+	}
+
+	/**
+	 * Hides the previous PDF and polls the progress of the submitted job.
+	 *
+	 * @param target
+	 *            ajax request target
+	 */
+	private void showProgress(AjaxRequestTarget target)
+	{
+		pdfPreviewContainer.add(AttributeModifier.replace("style", "display: none;"));
+		progressContainer.setVisible(true);
+		batchContainer.setVisible(false);
+		updateProgressDisplay(offerGenerationService.getProgress(jobIdModel.getObject()));
+		target.add(pdfPreviewContainer, progressContainer, batchContainer);
+
+		removeTimer();
 
-		// Register inline PDF resource (for iframe display)
-		sharedResources.add(ParserPanel.class, PDF_RESOURCE_KEY, null, null, null, new AbstractResource()
+		timerBehavior = new AjaxSelfUpdatingTimerBehavior(POLL_INTERVAL)
 		{
 			private static final long serialVersionUID = 1L;
 
 			@Override
-			protected ResourceResponse newResourceResponse(Attributes attributes)
+			protected void updateAjaxAttributes(AjaxRequestAttributes attributes)
+			{
+				super.updateAjaxAttributes(attributes);
+				attributes.getExtraParameters().put(NprogressBehavior.SKIP_NPROGRESS_ATTRIBUTE_KEY, true);
+			}
+
+			@Override
+			protected void onPostProcessTarget(AjaxRequestTarget target)
 			{
-				var fileName = attributes.getParameters().get("file").toString();
-				var response = new ResourceResponse();
+				var progress = offerGenerationService.getProgress(jobIdModel.getObject());
+				updateProgressDisplay(progress);
 
-				// Security: validate filename to prevent path traversal
-				if (fileName == null || fileName.contains("..") || fileName.contains("/") || fileName.contains("\\"))
+				if (progress == null)
 				{
-					LOG.error("Invalid PDF filename requested: {}", fileName);
-					response.setError(400);
-					return response;
+					handleError(target, "Stav generování již není k dispozici, vygenerujte prosím PDF znovu");
 				}
-
-				var file = new File(PDF_OUTPUT_DIR, fileName);
-				response.setCacheDuration(Duration.ZERO);
-				response.setCacheScope(CacheScope.PRIVATE);
-				response.setFileName(fileName);
-				response.setContentDisposition(ContentDisposition.INLINE);
-				response.setContentType("application/pdf");
-
-				if (!file.exists())
+				else if (progress.phase() == Phase.DONE)
 				{
-					LOG.error("PDF file not found: {}", file.getAbsolutePath());
-					response.setError(404);
-					return response;
+					handleCompletion(target, progress);
 				}
+				else if (progress.phase() == Phase.FAILED)
+				{
+					handleError(target, progress.error());
+				}
+			}
+		};
+		progressContainer.add(timerBehavior);
+	}
 
-				try
+	/**
+	 * Hides the previous results and polls the progress of the submitted batch, the list of files is
+	 * refreshed until all of them finish.
+	 *
+	 * @param target
+	 *            ajax request target
+	 */
+	private void showBatchProgress(AjaxRequestTarget target)
+	{
+		pdfPreviewContainer.add(AttributeModifier.replace("style", "display: none;"));
+		progressContainer.setVisible(false);
+		batchContainer.setVisible(true);
+		target.add(pdfPreviewContainer, progressContainer, batchContainer);
+
+		removeTimer();
+
+		timerBehavior = new AjaxSelfUpdatingTimerBehavior(POLL_INTERVAL)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void updateAjaxAttributes(AjaxRequestAttributes attributes)
+			{
+				super.updateAjaxAttributes(attributes);
+				attributes.getExtraParameters().put(NprogressBehavior.SKIP_NPROGRESS_ATTRIBUTE_KEY, true);
+			}
+
+			@Override
+			protected void onPostProcessTarget(AjaxRequestTarget target)
+			{
+				var entries = offerGenerationService.getBatchProgress(batchIdModel.getObject());
+				if (entries == null)
 				{
-					byte[] pdfData = FileUtils.readFileToByteArray(file);
-					response.setWriteCallback(new WriteCallback()
-					{
-						@Override
-						public void writeData(Attributes attributes)
-						{
-							attributes.getResponse().write(pdfData);
-						}
-					});
+					batchContainer.setVisible(false);
+					handleError(target, "Stav generování již není k dispozici, vygenerujte prosím PDF znovu");
 				}
-				catch (Exception e)
+				else if (entries.stream().allMatch(entry -> entry.progress().isFinished()))
 				{
-					LOG.error("Error reading PDF file", e);
-					response.setError(500);
+					stopTimer();
+					long failed = entries.stream().filter(entry -> entry.progress().phase() == Phase.FAILED).count();
+					if (failed > 0)
+					{
+						warn("Nepodařilo se vygenerovat " + failed + " z " + entries.size() + " PDF souborů");
+					}
+					else
+					{
+						info("PDF soubory byly úspěšně vygenerovány");
+					}
+					AjaxNotificationPanel.notifyAllIfTargetExists();
 				}
-
-				return response;
 			}
-		});
+		};
+		batchContainer.add(timerBehavior);
+	}
+
+	/**
+	 * Updates the progress text based on the current state of the job.
+	 *
+	 * @param progress
+	 *            the current state, may be null
+	 */
+	private void updateProgressDisplay(OfferGenerationProgress progress)
+	{
+		progressText.setDefaultModelObject(describe(progress));
+	}
+
+	/**
+	 * Describes the state of a job for the user.
+	 *
+	 * @param progress
+	 *            the state, may be null
+	 * @return the description
+	 */
+	private static String describe(OfferGenerationProgress progress)
+	{
+		String result;
+		if (progress == null)
+		{
+			result = "";
+		}
+		else
+		{
+			result = switch (progress.phase())
+			{
+				case QUEUED -> progress.queuePosition() > 0
+					? "Čekám ve frontě, před vámi: " + progress.queuePosition()
+					: "Čekám na volný generátor...";
+				case PARSING -> "Načítám XML nabídky...";
+				case RENDERING -> "Generuji PDF nabídky " + progress.docNumber() + " (" + progress.productCount()
+					+ " produktů)...";
+				case DONE -> "Hotovo";
+				case FAILED -> "Chyba: " + progress.error();
+			};
+		}
+		return result;
+	}
+
+	/**
+	 * Shows the generated PDF in the preview and offers it for download.
+	 *
+	 * @param target
+	 *            ajax request target
+	 * @param progress
+	 *            the final state of the job
+	 */
+	private void handleCompletion(AjaxRequestTarget target, OfferGenerationProgress progress)
+	{
+		stopTimer();
+		var pdfFileName = progress.pdfFileName();
+		LOG.info("PDF generated successfully: {}", pdfFileName);
+		info("PDF soubor byl úspěšně vygenerován");
+
+		// Update iframe src, set download file, and show preview container
+		pdfFrame.add(AttributeModifier.replace("src", pdfUrl(pdfFileName)));
+		pdfFileModel.setObject(new File(PDF_OUTPUT_DIR, pdfFileName));
+		pdfPreviewContainer.add(AttributeModifier.replace("style", "display: block;"));
+		progressContainer.setVisible(false);
+		uploadHashModel.setObject(progress.uploadHash());
+
+		// Add components to AJAX target for refresh
+		target.add(pdfPreviewContainer, progressContainer, regenerateButton);
+		AjaxNotificationPanel.notifyAllIfTargetExists();
+	}
+
+	/**
+	 * Reports a failed job.
+	 *
+	 * @param target
+	 *            ajax request target
+	 * @param message
+	 *            the error message
+	 */
+	private void handleError(AjaxRequestTarget target, String message)
+	{
+		stopTimer();
+		progressContainer.setVisible(false);
+		target.add(progressContainer);
+		error("Chyba při zpracování souboru: " + message);
+		AjaxNotificationPanel.notifyAllIfTargetExists();
+	}
+
+	private void stopTimer()
+	{
+		if (timerBehavior != null)
+		{
+			timerBehavior.stop(null);
+		}
+	}
+
+	private void removeTimer()
+	{
+		if (timerBehavior != null)
+		{
+			timerBehavior.getComponent().remove(timerBehavior);
+			timerBehavior = null;
+		}
+	}
+
+	/**
+	 * Builds URL of a generated PDF using the shared resource.
+	 *
+	 * @param pdfFileName
+	 *            name of the PDF in the output directory
+	 * @return the URL
+	 */
+	private static String pdfUrl(String pdfFileName)
+	{
+		var params = new PageParameters();
+		params.add("file", pdfFileName);
+		return RequestCycle.get()
+			.urlFor(new SharedResourceReference(ParserPanel.class, PDF_RESOURCE_KEY), params)
+			.toString();
+	}
+
+	/**
+	 * Registers the shared resource for serving PDF files inline (for iframe display). The resource
+	 * is registered only once per application lifecycle.
+	 */
+	private void registerPdfResource()
+	{
+		var sharedResources = getApplication().getSharedResources();
+
+		// Check if resource is already registered
+		if (sharedResources.get(ParserPanel.class, PDF_RESOURCE_KEY, null, null, null, true) != null)
+		{
+			return;
+		}
+
+		// Register inline PDF resource (for iframe display); generated files get unique names and
+		// can be cached, except the fixed name used in local mode
+		var cacheDuration = WicketAppUtil.localMode() ? Duration.ZERO : PDF_CACHE_DURATION;
+		sharedResources.add(ParserPanel.class, PDF_RESOURCE_KEY, null, null, null,
+			new PdfFileResource(PDF_OUTPUT_DIR, cacheDuration));
 	}
 }
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.wicket.components;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+
+import org.apache.wicket.request.http.WebRequest;
+import org.apache.wicket.request.http.WebResponse.CacheScope;
+import org.apache.wicket.request.resource.AbstractResource;
+import org.apache.wicket.request.resource.ContentDisposition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves PDF files of a directory inline, e.g. for display in an iframe. The file is named by the
+ * {@code file} parameter.
+ *
+ * <p>
+ * The file is streamed from disk with {@link FileChannel#transferTo}, so memory per download stays
+ * constant regardless of the file size. Responses carry an ETag and Last-Modified for conditional
+ * requests, and a single byte range (as requested by browser PDF viewers) is answered with 206
+ * Partial Content. Multiple ranges are not supported, the whole file is sent instead.
+ * </p>
+ */
+public class PdfFileResource extends AbstractResource
+{
+	private static final long serialVersionUID = 1L;
+	private static final Logger LOG = LoggerFactory.getLogger(PdfFileResource.class);
+	private static final String BYTES_UNIT = "bytes=";
+
+	private final String directory;
+	private final Duration cacheDuration;
+
+	/**
+	 * Construct.
+	 *
+	 * @param directory
+	 *            directory of the served files
+	 * @param cacheDuration
+	 *            how long browsers may reuse a file without revalidating it
+	 */
+	public PdfFileResource(String directory, Duration cacheDuration)
+	{
+		this.directory = directory;
+		this.cacheDuration = cacheDuration;
+	}
+
+	@Override
+	protected ResourceResponse newResourceResponse(Attributes attributes)
+	{
+		return newFileResponse(attributes, attributes.getParameters().get("file").toString());
+	}
+
+	/**
+	 * Creates the response serving a file, e.g. for another resource which found out the file name
+	 * by itself.
+	 *
+	 * @param attributes
+	 *            attributes of the request
+	 * @param fileName
+	 *            name of the file in the directory
+	 * @return the response
+	 */
+	public ResourceResponse newFileResponse(Attributes attributes, String fileName)
+	{
+		var response = new ResourceResponse();
+
+		// Security: validate filename to prevent path traversal
+		if (fileName == null || fileName.contains("..") || fileName.contains("/") || fileName.contains("\\"))
+		{
+			LOG.error("Invalid PDF filename requested: {}", fileName);
+			response.setError(400);
+			return response;
+		}
+
+		var file = Path.of(directory, fileName);
+		long length;
+		Instant lastModified;
+		try
+		{
+			length = Files.size(file);
+			// HTTP dates have a resolution of seconds
+			lastModified = Files.getLastModifiedTime(file).toInstant().truncatedTo(ChronoUnit.SECONDS);
+		}
+		catch (IOException e)
+		{
+			LOG.error("PDF file not found: {}", file.toAbsolutePath());
+			response.setError(404);
+			return response;
+		}
+
+		var etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified.toEpochMilli()) + "\"";
+		response.setCacheDuration(cacheDuration);
+		response.setCacheScope(CacheScope.PRIVATE);
+		response.setFileName(fileName);
+		response.setContentDisposition(ContentDisposition.INLINE);
+		response.setContentType("application/pdf");
+		response.setLastModified(lastModified);
+		response.getHeaders().addHeader("ETag", etag);
+		response.getHeaders().addHeader("Accept-Ranges", "bytes");
+
+		var request = (WebRequest)attributes.getRequest();
+		var ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*")))
+		{
+			response.setStatusCode(304);
+			return response;
+		}
+
+		long start = 0;
+		long end = length - 1;
+		var range = request.getHeader("Range");
+		var ifRange = request.getHeader("If-Range");
+		if (range != null && (ifRange == null || ifRange.equals(etag)))
+		{
+			var requested = parseRange(range, length);
+			if (requested == null)
+			{
+				response.setStatusCode(416);
+				response.setContentRange("bytes */" + length);
+				response.setContentLength(0);
+				return response;
+			}
+			if (requested.length == 2)
+			{
+				start = requested[0];
+				end = requested[1];
+				response.setStatusCode(206);
+				response.setContentRange("bytes " + start + "-" + end + "/" + length);
+			}
+		}
+
+		response.setContentLength(end - start + 1);
+		response.setWriteCallback(new FileRangeWriteCallback(file, start, end - start + 1));
+		return response;
+	}
+
+	/**
+	 * Parses a Range header with a single byte range.
+	 *
+	 * @param range
+	 *            the header value
+	 * @param length
+	 *            length of the file
+	 * @return first and last byte of the range, an empty array if the header is ignored (unknown
+	 *         unit, several ranges or malformed) and the whole file is sent, or null if the range
+	 *         cannot be satisfied
+	 */
+	static long[] parseRange(String range, long length)
+	{
+		var value = range.trim();
+		if (!value.startsWith(BYTES_UNIT) || value.indexOf(',') >= 0)
+		{
+			return new long[0];
+		}
+		value = value.substring(BYTES_UNIT.length()).trim();
+		int dash = value.indexOf('-');
+		if (dash < 0)
+		{
+			return new long[0];
+		}
+		try
+		{
+			var first = value.substring(0, dash).trim();
+			var last = value.substring(dash + 1).trim();
+			if (first.isEmpty())
+			{
+				// suffix range, the last N bytes
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0 || length == 0)
+				{
+					return null;
+				}
+				return new long[] { Math.max(0, length - suffix), length - 1 };
+			}
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+			if (start >= length)
+			{
+				return null;
+			}
+			if (end < start)
+			{
+				return new long[0];
+			}
+			return new long[] { start, end };
+		}
+		catch (NumberFormatException e)
+		{
+			return new long[0];
+		}
+	}
+
+	/**
+	 * Copies a part of a file to the response without buffering it in memory.
+	 */
+	private static class FileRangeWriteCallback extends WriteCallback
+	{
+		private final Path file;
+		private final long start;
+		private final long count;
+
+		private FileRangeWriteCallback(Path file, long start, long count)
+		{
+			this.file = file;
+			this.start = start;
+			this.count = count;
+		}
+
+		@Override
+		public void writeData(Attributes attributes) throws IOException
+		{
+			// the response stream is not closed, it belongs to the container
+			var out = Channels.newChannel(attributes.getResponse().getOutputStream());
+			try (var channel = FileChannel.open(file, StandardOpenOption.READ))
+			{
+				long position = start;
+				long remaining = count;
+				while (remaining > 0)
+				{
+					long transferred = channel.transferTo(position, remaining, out);
+					if (transferred <= 0)
+					{
+						throw new IOException("PDF file " + file + " was truncated while being sent");
+					}
+					position += transferred;
+					remaining -= transferred;
+				}
+			}
+		}
+	}
+}
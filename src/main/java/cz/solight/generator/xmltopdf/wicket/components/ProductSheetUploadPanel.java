@@ -2,25 +2,34 @@ package cz.solight.generator.xmltopdf.wicket.components;
 
 import java.time.Duration;
 
-import org.apache.wicket.Application;
 import org.apache.wicket.AttributeModifier;
-import org.apache.wicket.Session;
-import org.apache.wicket.ThreadContext;
+import org.apache.wicket.Component;
+import org.apache.wicket.ajax.AbstractDefaultAjaxBehavior;
 import org.apache.wicket.ajax.AjaxRequestTarget;
-import org.apache.wicket.ajax.AjaxSelfUpdatingTimerBehavior;
 import org.apache.wicket.ajax.attributes.AjaxRequestAttributes;
+import org.apache.wicket.ajax.markup.html.AjaxLink;
 import org.apache.wicket.ajax.markup.html.form.AjaxButton;
+import org.apache.wicket.ajax.markup.html.form.AjaxCheckBox;
+import org.apache.wicket.core.request.handler.IPartialPageRequestHandler;
+import org.apache.wicket.markup.head.IHeaderResponse;
+import org.apache.wicket.markup.head.JavaScriptHeaderItem;
+import org.apache.wicket.markup.head.OnDomReadyHeaderItem;
 import org.apache.wicket.markup.html.WebMarkupContainer;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.Form;
 import org.apache.wicket.markup.html.form.PasswordTextField;
 import org.apache.wicket.markup.html.panel.Panel;
 import org.apache.wicket.model.Model;
+import org.apache.wicket.protocol.ws.api.WebSocketBehavior;
+import org.apache.wicket.protocol.ws.api.WebSocketRequestHandler;
+import org.apache.wicket.protocol.ws.api.message.IWebSocketPushMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import cz.solight.generator.xmltopdf.scheduler.JobAction;
-import cz.solight.generator.xmltopdf.scheduler.JobOneTime;
+import cz.solight.generator.xmltopdf.scheduler.ProductSheetJobCoordinator;
+import cz.solight.generator.xmltopdf.wicket.components.UploadProgressBroadcaster.UploadProgressMessage;
+
+import jakarta.inject.Inject;
 
 import name.berries.wicket.behaviors.nprogress.NprogressBehavior;
 import name.berries.wicket.notifications.AjaxNotificationPanel;
@@ -33,23 +42,34 @@ import de.agilecoders.wicket.extensions.markup.html.bootstrap.spinner.SpinnerAja
  * Password-protected panel for triggering the product sheet upload job. Displays a password form
  * and, upon correct password entry, shows an Ajax link to trigger the
  * {@code uploadConvertedProductSheets} job with progress indication via a determinate progress bar.
+ * The job runs through {@link ProductSheetJobCoordinator}; if it is already running (triggered by
+ * the scheduler or another user), the panel shows the progress of the running job.
+ *
+ * <p>
+ * Progress is pushed to the page over a WebSocket by {@link UploadProgressBroadcaster}. A slow poll
+ * keeps the page up to date when the WebSocket is not available.
+ * </p>
  */
 public class ProductSheetUploadPanel extends Panel
 {
 	private static final long serialVersionUID = 1L;
 	private static final Logger LOG = LoggerFactory.getLogger(ProductSheetUploadPanel.class);
 	private static final String HARDCODED_PASSWORD = "marmen";
-	private static final Duration POLL_INTERVAL = Duration.ofMillis(500);
+	private static final Duration FALLBACK_POLL_INTERVAL = Duration.ofSeconds(5);
+
+	@Inject
+	private ProductSheetJobCoordinator jobCoordinator;
 
 	private final Model<String> passwordModel = Model.of("");
+	private final Model<Boolean> forceFullRebuildModel = Model.of(false);
 	private WebMarkupContainer passwordContainer;
 	private WebMarkupContainer actionContainer;
 	private WebMarkupContainer progressContainer;
 	private WebMarkupContainer progressBar;
 	private Label progressText;
+	private AjaxLink<Void> cancelLink;
 	private SpinnerAjaxLink<Void> uploadLink;
-	private AjaxSelfUpdatingTimerBehavior timerBehavior;
-	private String sessionId;
+	private boolean trackingProgress;
 
 	/**
 	 * Constructs a new ProductSheetUploadPanel.
@@ -66,7 +86,21 @@ public class ProductSheetUploadPanel extends Panel
 	protected void onInitialize()
 	{
 		super.onInitialize();
-		sessionId = Session.get().getId();
+
+		// Receives progress pushed by the running job
+		add(new WebSocketBehavior()
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void onPush(WebSocketRequestHandler handler, IWebSocketPushMessage message)
+			{
+				if (trackingProgress && message instanceof UploadProgressMessage progressMessage)
+				{
+					applyProgress(handler, progressMessage.progress());
+				}
+			}
+		});
 
 		// Password container (visible initially)
 		passwordContainer = new WebMarkupContainer("passwordContainer");
@@ -108,6 +142,20 @@ public class ProductSheetUploadPanel extends Panel
 		actionContainer.setVisible(false);
 		add(actionContainer);
 
+		// Full rebuild switch, e.g. after a template change when product data stayed the same
+		var optionsForm = new Form<Void>("optionsForm");
+		actionContainer.add(optionsForm);
+		optionsForm.add(new AjaxCheckBox("forceFullRebuild", forceFullRebuildModel)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void onUpdate(AjaxRequestTarget target)
+			{
+				// model is updated, the value is read when the job starts
+			}
+		});
+
 		// Indicating Ajax link for triggering the upload job
 		uploadLink = new SpinnerAjaxLink<>("uploadLink", Type.Outline_Success)
 		{
@@ -138,6 +186,45 @@ public class ProductSheetUploadPanel extends Panel
 		progressContainer.setVisible(false);
 		actionContainer.add(progressContainer);
 
+		// Fallback polling, e.g. when a proxy does not pass the WebSocket through; the script polls
+		// only while the WebSocket is not open and stops again when it opens
+		progressContainer.add(new AbstractDefaultAjaxBehavior()
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void updateAjaxAttributes(AjaxRequestAttributes attributes)
+			{
+				super.updateAjaxAttributes(attributes);
+				attributes.getExtraParameters().put(NprogressBehavior.SKIP_NPROGRESS_ATTRIBUTE_KEY, true);
+			}
+
+			@Override
+			protected void respond(AjaxRequestTarget target)
+			{
+				if (trackingProgress)
+				{
+					applyProgress(target, jobCoordinator.getProgress());
+				}
+				else
+				{
+					stopPolling(target);
+				}
+			}
+
+			@Override
+			public void renderHead(Component component, IHeaderResponse response)
+			{
+				super.renderHead(component, response);
+				response.render(JavaScriptHeaderItem.forReference(UploadProgressFallbackJavaScriptResourceReference.get()));
+				if (trackingProgress)
+				{
+					response.render(OnDomReadyHeaderItem.forScript(String.format("UploadProgressFallback.track('%s', %d, %s);",
+						component.getMarkupId(), FALLBACK_POLL_INTERVAL.toMillis(), getCallbackFunction())));
+				}
+			}
+		});
+
 		// Progress bar
 		progressBar = new WebMarkupContainer("progressBar");
 		progressBar.setOutputMarkupId(true);
@@ -147,6 +234,28 @@ public class ProductSheetUploadPanel extends Panel
 		progressText = new Label("progressText", Model.of(""));
 		progressText.setOutputMarkupId(true);
 		progressContainer.add(progressText);
+
+		// Cancel button, stops the running job
+		cancelLink = new AjaxLink<>("cancelLink")
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void onClick(AjaxRequestTarget target)
+			{
+				if (jobCoordinator.cancel())
+				{
+					LOG.info("Product sheet upload job cancelled by user");
+					info("Rušení úlohy bylo vyžádáno, rozpracované kroky se ukončují.");
+				}
+				setVisible(false);
+				target.add(this);
+				AjaxNotificationPanel.notifyAllIfTargetExists();
+			}
+		};
+		cancelLink.setOutputMarkupId(true);
+		cancelLink.setOutputMarkupPlaceholderTag(true);
+		progressContainer.add(cancelLink);
 	}
 
 	/**
@@ -165,7 +274,15 @@ public class ProductSheetUploadPanel extends Panel
 			passwordContainer.setVisible(false);
 			actionContainer.setVisible(true);
 			target.add(passwordContainer, actionContainer);
-			info("Heslo ověřeno. Nyní můžete spustit nahrávání.");
+			if (jobCoordinator.isRunning())
+			{
+				showProgress(target);
+				info("Heslo ověřeno. Nahrávání již probíhá, zobrazuji jeho průběh.");
+			}
+			else
+			{
+				info("Heslo ověřeno. Nyní můžete spustit nahrávání.");
+			}
 		}
 		else
 		{
@@ -177,72 +294,64 @@ public class ProductSheetUploadPanel extends Panel
 	}
 
 	/**
-	 * Starts the upload job in a background thread and initializes progress tracking.
+	 * Starts the upload job in a background thread, or attaches to the running job, and
+	 * initializes progress tracking.
 	 *
 	 * @param target
 	 *            the ajax request target
 	 */
 	private void startUploadJob(AjaxRequestTarget target)
 	{
-		LOG.info("Starting product sheet upload job with progress tracking");
-
-		// Ensure session is bound and get its ID
-		Session.get().bind();
-		sessionId = Session.get().getId();
-
-		// Initialize progress
-		UploadProgressHolder.update(sessionId, UploadProgress.initial());
+		boolean forceFullRebuild = Boolean.TRUE.equals(forceFullRebuildModel.getObject());
+		if (!jobCoordinator.start(forceFullRebuild, "UI"))
+		{
+			info("Nahrávání již probíhá, zobrazuji jeho průběh.");
+			AjaxNotificationPanel.notifyAllIfTargetExists();
+		}
+		showProgress(target);
+	}
 
+	/**
+	 * Hides the upload button and follows the progress of the running job, pushed over the
+	 * WebSocket or polled as a fallback.
+	 *
+	 * @param target
+	 *            the ajax request target
+	 */
+	private void showProgress(AjaxRequestTarget target)
+	{
 		// Hide upload button, show progress container
 		uploadLink.setVisible(false);
 		progressContainer.setVisible(true);
-		updateProgressDisplay(UploadProgress.initial());
+		cancelLink.setVisible(true);
+		progressBar.add(AttributeModifier.replace("class", "progress-bar progress-bar-striped progress-bar-animated"));
+		updateProgressDisplay(jobCoordinator.getProgress());
 		target.add(uploadLink, progressContainer);
+		// re-rendering the progress container arms the fallback polling
+		trackingProgress = true;
+	}
 
-		// Add timer behavior for polling progress
-		timerBehavior = new AjaxSelfUpdatingTimerBehavior(POLL_INTERVAL)
-		{
-			private static final long serialVersionUID = 1L;
-
-			@Override
-			protected void updateAjaxAttributes(AjaxRequestAttributes attributes)
-			{
-				super.updateAjaxAttributes(attributes);
-				attributes.getExtraParameters().put(NprogressBehavior.SKIP_NPROGRESS_ATTRIBUTE_KEY, true);
-			}
-
-			@Override
-			protected void onPostProcessTarget(AjaxRequestTarget target)
-			{
-				var progress = UploadProgressHolder.get(sessionId);
-				updateProgressDisplay(progress);
+	/**
+	 * Displays a progress state, pushed or polled, and finishes tracking when the job is done.
+	 *
+	 * @param handler
+	 *            the request handler of the push or poll
+	 * @param progress
+	 *            the current progress state
+	 */
+	private void applyProgress(IPartialPageRequestHandler handler, UploadProgress progress)
+	{
+		updateProgressDisplay(progress);
+		handler.add(progressBar, progressText);
 
-				if (progress.completed())
-				{
-					handleCompletion(target, progress);
-				}
-				else if (progress.error() != null)
-				{
-					handleError(target, progress);
-				}
-			}
-		};
-		progressContainer.add(timerBehavior);
-		Application application = Application.get();
-		// Start job in background thread
-		new Thread(() -> {
-			try
-			{
-				ThreadContext.setApplication(application);
-				JobOneTime.uploadConvertedProductSheets(new JobAction(),
-					progress -> UploadProgressHolder.update(sessionId, progress));
-			}
-			catch (Exception e)
-			{
-				LOG.error("Error executing product sheet upload job", e);
-				UploadProgressHolder.update(sessionId, UploadProgress.failed(e.getMessage()));
-			}
-		}, "ProductSheetUpload-" + sessionId).start();
+		if (progress.completed())
+		{
+			handleCompletion(handler, progress);
+		}
+		else if (progress.error() != null)
+		{
+			handleError(handler, progress);
+		}
 	}
 
 	/**
@@ -260,7 +369,7 @@ public class ProductSheetUploadPanel extends Panel
 		String result;
 		if (progress.completed())
 		{
-			result = "Dokončeno: " + progress.total() + " produktů zpracováno";
+			result = "Dokončeno: " + progress.total() + " produktů zpracováno" + formatChangeCounts(progress);
 		}
 		else if (progress.error() != null)
 		{
@@ -273,6 +382,7 @@ public class ProductSheetUploadPanel extends Panel
 			{
 				result += " (" + progress.currentProductCode() + ")";
 			}
+			result += formatChangeCounts(progress);
 		}
 		else
 		{
@@ -281,39 +391,62 @@ public class ProductSheetUploadPanel extends Panel
 		progressText.setDefaultModelObject(result);
 	}
 
+	/**
+	 * Formats the numbers of added, changed, unchanged and removed products.
+	 *
+	 * @param progress
+	 *            the current progress state
+	 * @return the formatted counts, or empty string if no products were classified yet
+	 */
+	private String formatChangeCounts(UploadProgress progress)
+	{
+		if (progress.added() + progress.changed() + progress.unchanged() + progress.removed() == 0)
+		{
+			return "";
+		}
+		return " – nové: " + progress.added() + ", změněné: " + progress.changed() + ", beze změny: "
+			+ progress.unchanged() + ", odstraněné: " + progress.removed();
+	}
+
 	/**
 	 * Handles successful completion of the upload job.
 	 *
 	 * @param target
-	 *            the ajax request target
+	 *            the request handler of the push or poll
 	 * @param progress
 	 *            the final progress state
 	 */
-	private void handleCompletion(AjaxRequestTarget target, UploadProgress progress)
+	private void handleCompletion(IPartialPageRequestHandler target, UploadProgress progress)
 	{
 		LOG.info("Product sheet upload job completed successfully: {} products", progress.total());
-		stopTimer();
+		trackingProgress = false;
+		stopPolling(target);
+		cancelLink.setVisible(false);
+		target.add(cancelLink);
 
 		// Update progress bar to success state
 		progressBar.add(AttributeModifier.replace("class", "progress-bar bg-success"));
 		target.add(progressBar);
 
 		info("Nahrávání produktových listů bylo úspěšně dokončeno. Zpracováno produktů: " + progress.total());
-		AjaxNotificationPanel.notifyAllIfTargetExists();
+		AjaxNotificationPanel.notifyAll(target, this);
 	}
 
 	/**
 	 * Handles error during the upload job.
 	 *
 	 * @param target
-	 *            the ajax request target
+	 *            the request handler of the push or poll
 	 * @param progress
 	 *            the progress state containing the error
 	 */
-	private void handleError(AjaxRequestTarget target, UploadProgress progress)
+	private void handleError(IPartialPageRequestHandler target, UploadProgress progress)
 	{
 		LOG.error("Product sheet upload job failed: {}", progress.error());
-		stopTimer();
+		trackingProgress = false;
+		stopPolling(target);
+		cancelLink.setVisible(false);
+		target.add(cancelLink);
 
 		// Update progress bar to error state
 		progressBar.add(AttributeModifier.replace("class", "progress-bar bg-danger"));
@@ -324,28 +457,17 @@ public class ProductSheetUploadPanel extends Panel
 		target.add(uploadLink);
 
 		error("Chyba při nahrávání: " + progress.error());
-		AjaxNotificationPanel.notifyAllIfTargetExists();
+		AjaxNotificationPanel.notifyAll(target, this);
 	}
 
 	/**
-	 * Stops the timer behavior.
+	 * Stops the fallback polling in the browser.
+	 *
+	 * @param target
+	 *            the request handler of the push or poll
 	 */
-	private void stopTimer()
+	private void stopPolling(IPartialPageRequestHandler target)
 	{
-		if (timerBehavior != null)
-		{
-			timerBehavior.stop(null);
-		}
-	}
-
-	@Override
-	protected void onRemove()
-	{
-		super.onRemove();
-		// Cleanup progress holder when panel is removed from page
-		if (sessionId != null)
-		{
-			UploadProgressHolder.remove(sessionId);
-		}
+		target.appendJavaScript(String.format("UploadProgressFallback.untrack('%s');", progressContainer.getMarkupId()));
 	}
 }
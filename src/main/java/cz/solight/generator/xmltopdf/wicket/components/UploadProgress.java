@@ -32,6 +32,14 @@ package cz.solight.generator.xmltopdf.wicket.components;
  *            true if the job completed successfully
  * @param error
  *            error message if the job failed, null otherwise
+ * @param added
+ *            number of products new since the previous run
+ * @param changed
+ *            number of products changed since the previous run
+ * @param unchanged
+ *            number of products skipped because they did not change
+ * @param removed
+ *            number of products removed since the previous run
  */
 public record UploadProgress(
 	int total,
@@ -39,7 +47,11 @@ public record UploadProgress(
 	String currentProductCode,
 	boolean running,
 	boolean completed,
-	String error)
+	String error,
+	int added,
+	int changed,
+	int unchanged,
+	int removed)
 {
 	/**
 	 * Calculates the progress percentage.
@@ -58,7 +70,7 @@ public record UploadProgress(
 	 */
 	public static UploadProgress initial()
 	{
-		return new UploadProgress(0, 0, null, false, false, null);
+		return new UploadProgress(0, 0, null, false, false, null, 0, 0, 0, 0);
 	}
 
 	/**
@@ -74,7 +86,7 @@ public record UploadProgress(
 	 */
 	public static UploadProgress running(int total, int current, String productCode)
 	{
-		return new UploadProgress(total, current, productCode, true, false, null);
+		return new UploadProgress(total, current, productCode, true, false, null, 0, 0, 0, 0);
 	}
 
 	/**
@@ -86,7 +98,7 @@ public record UploadProgress(
 	 */
 	public static UploadProgress completed(int total)
 	{
-		return new UploadProgress(total, total, null, false, true, null);
+		return new UploadProgress(total, total, null, false, true, null, 0, 0, 0, 0);
 	}
 
 	/**
@@ -98,6 +110,25 @@ public record UploadProgress(
 	 */
 	public static UploadProgress failed(String errorMessage)
 	{
-		return new UploadProgress(0, 0, null, false, false, errorMessage);
+		return new UploadProgress(0, 0, null, false, false, errorMessage, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Creates a copy of this progress state with the product change counts of the run.
+	 *
+	 * @param added
+	 *            number of products new since the previous run
+	 * @param changed
+	 *            number of products changed since the previous run
+	 * @param unchanged
+	 *            number of products skipped because they did not change
+	 * @param removed
+	 *            number of products removed since the previous run
+	 * @return progress state with change counts
+	 */
+	public UploadProgress withChangeCounts(int added, int changed, int unchanged, int removed)
+	{
+		return new UploadProgress(total, current, currentProductCode, running, completed, error, added, changed, unchanged,
+			removed);
 	}
 }
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.wicket.components;
+
+import static name.berries.wicket.util.app.AppConfigProvider.getDefaultConfiguration;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.protocol.ws.WebSocketSettings;
+import org.apache.wicket.protocol.ws.api.WebSocketPushBroadcaster;
+import org.apache.wicket.protocol.ws.api.message.IWebSocketPushMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pushes progress of the product sheet job to the pages connected by WebSocket. The job reports
+ * progress for every product, so pushes are throttled: a state arriving sooner than the configured
+ * interval after the previous push is held back and only the latest held back state is pushed when
+ * the interval elapses. A completed or failed state is pushed immediately.
+ *
+ * <p>
+ * States are numbered as they are published and pushed in that order; a state taken by a delayed
+ * flush is dropped if a newer one was pushed meanwhile, so pages never get an in-progress state
+ * after the completed one.
+ * </p>
+ */
+public class UploadProgressBroadcaster
+{
+	private static final Logger LOG = LoggerFactory.getLogger(UploadProgressBroadcaster.class);
+	private static final Duration PUSH_INTERVAL = Duration
+		.ofMillis(getDefaultConfiguration().getLong("productSheets.progressPushIntervalMillis", 1000));
+
+	private final Object pushLock = new Object();
+	private UploadProgress pending;
+	private long pendingSequence;
+	private long publishedSequence;
+	private long pushedSequence;
+	private long lastPushNanos = System.nanoTime() - PUSH_INTERVAL.toNanos();
+	private boolean flushScheduled;
+
+	/**
+	 * Construct.
+	 */
+	public UploadProgressBroadcaster()
+	{
+		super();
+	}
+
+	/**
+	 * Publishes a progress state, now or when the push interval elapses.
+	 *
+	 * @param application
+	 *            the application whose connections get the state, nothing is pushed if null
+	 * @param progress
+	 *            the progress state
+	 */
+	public void publish(Application application, UploadProgress progress)
+	{
+		if (application == null)
+		{
+			return;
+		}
+		synchronized (this)
+		{
+			pending = progress;
+			pendingSequence = ++publishedSequence;
+			long waitNanos = PUSH_INTERVAL.toNanos() - (System.nanoTime() - lastPushNanos);
+			boolean finished = progress.completed() || progress.error() != null;
+			if (!finished && waitNanos > 0)
+			{
+				if (!flushScheduled)
+				{
+					flushScheduled = true;
+					CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS).execute(() -> {
+						synchronized (this)
+						{
+							flushScheduled = false;
+						}
+						flush(application);
+					});
+				}
+				return;
+			}
+		}
+		flush(application);
+	}
+
+	private void flush(Application application)
+	{
+		UploadProgress progress;
+		long sequence;
+		synchronized (this)
+		{
+			progress = pending;
+			sequence = pendingSequence;
+			pending = null;
+			if (progress == null)
+			{
+				return;
+			}
+			lastPushNanos = System.nanoTime();
+		}
+		synchronized (pushLock)
+		{
+			if (sequence <= pushedSequence)
+			{
+				// a newer state was pushed by a concurrent flush
+				return;
+			}
+			pushedSequence = sequence;
+			try
+			{
+				var registry = WebSocketSettings.Holder.get(application).getConnectionRegistry();
+				new WebSocketPushBroadcaster(registry).broadcastAll(application, new UploadProgressMessage(progress));
+			}
+			catch (Exception e)
+			{
+				// pages fall back to polling
+				LOG.warn("Pushing product sheet job progress failed", e);
+			}
+		}
+	}
+
+	/**
+	 * WebSocket push message carrying a progress state of the product sheet job.
+	 *
+	 * @param progress
+	 *            the progress state
+	 */
+	public record UploadProgressMessage(UploadProgress progress) implements IWebSocketPushMessage
+	{
+	}
+}
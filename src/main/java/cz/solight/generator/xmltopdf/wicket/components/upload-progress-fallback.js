@@ -0,0 +1,58 @@
+/*
+ * Polls the progress of a running job only while the WebSocket that pushes it is not open,
+ * e.g. when a proxy does not pass the WebSocket through or the connection was closed.
+ */
+var UploadProgressFallback = (function() {
+	var trackers = {};
+
+	function isWebSocketOpen() {
+		var instance = Wicket.WebSocket && Wicket.WebSocket.INSTANCE;
+		return !!(instance && instance.ws && instance.ws.readyState === WebSocket.OPEN);
+	}
+
+	function startPolling(tracker) {
+		if (!tracker.timer) {
+			tracker.timer = window.setInterval(tracker.poll, tracker.interval);
+		}
+	}
+
+	function stopPolling(tracker) {
+		if (tracker.timer) {
+			window.clearInterval(tracker.timer);
+			tracker.timer = null;
+		}
+	}
+
+	function forEachTracker(action) {
+		for (var id in trackers) {
+			if (document.getElementById(id)) {
+				action(trackers[id]);
+			} else {
+				stopPolling(trackers[id]);
+				delete trackers[id];
+			}
+		}
+	}
+
+	var topics = Wicket.Event.Topic.WebSocket;
+	Wicket.Event.subscribe(topics.Opened, function() { forEachTracker(stopPolling); });
+	Wicket.Event.subscribe(topics.Closed, function() { forEachTracker(startPolling); });
+	Wicket.Event.subscribe(topics.Error, function() { forEachTracker(startPolling); });
+	Wicket.Event.subscribe(topics.NotSupported, function() { forEachTracker(startPolling); });
+
+	return {
+		track: function(id, interval, poll) {
+			this.untrack(id);
+			trackers[id] = { interval: interval, poll: poll, timer: null };
+			if (!isWebSocketOpen()) {
+				startPolling(trackers[id]);
+			}
+		},
+		untrack: function(id) {
+			if (trackers[id]) {
+				stopPolling(trackers[id]);
+				delete trackers[id];
+			}
+		}
+	};
+})();
@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.SftpEventListener;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+/**
+ * In-process SFTP server (Apache MINA SSHD) serving a local directory, for tests and benchmarks of
+ * {@link FtpSyncService}. The server can be reached over a {@link SimulatedLink} with artificial
+ * latency and bandwidth, to measure the sync as if the server were remote. The writes received by
+ * the server are recorded per file, see {@link #getWrites(String)}.
+ */
+class EmbeddedSftpServer implements AutoCloseable
+{
+	static final String USERNAME = "generator";
+	static final String PASSWORD = "generator-secret";
+	static final String DOWNLOAD_DIRECTORY = "/XML";
+	static final String UPLOAD_DIRECTORY = "/Produktove listy";
+
+	private final Path root;
+	private final SshServer server;
+	private final SimulatedLink link;
+	private final Map<String, Writes> writes;
+
+	private EmbeddedSftpServer(Path root, SshServer server, SimulatedLink link, Map<String, Writes> writes)
+	{
+		this.root = root;
+		this.server = server;
+		this.link = link;
+		this.writes = writes;
+	}
+
+	/**
+	 * Starts a server reachable directly over the loopback interface.
+	 *
+	 * @param root
+	 *            local directory served as the root of the server
+	 * @return the started server
+	 * @throws IOException
+	 *             if the server cannot be started
+	 */
+	static EmbeddedSftpServer start(Path root) throws IOException
+	{
+		return start(root, Duration.ZERO, 0);
+	}
+
+	/**
+	 * Starts a server reachable over a simulated link.
+	 *
+	 * @param root
+	 *            local directory served as the root of the server
+	 * @param latency
+	 *            one-way latency of the link
+	 * @param bytesPerSecond
+	 *            bandwidth of each direction of the link, 0 for unlimited
+	 * @return the started server
+	 * @throws IOException
+	 *             if the server cannot be started
+	 */
+	static EmbeddedSftpServer start(Path root, Duration latency, long bytesPerSecond) throws IOException
+	{
+		Files.createDirectories(root.resolve(DOWNLOAD_DIRECTORY.substring(1)));
+		Files.createDirectories(root.resolve(UPLOAD_DIRECTORY.substring(1)));
+
+		var server = SshServer.setUpDefaultServer();
+		server.setHost("127.0.0.1");
+		server.setPort(0);
+		server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+		server.setPasswordAuthenticator((username, password, session) -> USERNAME.equals(username)
+			&& PASSWORD.equals(password));
+		var writes = new ConcurrentHashMap<String, Writes>();
+		var sftp = new SftpSubsystemFactory();
+		sftp.addSftpEventListener(new SftpEventListener()
+		{
+			@Override
+			public void written(ServerSession session, String remoteHandle, FileHandle localHandle, long offset,
+				byte[] data, int dataOffset, int dataLen, Throwable thrown)
+			{
+				if (thrown == null)
+				{
+					writes.merge(localHandle.getFile().getFileName().toString(), new Writes(dataLen, offset),
+						Writes::add);
+				}
+			}
+		});
+		server.setSubsystemFactories(List.of(sftp));
+		server.setFileSystemFactory(new VirtualFileSystemFactory(root));
+		server.start();
+
+		var link = latency.isZero() && bytesPerSecond <= 0 ? null
+			: new SimulatedLink(server.getPort(), latency, bytesPerSecond);
+		return new EmbeddedSftpServer(root, server, link, writes);
+	}
+
+	/**
+	 * @return port the clients connect to
+	 */
+	int getPort()
+	{
+		return link != null ? link.getPort() : server.getPort();
+	}
+
+	/**
+	 * @return local directory of the remote download directory
+	 */
+	Path getDownloadDirectory()
+	{
+		return root.resolve(DOWNLOAD_DIRECTORY.substring(1));
+	}
+
+	/**
+	 * @return local directory of the remote upload directory
+	 */
+	Path getUploadDirectory()
+	{
+		return root.resolve(UPLOAD_DIRECTORY.substring(1));
+	}
+
+	/**
+	 * Creates a configuration connecting to this server, with credentials written to the work
+	 * directory. Manifests, streaming and archive uploads are turned off.
+	 *
+	 * @param workDirectory
+	 *            local directory for the credentials file
+	 * @return the configuration
+	 * @throws IOException
+	 *             if the credentials file cannot be written
+	 */
+	SftpConfig newConfig(Path workDirectory) throws IOException
+	{
+		var credentialsFile = workDirectory.resolve("sftp-credentials");
+		Files.write(credentialsFile, List.of(USERNAME, PASSWORD));
+
+		var config = new SftpConfig();
+		config.setHost("127.0.0.1");
+		config.setPort(getPort());
+		config.setCredentialsFile(credentialsFile.toString());
+		config.setDownloadDirectory(DOWNLOAD_DIRECTORY);
+		config.setUploadDirectory(UPLOAD_DIRECTORY);
+		config.setManifestFile("");
+		config.setUploadManifestFile("");
+		config.setMirrorUploadManifest(false);
+		config.setStreamDownloads(false);
+		config.setDownloadCopyDirectory("");
+		config.setArchiveUploads(false);
+		return config;
+	}
+
+	/**
+	 * @param filename
+	 *            name of a file on the server, without the directory
+	 * @return the writes into the file received so far, none if it was not written
+	 */
+	Writes getWrites(String filename)
+	{
+		return writes.getOrDefault(filename, new Writes(0, Long.MAX_VALUE));
+	}
+
+	/**
+	 * Writes into a file received by the server.
+	 *
+	 * @param bytes
+	 *            number of bytes written
+	 * @param lowestOffset
+	 *            offset of the first written byte in the file, {@link Long#MAX_VALUE} if none
+	 */
+	record Writes(long bytes, long lowestOffset)
+	{
+		Writes add(Writes other)
+		{
+			return new Writes(bytes + other.bytes, Math.min(lowestOffset, other.lowestOffset));
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (link != null)
+		{
+			link.close();
+		}
+		server.stop(true);
+	}
+}
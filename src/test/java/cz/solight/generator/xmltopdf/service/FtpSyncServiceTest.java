@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+
+/**
+ * Tests of {@link FtpSyncService} against an {@link EmbeddedSftpServer}.
+ */
+class FtpSyncServiceTest
+{
+	@TempDir
+	Path serverRoot;
+
+	@TempDir
+	Path workDirectory;
+
+	private EmbeddedSftpServer server;
+	private Injector injector;
+	private FtpSyncService ftpSyncService;
+	private SftpConfig config;
+
+	@BeforeEach
+	void startServer() throws IOException
+	{
+		server = EmbeddedSftpServer.start(serverRoot);
+		injector = Guice.createInjector(binder -> binder.bind(SftpSessionPool.class).in(Singleton.class));
+		ftpSyncService = injector.getInstance(FtpSyncService.class);
+		config = server.newConfig(workDirectory);
+	}
+
+	@AfterEach
+	void stopServer() throws IOException
+	{
+		injector.getInstance(SftpSessionPool.class).close();
+		server.close();
+	}
+
+	@Test
+	void downloadsCatalogueAndUploadsGeneratedFiles() throws IOException
+	{
+		var catalogue = writeCatalogue("produktove_listy.xml", 1);
+		var outputs = outputs(5, 40_000);
+
+		int processed = ftpSyncService.syncXmlFiles(config, (file, uploadQueue) -> {
+			assertArrayEquals(catalogue, readAllBytes(file.toPath()));
+			outputs.forEach(uploadQueue::accept);
+		});
+
+		assertEquals(1, processed);
+		assertUploaded(outputs);
+	}
+
+	@Test
+	void streamsCatalogueWhileItIsDownloaded() throws IOException
+	{
+		var catalogue = writeCatalogue("produktove_listy.xml", 1);
+		config.setStreamDownloads(true);
+
+		int processed = ftpSyncService.syncXmlStreams(config,
+			(filename, inputStream, uploadQueue) -> assertArrayEquals(catalogue, inputStream.readAllBytes()));
+
+		assertEquals(1, processed);
+	}
+
+	@Test
+	void skipsCatalogueUnchangedSinceLastSync() throws IOException
+	{
+		writeCatalogue("produktove_listy.xml", 1);
+		config.setManifestFile(workDirectory.resolve("download-manifest.properties").toString());
+		var calls = new AtomicInteger();
+
+		assertEquals(1, ftpSyncService.syncXmlFiles(config, (file, uploadQueue) -> calls.incrementAndGet()));
+		assertEquals(0, ftpSyncService.syncXmlFiles(config, (file, uploadQueue) -> calls.incrementAndGet()));
+		assertEquals(1, calls.get());
+
+		writeCatalogue("produktove_listy.xml", 2);
+		assertEquals(1, ftpSyncService.syncXmlFiles(config, (file, uploadQueue) -> calls.incrementAndGet()));
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	void retriesCatalogueWhoseProcessingFailed() throws IOException
+	{
+		writeCatalogue("produktove_listy.xml", 1);
+		config.setManifestFile(workDirectory.resolve("download-manifest.properties").toString());
+		var calls = new AtomicInteger();
+
+		ftpSyncService.syncXmlFiles(config, (file, uploadQueue) -> {
+			calls.incrementAndGet();
+			throw new IllegalStateException("rendering failed");
+		});
+		assertEquals(1, ftpSyncService.syncXmlFiles(config, (file, uploadQueue) -> calls.incrementAndGet()));
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	void resumesPartialUploadAndRemovesStaleParts() throws IOException
+	{
+		writeCatalogue("produktove_listy.xml", 1);
+		var content = randomContent(300_000, 7);
+		var partPrefix = ".A123_cz.pdf.";
+		var resumedPartName = partPrefix + DigestUtils.sha256Hex(content).substring(0, 16) + FtpSyncService.PART_EXTENSION;
+		var resumedPart = server.getUploadDirectory().resolve(resumedPartName);
+		Files.write(resumedPart, Arrays.copyOf(content, 100_000));
+		var stalePart = server.getUploadDirectory().resolve(partPrefix + "0123456789abcdef" + FtpSyncService.PART_EXTENSION);
+		Files.write(stalePart, randomContent(50_000, 8));
+
+		ftpSyncService.syncXmlFiles(config, (file, uploadQueue) -> uploadQueue.accept("A123_cz.pdf", content));
+
+		assertArrayEquals(content, readAllBytes(server.getUploadDirectory().resolve("A123_cz.pdf")));
+		assertEquals(0, countFiles(server.getUploadDirectory(), name -> name.endsWith(FtpSyncService.PART_EXTENSION)));
+		// only the missing tail was sent, appended to the part
+		var writes = server.getWrites(resumedPartName);
+		assertEquals(200_000, writes.bytes());
+		assertEquals(100_000, writes.lowestOffset());
+	}
+
+	@Test
+	void archiveModeUploadsOneArchiveWithManifest() throws IOException
+	{
+		writeCatalogue("produktove_listy.xml", 1);
+		config.setArchiveUploads(true);
+		config.setArchivePrefix("produktove-listy");
+		var outputs = outputs(5, 40_000);
+
+		ftpSyncService.syncXmlFiles(config, (file, uploadQueue) -> outputs.forEach(uploadQueue::accept));
+
+		assertEquals(1, countFiles(server.getUploadDirectory(), name -> name.endsWith(".zip")));
+		assertEquals(1, countFiles(server.getUploadDirectory(), name -> name.endsWith(".manifest.csv")));
+		assertEquals(0, countFiles(server.getUploadDirectory(), name -> name.startsWith(".")));
+
+		Path archive;
+		try (var files = Files.list(server.getUploadDirectory()))
+		{
+			archive = files.filter(file -> file.getFileName().toString().endsWith(".zip")).findFirst().orElseThrow();
+		}
+		var archived = new HashMap<String, byte[]>();
+		try (var zip = new ZipInputStream(new ByteArrayInputStream(Files.readAllBytes(archive))))
+		{
+			for (var entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry())
+			{
+				archived.put(entry.getName(), zip.readAllBytes());
+			}
+		}
+		assertEquals(outputs.keySet(), archived.keySet());
+		outputs.forEach((name, content) -> assertArrayEquals(content, archived.get(name)));
+	}
+
+	@Test
+	void failsWithWrongCredentials() throws IOException
+	{
+		var credentialsFile = Path.of(config.getCredentialsFile());
+		Files.write(credentialsFile, List.of(EmbeddedSftpServer.USERNAME, "wrong"));
+
+		assertThrows(RuntimeException.class, () -> ftpSyncService.syncXmlFiles(config, (file, uploadQueue) -> {
+		}));
+
+		// the pool connects once the credentials are fixed
+		Files.write(credentialsFile, List.of(EmbeddedSftpServer.USERNAME, EmbeddedSftpServer.PASSWORD));
+		writeCatalogue("produktove_listy.xml", 1);
+		assertEquals(1, ftpSyncService.syncXmlFiles(config, (file, uploadQueue) -> {
+		}));
+	}
+
+	private byte[] writeCatalogue(String filename, int version) throws IOException
+	{
+		var catalogue = ("<?xml version=\"1.0\"?><PRODUCTS version=\"" + version + "\"/>").getBytes(StandardCharsets.UTF_8);
+		var file = server.getDownloadDirectory().resolve(filename);
+		Files.write(file, catalogue);
+		// the manifest compares modification times in seconds
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + version * 10_000L));
+		return catalogue;
+	}
+
+	private void assertUploaded(Map<String, byte[]> outputs) throws IOException
+	{
+		for (var output : outputs.entrySet())
+		{
+			assertArrayEquals(output.getValue(), readAllBytes(server.getUploadDirectory().resolve(output.getKey())));
+		}
+		assertEquals(0, countFiles(server.getUploadDirectory(), name -> name.startsWith(".")));
+	}
+
+	private static Map<String, byte[]> outputs(int count, int size)
+	{
+		var outputs = new HashMap<String, byte[]>();
+		for (int i = 0; i < count; i++)
+		{
+			outputs.put("P" + i + "_cz.pdf", randomContent(size, i));
+		}
+		return outputs;
+	}
+
+	static byte[] randomContent(int size, long seed)
+	{
+		var content = new byte[size];
+		new Random(seed).nextBytes(content);
+		return content;
+	}
+
+	private static long countFiles(Path directory, Predicate<String> filter) throws IOException
+	{
+		try (Stream<Path> files = Files.list(directory))
+		{
+			return files.map(file -> file.getFileName().toString()).filter(filter).count();
+		}
+	}
+
+	private static byte[] readAllBytes(Path file)
+	{
+		try
+		{
+			return Files.readAllBytes(file);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.velocity.app.Velocity;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.mock.MockApplication;
+import org.apache.wicket.protocol.http.mock.MockServletContext;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import cz.solight.generator.xmltopdf.pojo.ProductSheet;
+import cz.solight.generator.xmltopdf.pojo.ProductSheetFormat;
+import cz.solight.generator.xmltopdf.util.ChromiumPdfSample;
+
+/**
+ * Tests that {@link ProductSheetPdfGenerator} renders byte-identical PDFs for identical products.
+ * Gotenberg is replaced by a local HTTP server answering like Chromium: the page content follows the
+ * submitted HTML, while the creation time and document IDs differ with every rendering. The
+ * templates are loaded as Wicket package resources, so a mock application is attached, and the
+ * templates they include from the classpath.
+ */
+class ProductSheetPdfGeneratorTest
+{
+	private static final String CONVERT_PATH = "/forms/chromium/convert/html";
+
+	private static MockApplication application;
+	private static HttpServer gotenberg;
+	private static final AtomicInteger RENDERINGS = new AtomicInteger();
+	private static final List<byte[]> RESPONSES = new CopyOnWriteArrayList<>();
+
+	private ProductSheetPdfGenerator generator;
+
+	@BeforeAll
+	static void startGotenberg() throws IOException
+	{
+		application = new MockApplication();
+		application.setName(ProductSheetPdfGeneratorTest.class.getSimpleName());
+		application.setServletContext(new MockServletContext(application, null));
+		ThreadContext.setApplication(application);
+		application.initApplication();
+
+		Velocity.setProperty(RuntimeConstants.RESOURCE_LOADERS, "class");
+		Velocity.setProperty("resource.loader.class.class", ClasspathResourceLoader.class.getName());
+		Velocity.init();
+
+		gotenberg = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		gotenberg.createContext(CONVERT_PATH, ProductSheetPdfGeneratorTest::convert);
+		gotenberg.start();
+	}
+
+	@AfterAll
+	static void stopGotenberg()
+	{
+		gotenberg.stop(0);
+		application.internalDestroy();
+		ThreadContext.detach();
+	}
+
+	@BeforeEach
+	void createGenerator()
+	{
+		RESPONSES.clear();
+		generator = new ProductSheetPdfGenerator("http://127.0.0.1:" + gotenberg.getAddress().getPort());
+		generator.setDeterministic(true);
+	}
+
+	@Test
+	void identicalProductYieldsIdenticalPdf() throws Exception
+	{
+		var first = generator.renderPdf(product("A123", "Prodlužovací kabel"), ProductSheetFormat.A4_SHORT,
+			ProductSheetFormat.A4_SHORT.buildFilename("A123"));
+		var second = generator.renderPdf(product("A123", "Prodlužovací kabel"), ProductSheetFormat.A4_SHORT,
+			ProductSheetFormat.A4_SHORT.buildFilename("A123"));
+
+		// Gotenberg answered with different dates and IDs
+		assertEquals(2, RESPONSES.size());
+		assertFalse(Arrays.equals(RESPONSES.get(0), RESPONSES.get(1)));
+		assertArrayEquals(first, second);
+	}
+
+	@Test
+	void differentProductYieldsDifferentPdf() throws Exception
+	{
+		var first = generator.renderPdf(product("A123", "Prodlužovací kabel"), ProductSheetFormat.A4_SHORT,
+			ProductSheetFormat.A4_SHORT.buildFilename("A123"));
+		var other = generator.renderPdf(product("A123", "Prodlužovací kabel 5 m"), ProductSheetFormat.A4_SHORT,
+			ProductSheetFormat.A4_SHORT.buildFilename("A123"));
+
+		assertFalse(Arrays.equals(first, other));
+	}
+
+	private static ProductSheet product(String code, String name)
+	{
+		var product = new ProductSheet();
+		product.setCode(code);
+		product.setName(name);
+		product.setBrand("Solight");
+		product.setBrandName("Solight");
+		product.setEan("8592718000000");
+		product.setPackageCount(10);
+		product.setGuaranteeLength(24);
+		product.setDescription("<ul><li>Délka 3 m</li><li>Krytí IP44</li></ul>");
+		return product;
+	}
+
+	/**
+	 * Answers a conversion like Chromium: the page follows the submitted files, the metadata is new
+	 * for every rendering.
+	 */
+	private static void convert(HttpExchange exchange) throws IOException
+	{
+		var body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.ISO_8859_1);
+		// the multipart boundary, on the first line, is random and not part of the submitted files
+		var boundary = body.substring(0, body.indexOf("\r\n"));
+		var files = body.replace(boundary, "");
+
+		int rendering = RENDERINGS.incrementAndGet();
+		var pdf = ChromiumPdfSample
+			.build(String.format("202610181010%02d", rendering % 60), "+02'00'",
+				DigestUtils.md5Hex(UUID.randomUUID().toString()), UUID.randomUUID().toString(),
+				"BT /F1 12 Tf 72 712 Td (" + DigestUtils.sha256Hex(files) + ") Tj ET\n")
+			.getBytes(StandardCharsets.ISO_8859_1);
+		RESPONSES.add(pdf);
+
+		exchange.getResponseHeaders().add("Content-Type", "application/pdf");
+		exchange.sendResponseHeaders(200, pdf.length);
+		try (var response = exchange.getResponseBody())
+		{
+			response.write(pdf);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.function.IORunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Settings and measurements shared by the SFTP benchmarks. The simulated link and the amount of
+ * data are set by system properties, e.g.
+ * {@code mvn test -Pbenchmark -Dsftp.benchmark.latencyMs=40 -Dsftp.benchmark.bandwidthMbit=50}.
+ */
+final class SftpBenchmarkSupport
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SftpBenchmarkSupport.class);
+
+	/** One-way latency of the simulated link. */
+	static final long LATENCY_MS = Long.getLong("sftp.benchmark.latencyMs", 20);
+
+	/** Bandwidth of each direction of the simulated link, 0 for unlimited. */
+	static final long BANDWIDTH_MBIT = Long.getLong("sftp.benchmark.bandwidthMbit", 100);
+
+	/** Measured rounds of each benchmark, the median is reported. */
+	static final int ROUNDS = Integer.getInteger("sftp.benchmark.rounds", 3);
+
+	private SftpBenchmarkSupport()
+	{
+		// Utility class, no instantiation
+	}
+
+	/**
+	 * Starts an embedded server behind the simulated link.
+	 *
+	 * @param root
+	 *            local directory served by the server
+	 * @return the started server
+	 * @throws IOException
+	 *             if the server cannot be started
+	 */
+	static EmbeddedSftpServer startServer(Path root) throws IOException
+	{
+		return EmbeddedSftpServer.start(root, Duration.ofMillis(LATENCY_MS), BANDWIDTH_MBIT * 1_000_000 / 8);
+	}
+
+	/**
+	 * Runs the benchmark once to warm up, then {@link #ROUNDS} times measured.
+	 *
+	 * @param name
+	 *            name of the benchmark
+	 * @param files
+	 *            number of files transferred by one run
+	 * @param bytes
+	 *            number of bytes transferred by one run
+	 * @param setup
+	 *            prepares a run, not measured
+	 * @param run
+	 *            the measured transfer
+	 * @return the median throughput
+	 * @throws IOException
+	 *             if the setup or the transfer fails
+	 */
+	static Throughput measure(String name, int files, long bytes, IORunnable setup, IORunnable run) throws IOException
+	{
+		setup.run();
+		run.run();
+
+		var rounds = new ArrayList<Throughput>();
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			setup.run();
+			long started = System.nanoTime();
+			run.run();
+			rounds.add(new Throughput(name, files, bytes, System.nanoTime() - started));
+		}
+		rounds.sort(Comparator.comparingLong(Throughput::nanos));
+		var median = rounds.get(rounds.size() / 2);
+		LOG.info("{}", median);
+		return median;
+	}
+
+	/**
+	 * Logs a table of the measured throughputs.
+	 *
+	 * @param title
+	 *            title of the table
+	 * @param results
+	 *            the measured throughputs
+	 */
+	static void report(String title, List<Throughput> results)
+	{
+		var table = new StringBuilder(String.format("%s (%d ms latency, %s, median of %d rounds)%n", title, LATENCY_MS,
+			BANDWIDTH_MBIT > 0 ? BANDWIDTH_MBIT + " Mbit/s" : "unlimited bandwidth", ROUNDS));
+		table.append(String.format("%-40s %8s %10s %10s %10s %10s%n", "benchmark", "files", "MB", "seconds", "files/s", "MB/s"));
+		for (var result : results)
+		{
+			table.append(String.format("%-40s %8d %10.1f %10.2f %10.1f %10.2f%n", result.name(), result.files(),
+				result.bytes() / 1e6, result.nanos() / 1e9, result.filesPerSecond(), result.megabytesPerSecond()));
+		}
+		LOG.info("\n{}", table);
+	}
+
+	/**
+	 * Deletes all files in a directory of the server.
+	 *
+	 * @param directory
+	 *            the directory
+	 * @throws IOException
+	 *             if a file cannot be deleted
+	 */
+	static void clearDirectory(Path directory) throws IOException
+	{
+		try (Stream<Path> files = Files.list(directory))
+		{
+			for (var file : files.toList())
+			{
+				Files.delete(file);
+			}
+		}
+	}
+
+	/**
+	 * Counts the files in a directory of the server.
+	 *
+	 * @param directory
+	 *            the directory
+	 * @param suffix
+	 *            suffix of the counted file names
+	 * @return number of files
+	 * @throws IOException
+	 *             if the directory cannot be listed
+	 */
+	static long countFiles(Path directory, String suffix) throws IOException
+	{
+		try (Stream<Path> files = Files.list(directory))
+		{
+			return files.filter(file -> file.getFileName().toString().endsWith(suffix)).count();
+		}
+	}
+
+	/**
+	 * Throughput of one benchmark run.
+	 *
+	 * @param name
+	 *            name of the benchmark
+	 * @param files
+	 *            number of transferred files
+	 * @param bytes
+	 *            number of transferred bytes
+	 * @param nanos
+	 *            duration of the run
+	 */
+	record Throughput(String name, int files, long bytes, long nanos)
+	{
+		double filesPerSecond()
+		{
+			return files / (nanos / 1e9);
+		}
+
+		double megabytesPerSecond()
+		{
+			return bytes / 1e6 / (nanos / 1e9);
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s: %d files, %.1f MB in %.2f s, %.1f files/s, %.2f MB/s", name, files, bytes / 1e6,
+				nanos / 1e9, filesPerSecond(), megabytesPerSecond());
+		}
+	}
+}
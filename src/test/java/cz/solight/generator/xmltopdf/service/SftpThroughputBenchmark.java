@@ -0,0 +1,272 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import static cz.solight.generator.xmltopdf.service.SftpBenchmarkSupport.clearDirectory;
+import static cz.solight.generator.xmltopdf.service.SftpBenchmarkSupport.countFiles;
+import static cz.solight.generator.xmltopdf.service.SftpBenchmarkSupport.measure;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+
+import cz.solight.generator.xmltopdf.service.SftpBenchmarkSupport.Throughput;
+
+/**
+ * End-to-end throughput of {@link FtpSyncService} against an embedded SFTP server behind a
+ * simulated link: XML downloads (to a file and streamed), and uploads of generated PDFs over a
+ * single channel, over parallel channels and as one archive. Many small PDFs, where the round trips
+ * per file dominate, are uploaded both one by one and as an archive to compare the two modes. Every
+ * upload is checked: each PDF on the server, or the archive holding each PDF and a manifest listing
+ * them. Run with {@code mvn test -Pbenchmark} and tune the settings by the {@code sftp.benchmark.*}
+ * system properties, see also {@link SftpBenchmarkSupport}.
+ */
+@Tag("benchmark")
+class SftpThroughputBenchmark
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SftpThroughputBenchmark.class);
+
+	/** Number of downloaded XML files and size of each. */
+	private static final int XML_FILES = Integer.getInteger("sftp.benchmark.xmlFiles", 4);
+	private static final int XML_SIZE = Integer.getInteger("sftp.benchmark.xmlMb", 8) * 1_000_000;
+
+	/** Number of uploaded PDFs and size of each. */
+	private static final int PDF_FILES = Integer.getInteger("sftp.benchmark.files", 200);
+	private static final int PDF_SIZE = Integer.getInteger("sftp.benchmark.fileKb", 100) * 1_000;
+
+	/** Number of small PDFs comparing individual and archive upload, and size of each. */
+	private static final int SMALL_PDF_FILES = Integer.getInteger("sftp.benchmark.smallFiles", 500);
+	private static final int SMALL_PDF_SIZE = Integer.getInteger("sftp.benchmark.smallFileKb", 30) * 1_000;
+
+	/** Parallel upload channels and the sessions they are spread over. */
+	private static final int CHANNELS = Integer.getInteger("sftp.benchmark.channels", 4);
+	private static final int SESSIONS = Integer.getInteger("sftp.benchmark.sessions", 1);
+
+	@TempDir
+	static Path serverRoot;
+
+	@TempDir
+	static Path workDirectory;
+
+	private static EmbeddedSftpServer server;
+	private static Injector injector;
+	private static FtpSyncService ftpSyncService;
+	private static Map<String, byte[]> pdfs;
+	private static Map<String, byte[]> smallPdfs;
+	private static Throughput smallIndividual;
+	private static Throughput smallArchive;
+	private static final List<Throughput> RESULTS = new ArrayList<>();
+
+	@BeforeAll
+	static void startServer() throws IOException
+	{
+		server = SftpBenchmarkSupport.startServer(serverRoot);
+		injector = Guice.createInjector(binder -> binder.bind(SftpSessionPool.class).in(Singleton.class));
+		ftpSyncService = injector.getInstance(FtpSyncService.class);
+		pdfs = randomPdfs(PDF_FILES, PDF_SIZE, 1);
+		smallPdfs = randomPdfs(SMALL_PDF_FILES, SMALL_PDF_SIZE, 3);
+	}
+
+	@AfterAll
+	static void stopServer() throws IOException
+	{
+		SftpBenchmarkSupport.report("SFTP sync throughput", RESULTS);
+		if (smallIndividual != null && smallArchive != null)
+		{
+			LOG.info("Archive upload of small files is {} times faster than individual upload over {} channels",
+				String.format("%.1f", (double)smallIndividual.nanos() / smallArchive.nanos()), CHANNELS);
+		}
+		injector.getInstance(SftpSessionPool.class).close();
+		server.close();
+	}
+
+	@Test
+	void download() throws IOException
+	{
+		writeCatalogues(XML_FILES, XML_SIZE);
+		var config = server.newConfig(workDirectory);
+
+		RESULTS.add(measure("download to file", XML_FILES, (long)XML_FILES * XML_SIZE, () -> {
+		}, () -> assertEquals(XML_FILES, ftpSyncService.syncXmlFiles(config, (file, uploadQueue) -> {
+		}))));
+
+		config.setStreamDownloads(true);
+		RESULTS.add(measure("download streamed", XML_FILES, (long)XML_FILES * XML_SIZE, () -> {
+		}, () -> assertEquals(XML_FILES,
+			ftpSyncService.syncXmlStreams(config, (filename, inputStream, uploadQueue) -> IOUtils.consume(inputStream)))));
+	}
+
+	@Test
+	void uploadSingleChannel() throws IOException
+	{
+		var config = server.newConfig(workDirectory);
+		config.setUploadSessions(1);
+		config.setUploadChannels(1);
+		RESULTS.add(measureUpload("upload, 1 channel", config, pdfs));
+	}
+
+	@Test
+	void uploadParallelChannels() throws IOException
+	{
+		var config = server.newConfig(workDirectory);
+		config.setUploadSessions(SESSIONS);
+		config.setUploadChannels(CHANNELS);
+		RESULTS.add(measureUpload("upload, " + CHANNELS + " channels on " + SESSIONS + " sessions", config, pdfs));
+	}
+
+	@Test
+	void uploadArchive() throws IOException
+	{
+		RESULTS.add(measureUpload("upload, archive", archiveConfig(), pdfs));
+	}
+
+	@Test
+	void uploadSmallFilesIndividually() throws IOException
+	{
+		var config = server.newConfig(workDirectory);
+		config.setUploadSessions(SESSIONS);
+		config.setUploadChannels(CHANNELS);
+		smallIndividual = measureUpload("small files, " + CHANNELS + " channels", config, smallPdfs);
+		RESULTS.add(smallIndividual);
+	}
+
+	@Test
+	void uploadSmallFilesArchive() throws IOException
+	{
+		smallArchive = measureUpload("small files, archive", archiveConfig(), smallPdfs);
+		RESULTS.add(smallArchive);
+	}
+
+	private static SftpConfig archiveConfig() throws IOException
+	{
+		var config = server.newConfig(workDirectory);
+		config.setArchiveUploads(true);
+		config.setArchivePrefix("produktove-listy");
+		return config;
+	}
+
+	/**
+	 * Measures a sync of a small catalogue whose processing generates the PDFs, then checks the
+	 * upload of the last round.
+	 */
+	private static Throughput measureUpload(String name, SftpConfig config, Map<String, byte[]> uploaded)
+		throws IOException
+	{
+		writeCatalogues(1, 1_000);
+		long bytes = uploaded.values().stream().mapToLong(pdf -> pdf.length).sum();
+		var throughput = measure(name, uploaded.size(), bytes, () -> clearDirectory(server.getUploadDirectory()),
+			() -> assertEquals(1,
+				ftpSyncService.syncXmlFiles(config, (file, uploadQueue) -> uploaded.forEach(uploadQueue::accept))));
+		if (config.isArchiveUploads())
+		{
+			assertArchiveUploaded(uploaded);
+		}
+		else
+		{
+			assertEquals(uploaded.size(), countFiles(server.getUploadDirectory(), ""));
+			for (var pdf : uploaded.entrySet())
+			{
+				assertArrayEquals(pdf.getValue(), Files.readAllBytes(server.getUploadDirectory().resolve(pdf.getKey())));
+			}
+		}
+		return throughput;
+	}
+
+	/**
+	 * Checks that the server holds one archive with all PDFs and its manifest listing them.
+	 */
+	private static void assertArchiveUploaded(Map<String, byte[]> uploaded) throws IOException
+	{
+		assertEquals(2, countFiles(server.getUploadDirectory(), ""));
+		var archived = new HashMap<String, byte[]>();
+		try (var zip = new ZipInputStream(new ByteArrayInputStream(Files.readAllBytes(uploadedFile(".zip")))))
+		{
+			for (var entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry())
+			{
+				archived.put(entry.getName(), zip.readAllBytes());
+			}
+		}
+		assertEquals(uploaded.keySet(), archived.keySet());
+		uploaded.forEach((name, content) -> assertArrayEquals(content, archived.get(name)));
+
+		var expectedManifest = new ArrayList<String>();
+		expectedManifest.add("filename;size;sha256");
+		uploaded.forEach(
+			(name, content) -> expectedManifest.add(name + ";" + content.length + ";" + DigestUtils.sha256Hex(content)));
+		assertEquals(expectedManifest, Files.readAllLines(uploadedFile(".manifest.csv"), StandardCharsets.UTF_8));
+	}
+
+	private static Path uploadedFile(String suffix) throws IOException
+	{
+		try (Stream<Path> files = Files.list(server.getUploadDirectory()))
+		{
+			return files.filter(file -> file.getFileName().toString().endsWith(suffix)).findFirst().orElseThrow();
+		}
+	}
+
+	private static Map<String, byte[]> randomPdfs(int count, int size, long seed)
+	{
+		// PDFs are compressed, random content compresses just as badly
+		var random = new Random(seed);
+		var generated = new LinkedHashMap<String, byte[]>();
+		for (int i = 0; i < count; i++)
+		{
+			var pdf = new byte[size];
+			random.nextBytes(pdf);
+			generated.put(String.format("P%05d_cz.pdf", i), pdf);
+		}
+		return generated;
+	}
+
+	private static void writeCatalogues(int count, int size) throws IOException
+	{
+		clearDirectory(server.getDownloadDirectory());
+		var random = new Random(2);
+		for (int i = 0; i < count; i++)
+		{
+			var content = new byte[size];
+			random.nextBytes(content);
+			Files.write(server.getDownloadDirectory().resolve("katalog-" + i + ".xml"), content);
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TCP proxy simulating a slow network link between the SFTP client and the embedded server. Every
+ * chunk of data is delivered a fixed one-way latency after it was sent, and the data of all
+ * connections shares the bandwidth of each direction, like a real link to a remote server.
+ */
+class SimulatedLink implements AutoCloseable
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SimulatedLink.class);
+	private static final int CHUNK_SIZE = 32 * 1024;
+
+	/** Marks the end of the data of one direction. */
+	private static final Chunk END = new Chunk(new byte[0], 0);
+
+	private final ServerSocket serverSocket;
+	private final int targetPort;
+	private final long latencyNanos;
+	private final Bandwidth upstream;
+	private final Bandwidth downstream;
+	private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+	private final ExecutorService threads = Executors.newCachedThreadPool(runnable -> {
+		var thread = new Thread(runnable, "simulated-link");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Starts the proxy on a free local port.
+	 *
+	 * @param targetPort
+	 *            local port the connections are forwarded to
+	 * @param latency
+	 *            one-way latency, a round trip takes twice as long
+	 * @param bytesPerSecond
+	 *            bandwidth of each direction, 0 for unlimited
+	 * @throws IOException
+	 *             if the port cannot be opened
+	 */
+	SimulatedLink(int targetPort, Duration latency, long bytesPerSecond) throws IOException
+	{
+		this.targetPort = targetPort;
+		this.latencyNanos = latency.toNanos();
+		this.upstream = new Bandwidth(bytesPerSecond);
+		this.downstream = new Bandwidth(bytesPerSecond);
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		threads.execute(this::accept);
+		LOG.info("Simulating link with {} ms latency and {} to port {}", latency.toMillis(),
+			bytesPerSecond > 0 ? bytesPerSecond * 8 / 1_000_000 + " Mbit/s" : "unlimited bandwidth", targetPort);
+	}
+
+	/**
+	 * @return port the clients connect to
+	 */
+	int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		serverSocket.close();
+		for (var socket : sockets)
+		{
+			socket.close();
+		}
+		threads.shutdownNow();
+	}
+
+	private void accept()
+	{
+		while (!serverSocket.isClosed())
+		{
+			try
+			{
+				var client = serverSocket.accept();
+				var server = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+				client.setTcpNoDelay(true);
+				server.setTcpNoDelay(true);
+				sockets.add(client);
+				sockets.add(server);
+				forward(client, server, upstream);
+				forward(server, client, downstream);
+			}
+			catch (IOException e)
+			{
+				if (!serverSocket.isClosed())
+				{
+					LOG.warn("Failed to accept a connection", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forwards the data of one direction: one thread reads the chunks as they arrive, another one
+	 * writes each of them once its latency passed and the link has the bandwidth for it.
+	 */
+	private void forward(Socket from, Socket to, Bandwidth bandwidth)
+	{
+		BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<>();
+		threads.execute(() -> read(from, chunks));
+		threads.execute(() -> write(to, chunks, bandwidth));
+	}
+
+	private void read(Socket from, BlockingQueue<Chunk> chunks)
+	{
+		var buffer = new byte[CHUNK_SIZE];
+		try (var in = from.getInputStream())
+		{
+			int read;
+			while ((read = in.read(buffer)) >= 0)
+			{
+				chunks.add(new Chunk(Arrays.copyOf(buffer, read), System.nanoTime() + latencyNanos));
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.trace("Link connection closed", e);
+		}
+		chunks.add(END);
+	}
+
+	private void write(Socket to, BlockingQueue<Chunk> chunks, Bandwidth bandwidth)
+	{
+		try
+		{
+			var out = to.getOutputStream();
+			while (true)
+			{
+				var chunk = chunks.take();
+				if (chunk == END)
+				{
+					to.shutdownOutput();
+					return;
+				}
+				sleepUntil(chunk.dueNanos());
+				bandwidth.transmit(chunk.data().length);
+				out.write(chunk.data());
+				out.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.trace("Link connection closed", e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void sleepUntil(long nanoTime) throws InterruptedException
+	{
+		long remaining = nanoTime - System.nanoTime();
+		if (remaining > 0)
+		{
+			TimeUnit.NANOSECONDS.sleep(remaining);
+		}
+	}
+
+	/**
+	 * Bandwidth of one direction of the link; data is transmitted in the order it arrives.
+	 */
+	private static final class Bandwidth
+	{
+		private final long bytesPerSecond;
+		private long busyUntilNanos;
+
+		Bandwidth(long bytesPerSecond)
+		{
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		/**
+		 * Waits until the given number of bytes is transmitted over the link.
+		 */
+		void transmit(int bytes) throws InterruptedException
+		{
+			if (bytesPerSecond <= 0)
+			{
+				return;
+			}
+			long transmittedAt;
+			synchronized (this)
+			{
+				long start = Math.max(System.nanoTime(), busyUntilNanos);
+				transmittedAt = start + bytes * 1_000_000_000L / bytesPerSecond;
+				busyUntilNanos = transmittedAt;
+			}
+			sleepUntil(transmittedAt);
+		}
+	}
+
+	/**
+	 * Data waiting for delivery.
+	 *
+	 * @param data
+	 *            the data
+	 * @param dueNanos
+	 *            {@link System#nanoTime()} when the data arrives at the other end
+	 */
+	private record Chunk(byte[] data, long dueNanos)
+	{
+	}
+}
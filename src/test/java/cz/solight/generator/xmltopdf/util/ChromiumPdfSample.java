@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * PDFs laid out like the ones Chromium (Gotenberg) renders, for tests of {@link PdfNormalizer} and
+ * of the generators: two renderings of the same page differ only in timestamps and document IDs.
+ */
+public final class ChromiumPdfSample
+{
+	private ChromiumPdfSample()
+	{
+		// Utility class, no instantiation
+	}
+
+	/**
+	 * Builds a single page PDF with the metadata Chromium writes: info dictionary dates, an XMP
+	 * packet and the trailer document ID. The page content is compressed into a binary stream.
+	 *
+	 * @param timestamp
+	 *            creation time, {@code yyyyMMddHHmmss}
+	 * @param zone
+	 *            time zone of the creation time, e.g. {@code +02'00'}
+	 * @param documentId
+	 *            document ID of the trailer, 32 hex digits
+	 * @param uuid
+	 *            document ID of the XMP packet
+	 * @param pageContent
+	 *            content stream of the page
+	 * @return the PDF, one character per byte (ISO-8859-1)
+	 */
+	public static String build(String timestamp, String zone, String documentId, String uuid, String pageContent)
+	{
+		var pdfDate = "D:" + timestamp + zone;
+		var xmpDate = timestamp.substring(0, 4) + "-" + timestamp.substring(4, 6) + "-" + timestamp.substring(6, 8) + "T"
+			+ timestamp.substring(8, 10) + ":" + timestamp.substring(10, 12) + ":" + timestamp.substring(12, 14)
+			+ zone.replace("'", ":").substring(0, 6);
+		var xmp = "<?xpacket begin=\"\" id=\"W5M0MpCehiHzreSzNTczkc9d\"?>\n"
+			+ "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n"
+			+ "<rdf:Description rdf:about=\"\" xmlns:xmp=\"http://ns.adobe.com/xap/1.0/\" xmlns:xmpMM=\"http://ns.adobe.com/xap/1.0/mm/\">\n"
+			+ "<xmp:CreateDate>" + xmpDate + "</xmp:CreateDate>\n" + "<xmp:ModifyDate>" + xmpDate + "</xmp:ModifyDate>\n"
+			+ "<xmp:MetadataDate>" + xmpDate + "</xmp:MetadataDate>\n" + "<xmpMM:DocumentID>uuid:" + uuid
+			+ "</xmpMM:DocumentID>\n" + "<xmpMM:InstanceID>uuid:" + uuid + "</xmpMM:InstanceID>\n"
+			+ "</rdf:Description></rdf:RDF></x:xmpmeta>\n<?xpacket end=\"w\"?>";
+		var content = new String(deflate(pageContent), StandardCharsets.ISO_8859_1);
+
+		var objects = List.of("<< /Type /Catalog /Pages 2 0 R /Metadata 5 0 R >>",
+			"<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+			"<< /Type /Page /Parent 2 0 R /MediaBox [0 0 595 842] /Contents 4 0 R >>",
+			"<< /Filter /FlateDecode /Length " + content.length() + " >>\nstream\n" + content + "\nendstream",
+			"<< /Type /Metadata /Subtype /XML /Length " + xmp.length() + " >>\nstream\n" + xmp + "\nendstream",
+			"<< /Creator (Chromium) /Producer (Skia/PDF m131) /CreationDate (" + pdfDate + ") /ModDate (" + pdfDate
+				+ ") >>");
+
+		var pdf = new StringBuilder("%PDF-1.4\n%âãÏÓ\n");
+		var offsets = new ArrayList<Integer>();
+		for (int i = 0; i < objects.size(); i++)
+		{
+			offsets.add(pdf.length());
+			pdf.append(i + 1).append(" 0 obj\n").append(objects.get(i)).append("\nendobj\n");
+		}
+		int xrefOffset = pdf.length();
+		pdf.append("xref\n0 ").append(objects.size() + 1).append("\n0000000000 65535 f \n");
+		for (var offset : offsets)
+		{
+			pdf.append(String.format("%010d 00000 n \n", offset));
+		}
+		pdf.append("trailer\n<< /Size ").append(objects.size() + 1).append(" /Root 1 0 R /Info 6 0 R /ID [<")
+			.append(documentId).append("> <").append(documentId).append(">] >>\nstartxref\n").append(xrefOffset)
+			.append("\n%%EOF\n");
+		return pdf.toString();
+	}
+
+	private static byte[] deflate(String text)
+	{
+		var deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		deflater.setInput(text.getBytes(StandardCharsets.ISO_8859_1));
+		deflater.finish();
+		var out = new ByteArrayOutputStream();
+		var buffer = new byte[1024];
+		while (!deflater.finished())
+		{
+			out.write(buffer, 0, deflater.deflate(buffer));
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.UnaryOperator;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Throughput of {@link DescriptionFormatter} compared with the former regex and
+ * {@code StringEscapeUtils} based implementation kept in {@link DescriptionFormatterTest}. Both
+ * process the same seeded corpus of descriptions; each is warmed up, then the median of the
+ * measured rounds is reported. Run with {@code mvn test -Pbenchmark}, the corpus and rounds are set
+ * by the {@code description.benchmark.*} system properties.
+ */
+@Tag("benchmark")
+class DescriptionFormatterBenchmark
+{
+	private static final Logger LOG = LoggerFactory.getLogger(DescriptionFormatterBenchmark.class);
+
+	/** Number of descriptions in the corpus. */
+	private static final int DESCRIPTIONS = Integer.getInteger("description.benchmark.descriptions", 10_000);
+
+	/** Passes over the corpus to warm up, and measured rounds, the median is reported. */
+	private static final int WARMUP_ROUNDS = Integer.getInteger("description.benchmark.warmupRounds", 10);
+	private static final int ROUNDS = Integer.getInteger("description.benchmark.rounds", 10);
+
+	private static final List<String> RESULTS = new ArrayList<>();
+
+	@AfterAll
+	static void report()
+	{
+		LOG.info("\nDescription formatting ({} descriptions, median of {} rounds)\n{}", DESCRIPTIONS, ROUNDS,
+			String.join("\n", RESULTS));
+	}
+
+	@Test
+	void formatListDescription()
+	{
+		var corpus = corpus(DescriptionFormatterTest.LIST_TOKENS, 60, 600);
+		compare("formatListDescription", corpus, DescriptionFormatterTest::formerListDescription,
+			DescriptionFormatter::formatListDescription);
+	}
+
+	@Test
+	void decodeEntities()
+	{
+		var corpus = corpus(DescriptionFormatterTest.ENTITY_TOKENS, 40, 400);
+		compare("decodeEntities", corpus, DescriptionFormatterTest::formerDecodeEntities,
+			DescriptionFormatter::decodeEntities);
+	}
+
+	/**
+	 * Descriptions made of the test tokens, every tenth one long.
+	 */
+	private static String[] corpus(String[] tokens, int maxTokens, int maxLongTokens)
+	{
+		var random = new Random(DESCRIPTIONS);
+		var corpus = new String[DESCRIPTIONS];
+		for (int i = 0; i < corpus.length; i++)
+		{
+			corpus[i] = DescriptionFormatterTest.randomText(random, tokens, i % 10 == 0 ? maxLongTokens : maxTokens);
+		}
+		return corpus;
+	}
+
+	private static void compare(String name, String[] corpus, UnaryOperator<String> former, UnaryOperator<String> current)
+	{
+		// both must do the same work
+		for (var description : corpus)
+		{
+			assertEquals(former.apply(description), current.apply(description));
+		}
+
+		long formerNanos = measure(corpus, former);
+		long currentNanos = measure(corpus, current);
+		RESULTS.add(String.format("%-24s former %8.1f ns/op, current %8.1f ns/op, %.1f times faster", name,
+			(double)formerNanos / corpus.length, (double)currentNanos / corpus.length, (double)formerNanos / currentNanos));
+	}
+
+	/**
+	 * @return median duration of a pass over the corpus
+	 */
+	private static long measure(String[] corpus, UnaryOperator<String> formatter)
+	{
+		long checksum = 0;
+		for (int round = 0; round < WARMUP_ROUNDS; round++)
+		{
+			checksum += pass(corpus, formatter);
+		}
+
+		var rounds = new long[ROUNDS];
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			long started = System.nanoTime();
+			checksum += pass(corpus, formatter);
+			rounds[round] = System.nanoTime() - started;
+		}
+		// keeps the results in use, so the JIT cannot drop the work
+		LOG.debug("Checksum {}", checksum);
+		Arrays.sort(rounds);
+		return rounds[rounds.length / 2];
+	}
+
+	private static long pass(String[] corpus, UnaryOperator<String> formatter)
+	{
+		long length = 0;
+		for (var description : corpus)
+		{
+			length += formatter.apply(description).length();
+		}
+		return length;
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.text.StringEscapeUtils;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Golden output tests of {@link DescriptionFormatter} against the former regex and
+ * {@code StringEscapeUtils} based implementation of both parsers, kept here as the reference (also
+ * for {@link DescriptionFormatterBenchmark}).
+ */
+class DescriptionFormatterTest
+{
+	private static final long SEED = 20261018L;
+	private static final int RANDOM_SAMPLES = 20_000;
+
+	/**
+	 * Tokens of the offer descriptions. A lone {@code '#'} is left out: the former implementation
+	 * also turned a {@code "###"} glued to a dropped {@code <ul>} tag into a list item, which only
+	 * happens in malformed markup.
+	 */
+	static final String[] LIST_TOKENS = { "<li>", "<LI>", "<Li>", "</li>", "</LI>", "<ul>",
+			"<UL>", "</ul>", "</Ul>", "<br />", "### ", "\n", "\n", "\n", " ", "Napětí 230 V",
+			"IP44", "<b>", "</b>", "&amp;", "<", ">", "x" };
+
+	static final String[] ENTITY_TOKENS = { "&amp;", "&lt;UL&gt;", "&lt;/li&gt;",
+			"&quot;", "&apos;", "&nbsp;", "&eacute;", "&Scaron;", "&euro;", "&hellip;", "&#233;",
+			"&#x1F600;", "&#X41;", "&#0065;", "&", "&;", "&#;", "&#x;", "&#12", "&amp",
+			"&unknown;", "&&lt;", "; ", "#", "x", "Žárovka E27", " ", "\n" };
+
+	@Test
+	void listDescriptionGolden()
+	{
+		assertList(null);
+		assertList("");
+		assertList("   ");
+		assertList("Bez seznamu");
+		assertList("<ul><li>První</li><li>Druhá</li></ul>");
+		assertList("<UL>\n<LI>První</LI>\n<Li>Druhá</lI>\n</Ul>");
+		assertList("### ručně psaná položka<br />\n### další<br />");
+		assertList("<ul>\n<li>a</li>\n\n\n</ul>\n\n\n");
+		assertList(StringUtils.repeat("<li>řádek</li>\n", 30));
+		assertList(StringUtils.repeat("<li>" + StringUtils.repeat("dlouhý text ", 20) + "</li>\n", 12));
+		assertList(StringUtils.repeat("\n", 20));
+		assertList("<ul><li>neuzavřená položka");
+	}
+
+	@Test
+	void listDescriptionMatchesFormerImplementation()
+	{
+		var random = new Random(SEED);
+		for (int i = 0; i < RANDOM_SAMPLES; i++)
+		{
+			assertList(randomText(random, LIST_TOKENS, i % 10 == 0 ? 600 : 60));
+		}
+	}
+
+	@Test
+	void entityDecodingGolden()
+	{
+		assertEntities(null);
+		assertEntities("");
+		assertEntities(" \n ");
+		assertEntities("Bez entit");
+		assertEntities("&lt;UL&gt;&lt;LI&gt;Výkon 10&nbsp;W&lt;/LI&gt;&lt;/UL&gt;");
+		assertEntities("Tom &amp; Jerry &amp Spike &unknown; &#233;&#xE9;&#XE9; &#x1F4A1;");
+		assertEntities("& ; &; &#; &#x; &#12 &#a; &&amp;");
+		assertEntities("&euro;&hellip;&Scaron;&scaron;&lArr;&thetasym;");
+	}
+
+	@Test
+	void entityDecodingMatchesFormerImplementation()
+	{
+		var random = new Random(SEED);
+		for (int i = 0; i < RANDOM_SAMPLES; i++)
+		{
+			assertEntities(randomText(random, ENTITY_TOKENS, 40));
+		}
+	}
+
+	private static void assertList(String description)
+	{
+		assertEquals(formerListDescription(description),
+			DescriptionFormatter.formatListDescription(description), () -> "input: " + description);
+	}
+
+	private static void assertEntities(String description)
+	{
+		assertEquals(formerDecodeEntities(description), DescriptionFormatter.decodeEntities(description),
+			() -> "input: " + description);
+	}
+
+	static String randomText(Random random, String[] tokens, int maxTokens)
+	{
+		var text = new StringBuilder();
+		int count = random.nextInt(maxTokens + 1);
+		for (int i = 0; i < count; i++)
+		{
+			text.append(tokens[random.nextInt(tokens.length)]);
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Former {@code OfferXmlParser.formatDescription}.
+	 */
+	static String formerListDescription(String xmlDescription)
+	{
+		if (StringUtils.isBlank(xmlDescription))
+		{
+			return "";
+		}
+
+		var description = xmlDescription;
+
+		description = description.replaceAll("(?i)</li>", "<br />");
+		description = description.replaceAll("(?i)<li>", "### ");
+		description = description.replaceAll("(?i)<ul>", "");
+		description = description.replaceAll("(?i)</ul>", "");
+
+		int lineCount = description.length() > 1500 ? 10 : 15;
+
+		var lines = description.split("\n");
+		var limitedLines = new ArrayList<String>();
+		for (int i = 0; i < Math.min(lineCount, lines.length); i++)
+		{
+			limitedLines.add(lines[i]);
+		}
+		description = String.join("\n", limitedLines);
+
+		description = description.replace("### ", "<li>");
+		description = description.replace("<br />", "</li>");
+
+		return "<ul>" + description + "</ul>";
+	}
+
+	/**
+	 * Former {@code ProductSheetXmlParser.decodeHtmlEntities}.
+	 */
+	static String formerDecodeEntities(String text)
+	{
+		if (StringUtils.isBlank(text))
+		{
+			return "";
+		}
+		return StringEscapeUtils.unescapeHtml4(text);
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cz.solight.generator.xmltopdf.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of {@link PdfNormalizer} and {@link PdfContentHash} over PDFs laid out like the ones
+ * Chromium (Gotenberg) renders: two renderings of the same page differ only in timestamps and
+ * document IDs.
+ */
+class PdfNormalizerTest
+{
+	private static final String FINGERPRINT = "ABC123|A4";
+
+	private static final Pattern STARTXREF = Pattern.compile("startxref\\s+(\\d+)\\s+%%EOF\\s*$");
+
+	/** Page content, compressed into a binary stream like Chromium does. */
+	private static final String PAGE_CONTENT = StringUtils.repeat("BT /F1 12 Tf 72 712 Td (Solight) Tj ET\n", 40);
+
+	@Test
+	void identicalInputYieldsIdenticalPdf()
+	{
+		var first = samplePdf("20261018101010", "+02'00'", "9f86d081884c7d659a2feaa0c55ad015",
+			"3b8f1c2e-4a5d-4e6f-8a9b-0c1d2e3f4a5b");
+		var second = samplePdf("20261019235959", "+01'00'", "a1b2c3d4e5f60718293a4b5c6d7e8f90",
+			"d4c3b2a1-6f5e-4d3c-9b8a-7f6e5d4c3b2a");
+		assertFalse(first.equals(second));
+
+		var normalizedFirst = PdfNormalizer.normalize(first.getBytes(StandardCharsets.ISO_8859_1), FINGERPRINT);
+		var normalizedSecond = PdfNormalizer.normalize(second.getBytes(StandardCharsets.ISO_8859_1), FINGERPRINT);
+
+		assertArrayEquals(normalizedFirst, normalizedSecond);
+		assertEquals(first.length(), normalizedFirst.length);
+		assertEquals(second.length(), normalizedSecond.length);
+	}
+
+	@Test
+	void normalizedPdfKeepsValidCrossReferences() throws DataFormatException
+	{
+		var pdf = samplePdf("20261018101010", "+02'00'", "9f86d081884c7d659a2feaa0c55ad015",
+			"3b8f1c2e-4a5d-4e6f-8a9b-0c1d2e3f4a5b").getBytes(StandardCharsets.ISO_8859_1);
+		var normalized = PdfNormalizer.normalize(pdf, FINGERPRINT);
+
+		assertEquals(pdf.length, normalized.length);
+		assertCrossReferencesValid(new String(normalized, StandardCharsets.ISO_8859_1));
+
+		// binary stream data passes through unchanged
+		assertEquals(PAGE_CONTENT, inflate(streamData(normalized, 4)));
+	}
+
+	@Test
+	void metadataIsPinned()
+	{
+		var pdf = samplePdf("20261018101010", "+02'00'", "9f86d081884c7d659a2feaa0c55ad015",
+			"3b8f1c2e-4a5d-4e6f-8a9b-0c1d2e3f4a5b");
+		var normalized = new String(PdfNormalizer.normalize(pdf.getBytes(StandardCharsets.ISO_8859_1), FINGERPRINT),
+			StandardCharsets.ISO_8859_1);
+
+		assertTrue(normalized.contains("/CreationDate (D:20000101000000+00'00')"));
+		assertTrue(normalized.contains("/ModDate (D:20000101000000+00'00')"));
+		assertTrue(normalized.contains("<xmp:CreateDate>2000-01-01T00:00:00+00:00</xmp:CreateDate>"));
+		assertFalse(normalized.contains("9f86d081884c7d659a2feaa0c55ad015"));
+		assertFalse(normalized.contains("3b8f1c2e-4a5d-4e6f-8a9b-0c1d2e3f4a5b"));
+		assertTrue(normalized.contains("<xmpMM:DocumentID>uuid:"));
+	}
+
+	@Test
+	void documentIdFollowsFingerprint()
+	{
+		var pdf = samplePdf("20261018101010", "+02'00'", "9f86d081884c7d659a2feaa0c55ad015",
+			"3b8f1c2e-4a5d-4e6f-8a9b-0c1d2e3f4a5b").getBytes(StandardCharsets.ISO_8859_1);
+
+		assertArrayEquals(PdfNormalizer.normalize(pdf, FINGERPRINT), PdfNormalizer.normalize(pdf, FINGERPRINT));
+		assertNotEquals(new String(PdfNormalizer.normalize(pdf, FINGERPRINT), StandardCharsets.ISO_8859_1),
+			new String(PdfNormalizer.normalize(pdf, "ABC123|A5"), StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	void contentHashIgnoresVolatileMetadata()
+	{
+		var first = samplePdf("20261018101010", "+02'00'", "9f86d081884c7d659a2feaa0c55ad015",
+			"3b8f1c2e-4a5d-4e6f-8a9b-0c1d2e3f4a5b").getBytes(StandardCharsets.ISO_8859_1);
+		var second = samplePdf("20261019235959", "+01'00'", "a1b2c3d4e5f60718293a4b5c6d7e8f90",
+			"d4c3b2a1-6f5e-4d3c-9b8a-7f6e5d4c3b2a").getBytes(StandardCharsets.ISO_8859_1);
+
+		var otherPage = samplePdf("20261018101010", "+02'00'", "9f86d081884c7d659a2feaa0c55ad015",
+			"3b8f1c2e-4a5d-4e6f-8a9b-0c1d2e3f4a5b", PAGE_CONTENT.replace("Solight", "Solight!"))
+			.getBytes(StandardCharsets.ISO_8859_1);
+
+		assertEquals(PdfContentHash.of(first), PdfContentHash.of(second));
+		assertNotEquals(PdfContentHash.of(first), PdfContentHash.of(otherPage));
+	}
+
+	/**
+	 * Checks that startxref points to the cross-reference table and that each of its entries points
+	 * to the start of the object.
+	 */
+	private static void assertCrossReferencesValid(String pdf)
+	{
+		var startxref = STARTXREF.matcher(pdf);
+		assertTrue(startxref.find(), "startxref not found");
+		int xrefOffset = Integer.parseInt(startxref.group(1));
+		assertTrue(pdf.startsWith("xref\n", xrefOffset), "startxref does not point to the xref table");
+
+		var lines = pdf.substring(xrefOffset).split("\n");
+		var section = lines[1].split(" ");
+		assertEquals("0", section[0]);
+		int count = Integer.parseInt(section[1]);
+		for (int object = 1; object < count; object++)
+		{
+			var entry = lines[2 + object];
+			assertEquals(19, entry.length(), "xref entry has to be 20 bytes with the line end");
+			int offset = Integer.parseInt(entry.substring(0, 10));
+			int objectNumber = object;
+			assertTrue(pdf.startsWith(object + " 0 obj", offset), () -> "xref of object " + objectNumber + " is broken");
+		}
+	}
+
+	/**
+	 * Builds the sample PDF with {@link #PAGE_CONTENT}, see {@link ChromiumPdfSample}.
+	 */
+	private static String samplePdf(String timestamp, String zone, String documentId, String uuid)
+	{
+		return samplePdf(timestamp, zone, documentId, uuid, PAGE_CONTENT);
+	}
+
+	private static String samplePdf(String timestamp, String zone, String documentId, String uuid, String pageContent)
+	{
+		return ChromiumPdfSample.build(timestamp, zone, documentId, uuid, pageContent);
+	}
+
+	private static byte[] streamData(byte[] pdf, int objectNumber)
+	{
+		var text = new String(pdf, StandardCharsets.ISO_8859_1);
+		int object = text.indexOf("\n" + objectNumber + " 0 obj\n");
+		int start = text.indexOf("stream\n", object) + "stream\n".length();
+		int end = text.indexOf("\nendstream", start);
+		return text.substring(start, end).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static String inflate(byte[] data) throws DataFormatException
+	{
+		var inflater = new Inflater();
+		inflater.setInput(data);
+		var out = new ByteArrayOutputStream();
+		var buffer = new byte[1024];
+		while (!inflater.finished())
+		{
+			out.write(buffer, 0, inflater.inflate(buffer));
+		}
+		inflater.end();
+		return out.toString(StandardCharsets.ISO_8859_1);
+	}
+}